@@ -0,0 +1,170 @@
+package kc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * アセンブラファイルを読み込んで PseudoIseg に詰めるクラス
+ * dump2file が出力する形式 (一行に命令一つ, オペランドがあれば空白の後に十進数) を,
+ * 文字列を作らずにバイト列のまま一度だけ走査して解析する. 命令の綴りは MnemonicTable の完全ハッシュで引く.
+ * ファイルは一定の大きさのバッファに少しずつ読むので, 大きなファイルでも全体を読み込む必要は無い.
+ * 行頭と行末の空白, 空行, \r\n の改行を許す.
+ */
+class AsmLoader {
+	/**
+	 * 一度に読み込むバイト数
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * 読み込み中のファイル (エラーの表示に使う)
+	 */
+	private Path file;
+
+	/**
+	 * 読み込み元
+	 */
+	private InputStream in;
+
+	/**
+	 * 読み込んだバイト列
+	 */
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * 次に調べる位置と, 読み込んだバイト列の末尾の次の位置
+	 */
+	private int position, limit;
+
+	/**
+	 * 今の行番号 (1 から)
+	 */
+	private int line = 1;
+
+	/**
+	 * 読み込み元を引数とするコンストラクタ
+	 */
+	private AsmLoader(Path file, InputStream in) {
+		this.file = file;
+		this.in = in;
+	}
+
+	/**
+	 * アセンブラファイルを読み込む
+	 * @param file アセンブラファイル
+	 * @return 読み込んだ命令列
+	 * @throws IOException 読み込めないとき, 形式が正しくないとき
+	 */
+	static PseudoIseg load(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return load(file, in);
+		}
+	}
+
+	/**
+	 * 読み込み元のアセンブラコードを読み込む
+	 * @param file エラーの表示に使うファイル名
+	 * @param in 読み込み元. 閉じるのは呼び出し側
+	 * @return 読み込んだ命令列
+	 * @throws IOException 読み込めないとき, 形式が正しくないとき
+	 */
+	static PseudoIseg load(Path file, InputStream in) throws IOException {
+		return new AsmLoader(file, in).parse();
+	}
+
+	/**
+	 * ファイルの終わりまで一行ずつ解析する
+	 */
+	private PseudoIseg parse() throws IOException {
+		PseudoIseg iseg = new PseudoIseg();
+		for (;;) {
+			skipBlanks();
+			if (!fill(1))
+				return iseg;
+			if (buffer[position] == '\n') {	//空行
+				position++;
+				line++;
+				continue;
+			}
+
+			// 命令の綴り. 最長の OUTPUTLN より長ければ命令ではない
+			fill(16);	//ファイルの終わりなら残りだけ読み込まれる
+			int start = position;
+			while (position < limit && buffer[position] >= 'A' && buffer[position] <= 'Z' && position - start < 16)
+				position++;
+			Operator operator = MnemonicTable.lookup(buffer, start, position - start);
+			if (operator == null)
+				throw error("命令として読めない");
+
+			skipBlanks();
+			int operand = 0;
+			if (fill(1) && buffer[position] != '\n')
+				operand = parseInt();
+			skipBlanks();
+			if (fill(1)) {
+				if (buffer[position] != '\n')
+					throw error("行末に余分な文字がある");
+				position++;
+			}
+			iseg.setI(operator, 0, operand);
+			line++;
+		}
+	}
+
+	/**
+	 * 符号付きの十進数を読む
+	 */
+	private int parseInt() throws IOException {
+		fill(12);	//符号と10桁が入る長さ
+		boolean negative = buffer[position] == '-';
+		if (negative || buffer[position] == '+')
+			position++;
+		long value = 0;
+		int start = position;
+		while (position < limit && buffer[position] >= '0' && buffer[position] <= '9' && position - start <= 10)
+			value = value * 10 + (buffer[position++] - '0');
+		if (position == start || (position < limit && buffer[position] >= '0' && buffer[position] <= '9'))
+			throw error("オペランドが整数として読めない");
+		value = negative ? -value : value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw error("オペランドが int の範囲外");
+		return (int) value;
+	}
+
+	/**
+	 * 改行以外の空白 (空白, タブ, \r) を読み飛ばす
+	 */
+	private void skipBlanks() throws IOException {
+		while (fill(1) && (buffer[position] == ' ' || buffer[position] == '\t' || buffer[position] == '\r'))
+			position++;
+	}
+
+	/**
+	 * 次に調べる位置から少なくとも count バイトが読み込まれているようにする.
+	 * 足りなければ残りをバッファの先頭に詰めて続きを読み込む
+	 * @return count バイトあれば true (ファイルの終わりで足りなければ false)
+	 */
+	private boolean fill(int count) throws IOException {
+		if (limit - position >= count)
+			return true;
+		System.arraycopy(buffer, position, buffer, 0, limit - position);
+		limit -= position;
+		position = 0;
+		while (limit < count) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0)
+				return false;
+			limit += read;
+		}
+		return true;
+	}
+
+	/**
+	 * 今の行の形式の誤りを表す例外を作る
+	 */
+	private IOException error(String message) {
+		return new IOException(file + ":" + line + ": " + message);
+	}
+}
@@ -0,0 +1,206 @@
+package kc;
+
+import java.util.Arrays;
+
+/**
+ * 構文木
+ * 節点は int 配列 (アリーナ) に固定長で並べ, 節点は配列内の番号で参照する.
+ * 一節点は 種類, 値, 子1, 子2, 子3, 次の兄弟 の6要素からなり, 文の並びや因子の並びは次の兄弟でつなぐ.
+ * 変数は構文解析の時点で Dseg 上のアドレスに解決しておくので, コード生成に変数表はいらない.
+ */
+class Ast {
+	/**
+	 * 節点の種類. 括弧内は値と子の使い方
+	 */
+	enum Kind {
+		/** ブロック (子1: 先頭の文) */
+		BLOCK,
+		/** 空文, または何も生成しない式 */
+		EMPTY,
+		/** 式文 (子1: 式) */
+		EXPRESSION_STATEMENT,
+		/** 変数宣言 (子1: 先頭の宣言子) */
+		DECLARATION,
+		/** 初期値の無い変数, 配列の宣言子 */
+		DECLARE,
+		/** 初期値のある変数の宣言子 (値: アドレス, 子1: 初期値の CONSTANT) */
+		DECLARE_INIT,
+		/** 初期値のある配列の宣言子 (値: アドレス, 子1: 先頭の初期値の CONSTANT) */
+		DECLARE_ARRAY_INIT,
+		/** if 文 (子1: 条件式, 子2: 本体) */
+		IF,
+		/** while 文 (子1: 条件式, 子2: 本体) */
+		WHILE,
+		/** for 文 (値: 初期化の式または DECLARATION, 子1: 条件式, 子2: 更新式, 子3: 本体) */
+		FOR,
+		/** outputchar 文 (子1: 式) */
+		OUTPUT_CHAR,
+		/** outputint 文 (子1: 式) */
+		OUTPUT_INT,
+		/** break 文 */
+		BREAK,
+		/** 定数 (値: 定数) */
+		CONSTANT,
+		/** 変数の値 (値: アドレス) */
+		VARIABLE,
+		/** 代入先の変数 (値: アドレス) */
+		VARIABLE_ADDRESS,
+		/** 変数の後置 ++ (値: アドレス) */
+		POST_INCREMENT,
+		/** 変数の後置 -- (値: アドレス) */
+		POST_DECREMENT,
+		/** 変数の前置 ++ (値: アドレス) */
+		PRE_INCREMENT,
+		/** 変数の前置 -- (値: アドレス) */
+		PRE_DECREMENT,
+		/** 配列の要素の値 (値: アドレス, 子1: 添字) */
+		ELEMENT,
+		/** 代入先の配列の要素 (値: アドレス, 子1: 添字) */
+		ELEMENT_ADDRESS,
+		/** 配列の要素の後置 ++, -- (値: アドレス, 子1: 添字, 子2: ++ なら POSTFIX_INCREMENT, -- なら POSTFIX_DECREMENT の和) */
+		ELEMENT_POSTFIX,
+		/** 配列の要素の前置 ++ (値: アドレス, 子1: 添字) */
+		PRE_INCREMENT_ELEMENT,
+		/** 配列の要素の前置 -- (値: アドレス, 子1: 添字) */
+		PRE_DECREMENT_ELEMENT,
+		/** inputint */
+		INPUT_INT,
+		/** inputchar */
+		INPUT_CHAR,
+		/** 括弧で囲んだ式 (子1: 式) */
+		PAREN,
+		/** 単項演算 (値: CSIGN または NOT の ordinal, 子1: 被演算子) */
+		UNARY,
+		/** 算術の二項演算 (値: Operator の ordinal, 子1: 左辺, 子2: 右辺) */
+		BINARY,
+		/** 比較 (値: 比較が真のとき分岐する命令の ordinal, 子1: 左辺, 子2: 右辺) */
+		COMPARE,
+		/** && と || からなる論理式 (子1: 先頭の TERM) */
+		LOGICAL,
+		/** 論理式の && で結ばれた因子の並び (子1: 先頭の因子) */
+		TERM,
+		/** 代入 (値: 複合代入の演算の ordinal, 単純な代入なら -1, 子1: 代入先, 子2: 右辺) */
+		ASSIGN
+	}
+
+	/**
+	 * 節点が無いことを表す番号
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * ELEMENT_POSTFIX の後置 ++ の印
+	 */
+	static final int POSTFIX_INCREMENT = 1;
+
+	/**
+	 * ELEMENT_POSTFIX の後置 -- の印
+	 */
+	static final int POSTFIX_DECREMENT = 2;
+
+	/** 一節点が占める配列要素の数 */
+	private static final int WIDTH = 6;
+	/** 各要素の節点内での位置 */
+	private static final int KIND = 0, VALUE = 1, FIRST = 2, SECOND = 3, THIRD = 4, NEXT = 5;
+	/** 序数から Kind を引く表 */
+	private static final Kind[] KINDS = Kind.values();
+	/** 序数から Operator を引く表 */
+	private static final Operator[] OPERATORS = Operator.values();
+
+	/**
+	 * 節点を並べる配列
+	 */
+	private int[] nodes = new int[WIDTH * 256];
+
+	/**
+	 * 節点の数
+	 */
+	private int count = 0;
+
+	/**
+	 * 節点を追加する
+	 * @return 追加した節点の番号
+	 */
+	int add(Kind kind, int value, int first, int second, int third) {
+		if (WIDTH * (count + 1) > nodes.length)
+			nodes = Arrays.copyOf(nodes, nodes.length * 2);
+		int base = WIDTH * count;
+		nodes[base + KIND] = kind.ordinal();
+		nodes[base + VALUE] = value;
+		nodes[base + FIRST] = first;
+		nodes[base + SECOND] = second;
+		nodes[base + THIRD] = third;
+		nodes[base + NEXT] = NONE;
+		return count++;
+	}
+
+	/**
+	 * 子の無い節点を追加する
+	 */
+	int add(Kind kind, int value) {
+		return add(kind, value, NONE, NONE, NONE);
+	}
+
+	/**
+	 * @return 節点の数
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return 節点の種類
+	 */
+	Kind kind(int node) {
+		return KINDS[nodes[WIDTH * node + KIND]];
+	}
+
+	/**
+	 * @return 節点の値
+	 */
+	int value(int node) {
+		return nodes[WIDTH * node + VALUE];
+	}
+
+	/**
+	 * @return 節点の値を Operator とみなしたもの
+	 */
+	Operator operator(int node) {
+		return OPERATORS[value(node)];
+	}
+
+	/**
+	 * @return 一つ目の子
+	 */
+	int first(int node) {
+		return nodes[WIDTH * node + FIRST];
+	}
+
+	/**
+	 * @return 二つ目の子
+	 */
+	int second(int node) {
+		return nodes[WIDTH * node + SECOND];
+	}
+
+	/**
+	 * @return 三つ目の子
+	 */
+	int third(int node) {
+		return nodes[WIDTH * node + THIRD];
+	}
+
+	/**
+	 * @return 次の兄弟 (無ければ NONE)
+	 */
+	int next(int node) {
+		return nodes[WIDTH * node + NEXT];
+	}
+
+	/**
+	 * 次の兄弟を設定する
+	 */
+	void setNext(int node, int next) {
+		nodes[WIDTH * node + NEXT] = next;
+	}
+}
@@ -0,0 +1,384 @@
+package kc;
+
+import java.util.ArrayList;
+
+/**
+ * Kc が作った構文木からアセンブラコードを生成するクラス
+ * 式と条件式のコードは CodeEmitter で生成し, ソースプログラムに現れる順に命令を並べる.
+ */
+class AstCodeGenerator {
+	/**
+	 * コードを生成する構文木
+	 */
+	private Ast ast;
+
+	/**
+	 * アセンブラコード表
+	 */
+	private PseudoIseg iseg;
+
+	/**
+	 * 式と条件式のコードを生成し, 最適化する
+	 */
+	private CodeEmitter emitter;
+
+	/**
+	 * break文のJUMP命令の番地を記憶する
+	 */
+	private ArrayList<Integer> breakAddrList;
+
+	/**
+	 * 構文木と, コード生成中に最適化するかを引数とするコンストラクタ.
+	 */
+	AstCodeGenerator(Ast ast, boolean optimize) {
+		this.ast = ast;
+		iseg = new PseudoIseg();
+		emitter = new CodeEmitter(iseg, optimize);
+		breakAddrList = new ArrayList<Integer>();
+	}
+
+	/**
+	 * main 関数の本体のブロックからプログラム全体のコードを生成する
+	 * @param block Kc.parseProgram が作った main 関数の本体のブロックの節点
+	 * @return 生成したアセンブラコード表
+	 */
+	PseudoIseg generate(int block) {
+		generateStatement(block);
+		iseg.appendCode(Operator.HALT);
+		return iseg;
+	}
+
+	/**
+	 * 文のコードを生成する
+	 */
+	private void generateStatement(int node) {
+		switch (ast.kind(node)) {
+		case BLOCK:
+			for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement))
+				generateStatement(statement);
+			break;
+		case DECLARATION:
+			generateDeclaration(node);
+			break;
+		case IF:
+			generateIf(node);
+			break;
+		case WHILE:
+			generateWhile(node);
+			break;
+		case FOR:
+			generateFor(node);
+			break;
+		case OUTPUT_CHAR:
+			generateExpression(ast.first(node));
+			iseg.appendCode(Operator.OUTPUTC);
+			iseg.appendCode(Operator.OUTPUTLN);
+			break;
+		case OUTPUT_INT:
+			generateExpression(ast.first(node));
+			iseg.appendCode(Operator.OUTPUT);
+			iseg.appendCode(Operator.OUTPUTLN);
+			break;
+		case BREAK:
+			breakAddrList.add(iseg.appendCode(Operator.JUMP, -1));  //飛び先未定
+			break;
+		case EXPRESSION_STATEMENT:
+			generateExpression(ast.first(node));
+			iseg.appendCode(Operator.REMOVE);
+			break;
+		default:	//空文
+			break;
+		}
+	}
+
+	/**
+	 * 変数宣言のコードを生成する. 初期値のある変数と配列の要素に初期値を代入する
+	 * @return 最後の宣言子が最後に生成した POP 命令の番地 (初期値が無ければ -1). for 文のために返す
+	 */
+	private int generateDeclaration(int node) {
+		int popAddr = -1;
+		for (int declarator = ast.first(node); declarator != Ast.NONE; declarator = ast.next(declarator)) {
+			popAddr = -1;
+			int address = ast.value(declarator);
+			switch (ast.kind(declarator)) {
+			case DECLARE_INIT:
+				iseg.appendCode(Operator.PUSHI, ast.value(ast.first(declarator)));
+				popAddr = iseg.appendCode(Operator.POP, address);
+				break;
+			case DECLARE_ARRAY_INIT:
+				for (int value = ast.first(declarator); value != Ast.NONE; value = ast.next(value)) {
+					iseg.appendCode(Operator.PUSHI, ast.value(value));
+					popAddr = iseg.appendCode(Operator.POP, address++);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return popAddr;
+	}
+
+	/**
+	 * if 文のコードを生成する
+	 */
+	private void generateIf(int node) {
+		ArrayList<Integer> beqAddrList = generateCondition(ast.first(node), false);  //飛び先未定
+		generateStatement(ast.second(node));
+		for (int beqAddr : beqAddrList)
+			iseg.replaceCode(beqAddr, iseg.getLastCodeAddress() + 1);
+	}
+
+	/**
+	 * while 文のコードを生成する
+	 */
+	private void generateWhile(int node) {
+		int lastAddr = iseg.getLastCodeAddress();  //条件式直前の番地を記憶
+		ArrayList<Integer> beqAddrList = generateCondition(ast.first(node), emitter.rotatesLoops());
+
+		if (emitter.rotatesLoops()) {	//条件判定をループの末尾に移す
+			generateRotatedLoop(ast.second(node), lastAddr + 1, beqAddrList, null, 0);
+			return;
+		}
+
+		ArrayList<Integer> outerList = breakAddrList;  //ループに入る前にリストを記憶しておく
+		breakAddrList = new ArrayList<Integer>();
+		generateStatement(ast.second(node));
+		int jumpAddr = iseg.appendCode(Operator.JUMP, lastAddr + 1);  //条件式へJUMP
+		for (int breakAddr : breakAddrList)
+			iseg.replaceCode(breakAddr, jumpAddr + 1);  //ループ外へ
+		breakAddrList = outerList;
+
+		for (int beqAddr : beqAddrList)
+			iseg.replaceCode(beqAddr, jumpAddr + 1);
+	}
+
+	/**
+	 * for 文のコードを生成する
+	 */
+	private void generateFor(int node) {
+		int init = ast.value(node);
+		int removeAddr;
+		if (ast.kind(init) == Ast.Kind.DECLARATION) {
+			removeAddr = generateDeclaration(init);
+		} else {
+			generateExpression(init);
+			removeAddr = iseg.appendCode(Operator.REMOVE);  //条件式直前の番地を記憶
+		}
+
+		int condAddr = iseg.getLastCodeAddress() + 1;  //条件式の先頭の番地
+		ArrayList<Integer> beqAddrList = generateCondition(ast.first(node), emitter.rotatesLoops());
+
+		int jumpAddr = emitter.rotatesLoops() ? -1 : iseg.appendCode(Operator.JUMP, -1);  //飛び先未定
+		int updateAddr = iseg.getLastCodeAddress() + 1;  //更新式の先頭の番地
+		generateExpression(ast.second(node));
+		iseg.appendCode(Operator.REMOVE);
+
+		if (emitter.rotatesLoops()) {	//条件判定をループの末尾に移す
+			PseudoIseg update = iseg.cutTail(updateAddr);
+			generateRotatedLoop(ast.third(node), condAddr, beqAddrList, update, updateAddr);
+			return;
+		}
+
+		int jumpAddr2 = iseg.appendCode(Operator.JUMP, removeAddr + 1);
+
+		ArrayList<Integer> outerList = breakAddrList;  //ループに入る前にリストを記憶しておく
+		breakAddrList = new ArrayList<Integer>();
+		generateStatement(ast.third(node));
+		int jumpAddr3 = iseg.appendCode(Operator.JUMP, jumpAddr + 1);
+		for (int breakAddr : breakAddrList)
+			iseg.replaceCode(breakAddr, jumpAddr + 1);  //更新式へ
+		breakAddrList = outerList;
+
+		for (int beqAddr : beqAddrList)
+			iseg.replaceCode(beqAddr, jumpAddr3 + 1);
+		iseg.replaceCode(jumpAddr, jumpAddr2 + 1);
+	}
+
+	/**
+	 * 条件判定を末尾に置いた while 文, for 文のコードを生成する.
+	 * Kc.parseRotatedLoop と同じく「条件式へ JUMP; 本体; 更新式; 条件式 (真なら本体へ分岐)」の順に並べる
+	 * @param body 本体の文
+	 * @param condAddr 条件式の先頭の番地
+	 * @param beqAddrList 条件式が真のとき分岐する命令の番地のリスト (飛び先未定)
+	 * @param update 更新式のコード (while 文の場合は null)
+	 * @param updateOrigin 更新式のコードを切り取る前の先頭の番地
+	 */
+	private void generateRotatedLoop(int body, int condAddr, ArrayList<Integer> beqAddrList, PseudoIseg update,
+			int updateOrigin) {
+		PseudoIseg condition = iseg.cutTail(condAddr);
+		int jumpAddr = iseg.appendCode(Operator.JUMP, -1);  //条件式へJUMP
+
+		ArrayList<Integer> outerList = breakAddrList;  //ループに入る前にリストを記憶しておく
+		breakAddrList = new ArrayList<Integer>();
+		generateStatement(body);
+
+		int updateAddr = iseg.getLastCodeAddress() + 1;
+		if (update != null)
+			iseg.appendCode(update, 0, update.getLastCodeAddress() + 1, updateOrigin);
+		int testAddr = iseg.appendCode(condition, 0, condition.getLastCodeAddress() + 1, condAddr);
+
+		// for 文の break は更新式へ, while 文の break はループ外へ飛ぶ
+		int breakTarget = update != null ? updateAddr : iseg.getLastCodeAddress() + 1;
+		for (int breakAddr : breakAddrList)
+			iseg.replaceCode(breakAddr, breakTarget);
+		breakAddrList = outerList;
+
+		for (int beqAddr : beqAddrList)
+			iseg.replaceCode(beqAddr - condAddr + testAddr, jumpAddr + 1);  //真なら本体の先頭へ
+		iseg.replaceCode(jumpAddr, testAddr);
+	}
+
+	/**
+	 * if, while, for 文の条件式のコードと, 条件式の真偽によって分岐する命令を飛び先未定 (-1) で生成する.
+	 * 短絡評価の分岐を直接使えるのは, 条件式全体が論理式の場合だけである
+	 * @param jumpWhen 条件式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 飛び先を書き換える分岐命令の番地のリスト
+	 */
+	private ArrayList<Integer> generateCondition(int node, boolean jumpWhen) {
+		int start = iseg.getLastCodeAddress() + 1;  //条件式の先頭の番地
+		ArrayList<Integer> jumps = null;
+		if (ast.kind(node) == Ast.Kind.LOGICAL)
+			jumps = generateLogical(node, true, jumpWhen);
+		else
+			generateExpression(node);
+		return emitter.appendCondition(start, jumps, jumpWhen);
+	}
+
+	/**
+	 * 式のコードを生成する. 式の値を一つスタックに積む (代入先の場合はアドレスを積む)
+	 */
+	private void generateExpression(int node) {
+		int address = ast.value(node);
+		int start = iseg.getLastCodeAddress() + 1;  //式の先頭の番地
+		switch (ast.kind(node)) {
+		case CONSTANT:
+			iseg.appendCode(Operator.PUSHI, address);
+			break;
+		case VARIABLE:
+			iseg.appendCode(Operator.PUSH, address);  //右辺値を積む
+			break;
+		case VARIABLE_ADDRESS:
+			iseg.appendCode(Operator.PUSHI, address);  //左辺値を積む
+			break;
+		case POST_INCREMENT:
+		case POST_DECREMENT:
+			iseg.appendCode(Operator.PUSH, address);
+			iseg.appendCode(Operator.COPY);
+			iseg.appendCode(ast.kind(node) == Ast.Kind.POST_INCREMENT ? Operator.INC : Operator.DEC);
+			iseg.appendCode(Operator.POP, address);
+			break;
+		case PRE_INCREMENT:
+		case PRE_DECREMENT:
+			iseg.appendCode(Operator.PUSH, address);
+			iseg.appendCode(ast.kind(node) == Ast.Kind.PRE_INCREMENT ? Operator.INC : Operator.DEC);
+			iseg.appendCode(Operator.COPY);
+			iseg.appendCode(Operator.POP, address);
+			break;
+		case ELEMENT:
+			generateElementAddress(node);
+			iseg.appendCode(Operator.LOAD);
+			break;
+		case ELEMENT_ADDRESS:
+			generateElementAddress(node);
+			break;
+		case ELEMENT_POSTFIX:
+			generateElementAddress(node);
+			if ((ast.second(node) & Ast.POSTFIX_INCREMENT) != 0) {
+				iseg.appendCode(Operator.COPY);
+				iseg.appendCode(Operator.LOAD);
+				iseg.appendCode(Operator.INC);
+				iseg.appendCode(Operator.ASSGN);
+				iseg.appendCode(Operator.DEC);
+			}
+			if ((ast.second(node) & Ast.POSTFIX_DECREMENT) != 0) {
+				iseg.appendCode(Operator.COPY);
+				iseg.appendCode(Operator.LOAD);
+				iseg.appendCode(Operator.DEC);
+				iseg.appendCode(Operator.ASSGN);
+				iseg.appendCode(Operator.INC);
+			}
+			break;
+		case PRE_INCREMENT_ELEMENT:
+		case PRE_DECREMENT_ELEMENT:
+			generateElementAddress(node);
+			iseg.appendCode(Operator.COPY);
+			iseg.appendCode(Operator.LOAD);
+			iseg.appendCode(ast.kind(node) == Ast.Kind.PRE_INCREMENT_ELEMENT ? Operator.INC : Operator.DEC);
+			iseg.appendCode(Operator.ASSGN);
+			break;
+		case INPUT_INT:
+			iseg.appendCode(Operator.INPUT);
+			break;
+		case INPUT_CHAR:
+			iseg.appendCode(Operator.INPUTC);
+			break;
+		case PAREN:
+			generateExpression(ast.first(node));
+			break;
+		case UNARY:
+			generateExpression(ast.first(node));
+			emitter.appendUnary(start, ast.operator(node));
+			break;
+		case BINARY:
+			generateExpression(ast.first(node));
+			generateExpression(ast.second(node));
+			emitter.appendBinary(start, ast.operator(node));
+			break;
+		case COMPARE:
+			generateExpression(ast.first(node));
+			generateExpression(ast.second(node));
+			emitter.appendCompare(start, ast.operator(node));
+			break;
+		case LOGICAL:
+			generateLogical(node, false, false);
+			break;
+		case ASSIGN:
+			generateExpression(ast.first(node));
+			if (address >= 0) {	//複合代入
+				iseg.appendCode(Operator.COPY);
+				iseg.appendCode(Operator.LOAD);
+			}
+			generateExpression(ast.second(node));
+			if (address >= 0)
+				iseg.appendCode(ast.operator(node));
+			iseg.appendCode(Operator.ASSGN);
+			break;
+		default:	//何も生成しない式
+			break;
+		}
+	}
+
+	/**
+	 * 配列の要素のアドレスを積むコードを生成する
+	 */
+	private void generateElementAddress(int node) {
+		int start = iseg.appendCode(Operator.PUSHI, ast.value(node));
+		generateExpression(ast.first(node));	//添字
+		emitter.appendBinary(start, Operator.ADD);
+	}
+
+	/**
+	 * && と || からなる論理式のコードを生成し, CodeEmitter.rewriteLogical で短絡評価のコードに作り直す
+	 * @param asCondition 条件式として作り直すなら true
+	 * @param jumpWhen 条件式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 条件式として作り直した場合は飛び先を書き換える分岐命令の番地のリスト, それ以外は null
+	 */
+	private ArrayList<Integer> generateLogical(int node, boolean asCondition, boolean jumpWhen) {
+		int start = iseg.getLastCodeAddress() + 1;  //論理式の先頭の番地
+		ArrayList<ArrayList<int[]>> terms = new ArrayList<ArrayList<int[]>>();  //各項の因子のコードの範囲
+		for (int term = ast.first(node); term != Ast.NONE; term = ast.next(term)) {
+			ArrayList<int[]> factors = new ArrayList<int[]>();
+			for (int factor = ast.first(term); factor != Ast.NONE; factor = ast.next(factor)) {
+				int factorStart = iseg.getLastCodeAddress() + 1;
+				generateExpression(factor);
+				factors.add(new int[] {factorStart, iseg.getLastCodeAddress() + 1});
+				if (factors.size() > 1)
+					iseg.appendCode(Operator.AND);
+			}
+			terms.add(factors);
+			if (terms.size() > 1)
+				iseg.appendCode(Operator.OR);
+		}
+		return emitter.rewriteLogical(start, terms, asCondition, jumpWhen);
+	}
+}
@@ -0,0 +1,120 @@
+package kc;
+
+import java.util.ArrayList;
+
+/**
+ * 基本ブロック
+ * PseudoIseg の連続した命令 (start 番地から end 番地の手前まで) で, 途中に分岐も飛び込みも無いもの.
+ * 分岐命令は末尾の命令にだけ現れる.
+ */
+class BasicBlock {
+	/**
+	 * 制御フローグラフ内での通し番号 (元の命令列での並び順)
+	 */
+	private int index;
+
+	/**
+	 * 先頭の命令の番地
+	 */
+	private int start;
+
+	/**
+	 * 最後の命令の次の番地
+	 */
+	private int end;
+
+	/**
+	 * 先行ブロック
+	 */
+	ArrayList<BasicBlock> predecessors = new ArrayList<BasicBlock>();
+
+	/**
+	 * 後続ブロック. 条件分岐で終わるブロックでは, 分岐しないときの後続が先に並ぶ
+	 */
+	ArrayList<BasicBlock> successors = new ArrayList<BasicBlock>();
+
+	/**
+	 * 直接支配するブロック (入口のブロックと到達しないブロックでは null)
+	 */
+	BasicBlock immediateDominator;
+
+	/**
+	 * 逆後順での番号 (到達しないブロックでは -1)
+	 */
+	int reversePostorder = -1;
+
+	/**
+	 * このブロックを含む最も内側のループ (ループに含まれなければ null)
+	 */
+	Loop loop;
+
+	/**
+	 * 支配木を深さ優先で辿ったときの行きがけと帰りがけの番号 (支配関係の判定に使う)
+	 */
+	int preorder = -1, postorder = -1;
+
+	/**
+	 * 各フィールドを引数で与えられたもので初期化する
+	 */
+	BasicBlock(int index, int start, int end) {
+		this.index = index;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return 制御フローグラフ内での通し番号
+	 */
+	int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return 先頭の命令の番地
+	 */
+	int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return 最後の命令の次の番地
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return 最後の命令の番地
+	 */
+	int getLast() {
+		return end - 1;
+	}
+
+	/**
+	 * @return 入口から到達するブロックなら true
+	 */
+	boolean isReachable() {
+		return reversePostorder >= 0;
+	}
+
+	/**
+	 * このブロックが block を支配するか (入口から block への経路が必ずこのブロックを通るか) を判定する.
+	 * ブロックは自分自身を支配する
+	 */
+	boolean dominates(BasicBlock block) {
+		return preorder >= 0 && block.preorder >= 0
+				&& preorder <= block.preorder && block.postorder <= postorder;
+	}
+
+	/**
+	 * @return ループに含まれる深さ (ループの外なら 0)
+	 */
+	int getLoopDepth() {
+		return loop == null ? 0 : loop.getDepth();
+	}
+
+	@Override
+	public String toString() {
+		return "B" + index + "[" + start + "," + end + ")";
+	}
+}
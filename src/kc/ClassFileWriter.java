@@ -0,0 +1,239 @@
+package kc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+
+/**
+ * JVM のクラスファイルを組み立てるクラス
+ * LoopCompiler が VSM のループを翻訳したクラスを作るのに必要なだけの機能
+ * (定数プール, インタフェースの実装, StackMapTable 付きのメソッド) を持つ.
+ * 形式は Java 仮想機械仕様の第4章による.
+ */
+class ClassFileWriter {
+	/** クラスファイルの版 (Java 8). 分岐先ごとに StackMapTable のフレームが要る */
+	private static final int MAJOR_VERSION = 52;
+
+	/* アクセス修飾子 */
+	static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+	/* 定数プールの項目の種類 */
+	private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_LONG = 5, CONSTANT_CLASS = 7,
+			CONSTANT_METHODREF = 10, CONSTANT_NAME_AND_TYPE = 12;
+
+	/**
+	 * 定数プールの中身
+	 */
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+
+	/**
+	 * 次に登録する定数プールの番号 (1 から)
+	 */
+	private int poolCount = 1;
+
+	/**
+	 * 登録済みの定数から番号への表. 同じ定数を二度登録しない
+	 */
+	private HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+	/**
+	 * メソッドの表の中身と, メソッドの数
+	 */
+	private ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount;
+
+	/**
+	 * このクラス, 親クラス, 実装するインタフェースの定数プールの番号
+	 */
+	private int thisClass, superClass, interfaceClass;
+
+	/**
+	 * クラスの名前 (内部形式 "kc/Name"), 親クラス, 実装するインタフェースを引数とするコンストラクタ
+	 */
+	ClassFileWriter(String name, String superName, String interfaceName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+		interfaceClass = classRef(interfaceName);
+	}
+
+	/**
+	 * @return このクラスの定数プールの番号 (StackMapTable のフレームで this の型に使う)
+	 */
+	int getThisClass() {
+		return thisClass;
+	}
+
+	/**
+	 * 文字列 (CONSTANT_Utf8) を登録する
+	 * @return 定数プールの番号
+	 */
+	int utf8(String value) {
+		Integer index = poolIndex.get("U" + value);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(CONSTANT_UTF8);
+			pool.writeUTF(value);
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		return register("U" + value, 1);
+	}
+
+	/**
+	 * クラス (CONSTANT_Class) を登録する
+	 * @param name 内部形式の名前. 配列なら記述子
+	 */
+	int classRef(String name) {
+		Integer index = poolIndex.get("C" + name);
+		if (index != null)
+			return index;
+		int nameIndex = utf8(name);
+		write(CONSTANT_CLASS, nameIndex, -1);
+		return register("C" + name, 1);
+	}
+
+	/**
+	 * メソッドの参照 (CONSTANT_Methodref) を登録する
+	 */
+	int methodRef(String owner, String name, String descriptor) {
+		String key = "M" + owner + "." + name + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index != null)
+			return index;
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+		int nameAndType = register("N" + name + descriptor, 1);
+		write(CONSTANT_METHODREF, ownerIndex, nameAndType);
+		return register(key, 1);
+	}
+
+	/**
+	 * int の定数 (CONSTANT_Integer) を登録する
+	 */
+	int integer(int value) {
+		Integer index = poolIndex.get("I" + value);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(CONSTANT_INTEGER);
+			pool.writeInt(value);
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		return register("I" + value, 1);
+	}
+
+	/**
+	 * long の定数 (CONSTANT_Long) を登録する. 定数プールの番号を二つ使う
+	 */
+	int longConstant(long value) {
+		Integer index = poolIndex.get("J" + value);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(CONSTANT_LONG);
+			pool.writeLong(value);
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		return register("J" + value, 2);
+	}
+
+	/**
+	 * 二つの番号を参照する項目を定数プールに書く (second が負なら一つ)
+	 */
+	private void write(int tag, int first, int second) {
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0)
+				pool.writeShort(second);
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+	}
+
+	/**
+	 * 書いた項目に番号を付ける
+	 * @param size 項目が使う番号の数
+	 */
+	private int register(String key, int size) {
+		int index = poolCount;
+		poolCount += size;
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	/**
+	 * メソッドを加える
+	 * @param access アクセス修飾子
+	 * @param code 本体. 書き終えたもの
+	 * @param maxStack オペランドスタックの最大の深さ
+	 * @param maxLocals 局所変数の数
+	 */
+	void addMethod(int access, String name, String descriptor, CodeBuffer code, int maxStack, int maxLocals) {
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int codeIndex = utf8("Code");
+		byte[] frames = code.getStackMapTable();
+		int framesIndex = frames != null ? utf8("StackMapTable") : 0;
+		try {
+			methods.writeShort(access);
+			methods.writeShort(nameIndex);
+			methods.writeShort(descriptorIndex);
+			methods.writeShort(1);	//属性は Code だけ
+			methods.writeShort(codeIndex);
+			int attributeLength = 2 + 2 + 4 + code.getLength() + 2 + 2
+					+ (frames != null ? 2 + 4 + frames.length : 0);
+			methods.writeInt(attributeLength);
+			methods.writeShort(maxStack);
+			methods.writeShort(maxLocals);
+			methods.writeInt(code.getLength());
+			code.writeTo(methods);
+			methods.writeShort(0);	//例外表
+			methods.writeShort(frames != null ? 1 : 0);
+			if (frames != null) {
+				methods.writeShort(framesIndex);
+				methods.writeInt(frames.length);
+				methods.write(frames);
+			}
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		methodCount++;
+	}
+
+	/**
+	 * @return 組み立てたクラスファイル
+	 */
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolCount);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(interfaceClass);
+			out.writeShort(0);	//フィールド
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0);	//クラスの属性
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		return bytes.toByteArray();
+	}
+}
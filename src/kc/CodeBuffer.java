@@ -0,0 +1,270 @@
+package kc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * JVM のメソッドの本体 (バイトコード) を書くバッファ
+ * 分岐先はラベルの番号で指定し, 位置が決まったところで分岐命令のオフセットを埋める.
+ * StackMapTable のフレームは, ラベルの位置と無条件の分岐の直後の位置に置く.
+ * フレームではオペランドスタックは常に空, 局所変数の型は setFrameLocals で与えたものとする
+ * (使う局所変数はすべてメソッドの先頭で初期化しておくこと).
+ */
+class CodeBuffer {
+	/* 使う命令のオペコード */
+	static final int ICONST_0 = 0x03, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14,
+			ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, IALOAD = 0x2e, LALOAD = 0x2f,
+			ISTORE = 0x36, LSTORE = 0x37, IASTORE = 0x4f, LASTORE = 0x50, DUP = 0x59,
+			IADD = 0x60, LADD = 0x61, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IREM = 0x70, INEG = 0x74,
+			IUSHR = 0x7c, IAND = 0x7e, IOR = 0x80, IXOR = 0x82, IINC = 0x84, I2L = 0x85, LCMP = 0x94,
+			IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, IF_ICMPGE = 0xa2,
+			GOTO = 0xa7, LRETURN = 0xad, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+			ARRAYLENGTH = 0xbe;
+
+	/**
+	 * 書いたバイトコード
+	 */
+	private byte[] code = new byte[1024];
+
+	/**
+	 * 書いたバイト数
+	 */
+	private int length;
+
+	/**
+	 * 各ラベルの位置. 決まっていなければ -1
+	 */
+	private int[] labels = new int[64];
+
+	/**
+	 * 作ったラベルの数
+	 */
+	private int labelCount;
+
+	/**
+	 * 位置が決まっていないラベルへの分岐: オフセットを書く位置, 分岐命令の位置, ラベルの番号
+	 */
+	private int[] fixups = new int[192];
+	private int fixupCount;
+
+	/**
+	 * フレームを置く位置
+	 */
+	private int[] frames = new int[64];
+	private int frameCount;
+
+	/**
+	 * 直前の命令が無条件の分岐か return なら true
+	 */
+	private boolean unreachable;
+
+	/**
+	 * フレームの局所変数の型 (verification_type_info を並べたもの) とその数
+	 */
+	private byte[] frameLocals;
+	private int frameLocalCount;
+
+	/**
+	 * @return 書いたバイト数
+	 */
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * フレームの局所変数の型を設定する
+	 * @param locals verification_type_info を並べたもの
+	 * @param count 型の数 (long は一つと数える)
+	 */
+	void setFrameLocals(byte[] locals, int count) {
+		frameLocals = locals;
+		frameLocalCount = count;
+	}
+
+	/**
+	 * @return 新しいラベルの番号
+	 */
+	int newLabel() {
+		if (labelCount == labels.length)
+			labels = Arrays.copyOf(labels, labelCount * 2);
+		labels[labelCount] = -1;
+		return labelCount++;
+	}
+
+	/**
+	 * ラベルの位置を今の位置に決める
+	 */
+	void bind(int label) {
+		labels[label] = length;
+		addFrame();
+		unreachable = false;
+	}
+
+	/**
+	 * オペランドの無い命令を書く
+	 */
+	void op(int opcode) {
+		reach();
+		put(opcode);
+		if (opcode == LRETURN || opcode == RETURN)
+			unreachable = true;
+	}
+
+	/**
+	 * 局所変数を使う命令 (ILOAD など) を書く
+	 */
+	void local(int opcode, int index) {
+		reach();
+		put(opcode);
+		put(index);
+	}
+
+	/**
+	 * IINC を書く
+	 */
+	void iinc(int index, int delta) {
+		reach();
+		put(IINC);
+		put(index);
+		put(delta);
+	}
+
+	/**
+	 * 定数プールを参照する命令 (LDC_W, LDC2_W, INVOKESTATIC など) を書く
+	 */
+	void constant(int opcode, int index) {
+		reach();
+		put(opcode);
+		put(index >> 8);
+		put(index);
+	}
+
+	/**
+	 * int の定数を積む最も短い命令を書く
+	 */
+	void pushInt(ClassFileWriter classFile, int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			reach();
+			put(BIPUSH);
+			put(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			reach();
+			put(SIPUSH);
+			put(value >> 8);
+			put(value);
+		} else {
+			constant(LDC_W, classFile.integer(value));
+		}
+	}
+
+	/**
+	 * 分岐命令を書く
+	 */
+	void jump(int opcode, int label) {
+		reach();
+		int position = length;
+		put(opcode);
+		if (labels[label] >= 0) {
+			int offset = labels[label] - position;
+			put(offset >> 8);
+			put(offset);
+		} else {
+			if (fixupCount + 3 > fixups.length)
+				fixups = Arrays.copyOf(fixups, fixups.length * 2);
+			fixups[fixupCount++] = length;
+			fixups[fixupCount++] = position;
+			fixups[fixupCount++] = label;
+			put(0);
+			put(0);
+		}
+		if (opcode == GOTO)
+			unreachable = true;
+	}
+
+	/**
+	 * 分岐のオフセットを埋める. 位置が決まっていないラベルがあれば IllegalStateException
+	 */
+	private void resolve() {
+		for (int i = 0; i < fixupCount; i += 3) {
+			int target = labels[fixups[i + 2]];
+			if (target < 0)
+				throw new IllegalStateException("位置が決まっていないラベル " + fixups[i + 2]);
+			int offset = target - fixups[i + 1];
+			code[fixups[i]] = (byte) (offset >> 8);
+			code[fixups[i] + 1] = (byte) offset;
+		}
+		fixupCount = 0;
+	}
+
+	/**
+	 * 無条件の分岐の直後に命令を書くときは, その位置にフレームを置く
+	 */
+	private void reach() {
+		if (unreachable) {
+			addFrame();
+			unreachable = false;
+		}
+	}
+
+	/**
+	 * 今の位置にフレームを置く (同じ位置には一つだけ)
+	 */
+	private void addFrame() {
+		if (frameCount > 0 && frames[frameCount - 1] == length)
+			return;
+		if (frameCount == frames.length)
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		frames[frameCount++] = length;
+	}
+
+	/**
+	 * 1バイト書く
+	 */
+	private void put(int value) {
+		if (length == code.length)
+			code = Arrays.copyOf(code, length * 2);
+		code[length++] = (byte) value;
+	}
+
+	/**
+	 * 分岐のオフセットを埋めてからバイトコードを書き出す
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		resolve();
+		out.write(code, 0, length);
+	}
+
+	/**
+	 * StackMapTable 属性の中身を作る. フレームが無ければ null.
+	 * どのフレームも局所変数を全部並べた full_frame にする
+	 */
+	byte[] getStackMapTable() {
+		// メソッドの末尾に置かれた (命令の無い) フレームは除く
+		while (frameCount > 0 && frames[frameCount - 1] >= length)
+			frameCount--;
+		if (frameCount == 0)
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(frameCount);
+			int previous = -1;
+			for (int i = 0; i < frameCount; i++) {
+				out.writeByte(255);	//full_frame
+				out.writeShort(frames[i] - previous - 1);
+				out.writeShort(frameLocalCount);
+				out.write(frameLocals);
+				out.writeShort(0);	//オペランドスタックは空
+				previous = frames[i];
+			}
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,324 @@
+package kc;
+
+import java.util.ArrayList;
+
+/**
+ * 式と条件式のコードを PseudoIseg に生成するクラス
+ * 構文木からコードを生成する AstCodeGenerator が使う.
+ * 定数の畳み込み, 比較の分岐への融合, 短絡評価は, 直前に生成したコードを見て書き換えることで行う.
+ */
+class CodeEmitter {
+	/**
+	 * コードを生成する表
+	 */
+	private PseudoIseg iseg;
+
+	/**
+	 * 定数だけからなる式をコンパイル時に計算するかを示す
+	 */
+	private boolean foldConstants;
+
+	/**
+	 * if, while, for 文の条件式の比較を条件分岐命令に直接つなげるかを示す
+	 */
+	private boolean fuseBranches;
+
+	/**
+	 * && と || を短絡評価するかを示す
+	 */
+	private boolean shortCircuit;
+
+	/**
+	 * while, for 文の条件判定をループの末尾に置くかを示す
+	 */
+	private boolean rotateLoops;
+
+	/**
+	 * コードを生成する表と, 最適化するかを引数とするコンストラクタ
+	 */
+	CodeEmitter(PseudoIseg iseg, boolean optimize) {
+		this.iseg = iseg;
+		foldConstants = optimize;
+		fuseBranches = optimize;
+		shortCircuit = optimize;
+		rotateLoops = optimize;
+	}
+
+	/**
+	 * @return while, for 文の条件判定をループの末尾に置くなら true
+	 */
+	boolean rotatesLoops() {
+		return rotateLoops;
+	}
+
+	/**
+	 * start 番地から count 個の定数 (PUSHI) だけが積まれていて, それらを畳み込めるかを返す
+	 * @param start 被演算子の先頭の番地
+	 * @param count 被演算子の数
+	 */
+	boolean isConstant(int start, int count) {
+		if (!foldConstants || iseg.getLastCodeAddress() != start + count - 1)
+			return false;
+		for (int i = start; i < start + count; i++) {
+			if (!iseg.checkOperator(i, Operator.PUSHI))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 二項演算のコードを生成する.
+	 * start 番地からの左辺と右辺がともに定数なら, 計算結果を積む一命令に置き換える.
+	 * ただし0による除算は実行時に行う
+	 * @param start 左辺の先頭の番地
+	 * @param operator 演算
+	 */
+	void appendBinary(int start, Operator operator) {
+		if (isConstant(start, 2) && !((operator == Operator.DIV || operator == Operator.MOD)
+				&& iseg.getOperand(start + 1) == 0)) {
+			int value = PeepholeOptimizer.fold(operator, iseg.getOperand(start), iseg.getOperand(start + 1));
+			iseg.removeLastCode();
+			iseg.replaceCode(start, value);
+		} else iseg.appendCode(operator);
+	}
+
+	/**
+	 * 単項演算のコードを生成する.
+	 * start 番地からの被演算子が定数なら, 計算結果を積む一命令に置き換える.
+	 * @param start 被演算子の先頭の番地
+	 * @param operator 演算
+	 */
+	void appendUnary(int start, Operator operator) {
+		if (isConstant(start, 1))
+			iseg.replaceCode(start, PeepholeOptimizer.fold(operator, iseg.getOperand(start)));
+		else iseg.appendCode(operator);
+	}
+
+	/**
+	 * 比較のコード (COMP; Bxx c+4; PUSHI 0; JUMP c+5; PUSHI 1) を生成する.
+	 * start 番地からの両辺がともに定数なら, 比較結果を積む一命令に置き換える.
+	 * @param start 左辺の先頭の番地
+	 * @param branch 比較が真のとき分岐する命令 (BEQ, BNE, BLT, BGT)
+	 */
+	void appendCompare(int start, Operator branch) {
+		if (isConstant(start, 2)) {	//両辺が定数なら比較結果を積む
+			int left = iseg.getOperand(start);
+			int right = iseg.getOperand(start + 1);
+			boolean result = PeepholeOptimizer.branches(branch, Integer.compare(left, right));
+			iseg.removeLastCode();
+			iseg.replaceCode(start, result ? 1 : 0);
+			return;
+		}
+
+		int compAddr = iseg.appendCode(Operator.COMP);
+		iseg.appendCode(branch, compAddr + 4);
+		iseg.appendCode(Operator.PUSHI, 0);
+		iseg.appendCode(Operator.JUMP, compAddr + 5);
+		iseg.appendCode(Operator.PUSHI, 1);
+	}
+
+	/**
+	 * start 番地から生成した論理式 (&& で結ばれた因子の並び (項) を || で結んだもの) を,
+	 * 評価を省略しうる因子に副作用が無ければ短絡評価のコードに作り直す.
+	 * 条件式として作り直した場合は, 論理式の真偽が jumpWhen と一致すると決まった時点で飛び先未定の分岐をする.
+	 * そうでなければ論理式の値 (真なら1, 偽なら0) を積む.
+	 * @param start 論理式の先頭の番地
+	 * @param terms 各項の因子のコードの範囲 {先頭の番地, 末尾の次の番地}
+	 * @param asCondition 条件式として作り直すなら true
+	 * @param jumpWhen 条件式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 条件式として作り直した場合は飛び先を書き換える分岐命令の番地のリスト, それ以外は null
+	 */
+	ArrayList<Integer> rewriteLogical(int start, ArrayList<ArrayList<int[]>> terms, boolean asCondition,
+			boolean jumpWhen) {
+		if (!shortCircuit || (terms.size() == 1 && terms.get(0).size() == 1) || !isSkippable(terms))
+			return null;
+		PseudoIseg code = iseg.cutTail(start);
+		if (asCondition)
+			return appendShortCircuit(code, start, terms, jumpWhen);
+
+		ArrayList<Integer> falseJumps = appendShortCircuit(code, start, terms, false);	//真なら1, 偽なら0を積む
+		iseg.appendCode(Operator.PUSHI, 1);
+		if (!falseJumps.isEmpty()) {
+			int jumpAddr = iseg.appendCode(Operator.JUMP, -1);
+			int falseAddr = iseg.appendCode(Operator.PUSHI, 0);
+			for (int falseJump : falseJumps)
+				iseg.replaceCode(falseJump, falseAddr);
+			iseg.replaceCode(jumpAddr, falseAddr + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * start 番地から生成した条件式の値によって分岐する命令を, 飛び先未定 (-1) で生成する.
+	 * 条件式を短絡評価のコードに作り直していれば (jumps が null でなければ) 何もしない
+	 * @param start 条件式の先頭の番地
+	 * @param jumps rewriteLogical が返した分岐命令の番地のリスト
+	 * @param jumpWhen 条件式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 飛び先を書き換える分岐命令の番地のリスト
+	 */
+	ArrayList<Integer> appendCondition(int start, ArrayList<Integer> jumps, boolean jumpWhen) {
+		if (jumps == null) {	//短絡評価のコードでなければ, 条件式の値で分岐する
+			jumps = new ArrayList<Integer>();
+			addJump(jumps, appendConditionalJump(start, jumpWhen));
+		}
+		return jumps;
+	}
+
+	/**
+	 * 論理式の先頭の因子以外 (短絡評価で評価を省略しうる因子) のコードに副作用が無いかを返す.
+	 * 代入, 入出力と, 実行時エラーで停止しうる命令 (0 以外の定数によらない除算,
+	 * Dseg の範囲内の定数でない番地からの読み出し) を副作用とみなす
+	 * @param terms 各項の因子のコードの範囲
+	 */
+	private boolean isSkippable(ArrayList<ArrayList<int[]>> terms) {
+		int start = terms.get(0).get(0)[0];
+		for (int t = 0; t < terms.size(); t++) {
+			for (int f = (t == 0 ? 1 : 0); f < terms.get(t).size(); f++) {
+				int[] range = terms.get(t).get(f);
+				for (int i = range[0]; i < range[1]; i++) {
+					switch (iseg.getOperator(i)) {
+						case ASSGN: case POP: case INPUT: case INPUTC:
+						case OUTPUT: case OUTPUTC: case OUTPUTLN: case HALT:
+							return false;
+						case DIV: case MOD:
+							if (!isConstantOperand(start, i) || iseg.getOperand(i - 1) == 0)
+								return false;
+							break;
+						case LOAD:
+							if (!isConstantOperand(start, i) || iseg.getOperand(i - 1) < 0
+									|| iseg.getOperand(i - 1) >= Vsm.DEFAULT_DATA_SIZE)
+								return false;
+							break;
+						default:
+							break;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * addr 番地の命令が使うスタックの先頭の値が, 直前の PUSHI が積んだ定数に決まるかを返す.
+	 * 比較の真偽値を積むコード (末尾が PUSHI 1) のように, その PUSHI か addr 番地に飛び込む分岐があれば決まらない
+	 * @param start 分岐を探す範囲の先頭の番地
+	 * @param addr 命令の番地
+	 */
+	private boolean isConstantOperand(int start, int addr) {
+		return addr > start && iseg.checkOperator(addr - 1, Operator.PUSHI) && !hasJumpInto(start, addr - 1, addr);
+	}
+
+	/**
+	 * 論理式を短絡評価するコードを生成する.
+	 * 各因子のコードは code の中にある (code の 0 番地を origin 番地とみなした範囲で terms に記録してある).
+	 * 論理式の真偽が jumpWhen と一致すると決まった時点で飛び先未定の分岐をし,
+	 * そうでなければ論理式の直後に進む.
+	 * @param jumpWhen 論理式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 飛び先を書き換える分岐命令の番地のリスト
+	 */
+	private ArrayList<Integer> appendShortCircuit(PseudoIseg code, int origin, ArrayList<ArrayList<int[]>> terms,
+			boolean jumpWhen) {
+		ArrayList<Integer> trueJumps = new ArrayList<Integer>();	//論理式が真のとき
+		ArrayList<Integer> falseJumps = new ArrayList<Integer>();	//論理式が偽のとき
+		for (int t = 0; t < terms.size(); t++) {
+			boolean lastTerm = t == terms.size() - 1;
+			ArrayList<Integer> nextJumps = new ArrayList<Integer>();	//次の項へ
+			ArrayList<int[]> factors = terms.get(t);
+			for (int f = 0; f < factors.size(); f++) {
+				int[] range = factors.get(f);
+				int start = iseg.appendCode(code, range[0] - origin, range[1] - origin, origin);
+				boolean lastFactor = f == factors.size() - 1;
+				if (lastFactor && (!lastTerm || jumpWhen)) {	//項の最後の因子が真なら論理式は真
+					addJump(trueJumps, appendConditionalJump(start, true));
+				} else if (lastTerm) {	//最後の項の因子が偽なら論理式は偽
+					addJump(falseJumps, appendConditionalJump(start, false));
+				} else {	//項の因子が偽なら次の項へ
+					addJump(nextJumps, appendConditionalJump(start, false));
+				}
+			}
+			for (int nextJump : nextJumps)
+				iseg.replaceCode(nextJump, iseg.getLastCodeAddress() + 1);
+		}
+		// 分岐しない側は論理式の直後へ
+		ArrayList<Integer> fallJumps = jumpWhen ? falseJumps : trueJumps;
+		for (int fallJump : fallJumps)
+			iseg.replaceCode(fallJump, iseg.getLastCodeAddress() + 1);
+		return jumpWhen ? trueJumps : falseJumps;
+	}
+
+	/**
+	 * 分岐命令の番地をリストに追加する. 分岐命令が無い (-1) 場合は何もしない
+	 */
+	private static void addJump(ArrayList<Integer> jumps, int addr) {
+		if (addr >= 0)
+			jumps.add(addr);
+	}
+
+	/**
+	 * 直前に生成した条件式の値によって分岐する命令を, 飛び先未定 (-1) で生成する.
+	 * 条件式の末尾が比較なら, 真偽値を積むコードを除いて COMP の直後に条件分岐命令を置く.
+	 * 末尾が NOT なら NOT を除いて分岐の条件を反転し, 定数なら JUMP にするか分岐を省く.
+	 * ただし条件式の中から書き換える命令 (とその直後) に飛び込む分岐があれば書き換えない
+	 * @param start 条件式の先頭の番地
+	 * @param jumpWhen 条件式が真のとき分岐するなら true, 偽のとき分岐するなら false
+	 * @return 飛び先を書き換える分岐命令の番地. 分岐しない場合は -1
+	 */
+	private int appendConditionalJump(int start, boolean jumpWhen) {
+		if (!fuseBranches)
+			return iseg.appendCode(jumpWhen ? Operator.BNE : Operator.BEQ, -1);
+
+		int last = iseg.getLastCodeAddress();
+		while (last > start && iseg.checkOperator(last, Operator.NOT)
+				&& !hasJumpInto(start, last, last + 1, -1)) {	//否定は分岐の条件を反転する
+			iseg.removeLastCode();
+			last--;
+			jumpWhen = !jumpWhen;
+		}
+
+		// 比較: COMP; Bxx c+4; PUSHI 0; JUMP c+5; PUSHI 1
+		int compAddr = last - 4;
+		if (compAddr >= start && iseg.checkOperator(compAddr, Operator.COMP)
+				&& iseg.getOperator(compAddr + 1).isConditionalBranch()
+				&& iseg.getOperand(compAddr + 1) == compAddr + 4
+				&& iseg.checkOperator(compAddr + 2, Operator.PUSHI) && iseg.getOperand(compAddr + 2) == 0
+				&& iseg.checkOperator(compAddr + 3, Operator.JUMP) && iseg.getOperand(compAddr + 3) == compAddr + 5
+				&& iseg.checkOperator(compAddr + 4, Operator.PUSHI) && iseg.getOperand(compAddr + 4) == 1
+				&& !hasJumpInto(start, compAddr + 1, compAddr + 5, compAddr + 1, compAddr + 3)) {
+			Operator branch = iseg.getOperator(compAddr + 1);
+			for (int i = 0; i < 3; i++)
+				iseg.removeLastCode();
+			iseg.replaceCode(compAddr + 1, jumpWhen ? branch : branch.invertBranch(), -1);
+			return compAddr + 1;
+		}
+
+		// 定数: 必ず分岐するなら JUMP, 決して分岐しないなら何も置かない
+		if (iseg.checkOperator(last, Operator.PUSHI) && !hasJumpInto(start, last, last + 1, -1)) {
+			if ((iseg.getOperand(last) != 0) == jumpWhen) {
+				iseg.replaceCode(last, Operator.JUMP, -1);
+				return last;
+			}
+			iseg.removeLastCode();
+			return -1;
+		}
+
+		return iseg.appendCode(jumpWhen ? Operator.BNE : Operator.BEQ, -1);
+	}
+
+	/**
+	 * start 番地から最後の命令までの分岐命令 (ignore の番地の命令を除く) に,
+	 * from 番地から to 番地までのいずれかに飛ぶものがあるかを返す
+	 */
+	private boolean hasJumpInto(int start, int from, int to, int... ignore) {
+		for (int i = start; i <= iseg.getLastCodeAddress(); i++) {
+			int target = iseg.getOperand(i);
+			if (!iseg.getOperator(i).isJump() || target < from || target > to)
+				continue;
+			boolean ignored = false;
+			for (int addr : ignore)
+				ignored |= addr == i;
+			if (!ignored)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,30 @@
+package kc;
+
+/**
+ * コンパイル中にエラーを検出したときに投げる例外
+ * コンパイルを中断して, 検出したエラーを呼び出し元に伝える.
+ */
+class CompileException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 検出したエラー
+	 */
+	private Diagnostic diagnostic;
+
+	/**
+	 * 検出したエラーを引数とするコンストラクタ
+	 */
+	CompileException(Diagnostic diagnostic) {
+		super(diagnostic.toString(), null, false, false);
+		this.diagnostic = diagnostic;
+	}
+
+	/**
+	 * フィールドdiagnosticのゲッター
+	 * @return diagnostic
+	 */
+	Diagnostic getDiagnostic() {
+		return diagnostic;
+	}
+}
@@ -0,0 +1,141 @@
+package kc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Kc.compile の結果を表すクラス
+ * コンパイルに成功した場合は生成した命令列を, 失敗した場合は検出したエラーを保持する.
+ */
+public class CompileResult {
+	/**
+	 * 生成した命令列. 失敗した場合は null
+	 */
+	private PseudoIseg iseg;
+
+	/**
+	 * 命令列が使う Dseg の語数. 失敗した場合は 0
+	 */
+	private int dataSize;
+
+	/**
+	 * 検出したエラー. 成功した場合は null
+	 */
+	private Diagnostic diagnostic;
+
+	/**
+	 * ソースプログラムの行数. 読み込めなかった場合は 0
+	 */
+	private int lineCount;
+
+	/**
+	 * 構文解析と最適化のパスの記録. 失敗した場合は null
+	 */
+	private PassManager passes;
+
+	/**
+	 * 各フィールドを引数で与えられたもので初期化する
+	 */
+	private CompileResult(PseudoIseg iseg, int dataSize, Diagnostic diagnostic, int lineCount, PassManager passes) {
+		this.iseg = iseg;
+		this.dataSize = dataSize;
+		this.diagnostic = diagnostic;
+		this.lineCount = lineCount;
+		this.passes = passes;
+	}
+
+	/**
+	 * 成功したコンパイルの結果を作る
+	 * @param iseg 生成した命令列
+	 * @param dataSize 命令列が使う Dseg の語数
+	 * @param lineCount ソースプログラムの行数
+	 * @param passes 構文解析と最適化のパスの記録
+	 */
+	static CompileResult success(PseudoIseg iseg, int dataSize, int lineCount, PassManager passes) {
+		return new CompileResult(iseg, dataSize, null, lineCount, passes);
+	}
+
+	/**
+	 * 失敗したコンパイルの結果を作る
+	 * @param diagnostic 検出したエラー
+	 * @param lineCount ソースプログラムの行数
+	 */
+	static CompileResult failure(Diagnostic diagnostic, int lineCount) {
+		return new CompileResult(null, 0, diagnostic, lineCount, null);
+	}
+
+	/**
+	 * ソースプログラムの行数を返す. 読み込めなかった場合は 0 を返す
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * コンパイルに成功していれば true を返す
+	 */
+	public boolean isSuccess() {
+		return diagnostic == null;
+	}
+
+	/**
+	 * 検出したエラーを返す. 成功していれば null を返す
+	 */
+	public Diagnostic getDiagnostic() {
+		return diagnostic;
+	}
+
+	/**
+	 * 生成した命令の数を返す. 失敗していれば 0 を返す
+	 */
+	public int getInstructionCount() {
+		return iseg == null ? 0 : iseg.getLastCodeAddress() + 1;
+	}
+
+	/**
+	 * 命令列が使う Dseg の語数を返す. 失敗していれば 0 を返す
+	 */
+	public int getDataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * 生成したアセンブラコードを, dump2file が出力するものと同じ形式の文字列で返す.
+	 * 失敗していれば null を返す
+	 */
+	public String getAssembly() {
+		if (iseg == null)
+			return null;
+		StringBuilder assembly = new StringBuilder();
+		String lineSeparator = System.lineSeparator();
+		for (int i = 0; i <= iseg.getLastCodeAddress(); i++)
+			assembly.append(iseg.getInstruction(i).printInstruction()).append(lineSeparator);
+		return assembly.toString();
+	}
+
+	/**
+	 * 生成した命令列を VSM のオブジェクトファイル (VsmObject の形式) に書き出す
+	 * @throws IllegalStateException コンパイルに失敗していたとき
+	 * @throws IOException 書き出せないとき
+	 */
+	public void writeObject(Path file) throws IOException {
+		if (iseg == null)
+			throw new IllegalStateException("コンパイルに失敗した結果は書き出せません");
+		VsmObject.write(iseg, dataSize, file);
+	}
+
+	/**
+	 * 構文解析と最適化の各パスの実行回数, 時間, 命令数の増減を表にした文字列を返す.
+	 * 記録が無ければ空文字列を返す
+	 */
+	public String getPassReport() {
+		return passes == null ? "" : passes.report();
+	}
+
+	/**
+	 * 生成した命令列を返す. 失敗していれば null を返す
+	 */
+	PseudoIseg getCode() {
+		return iseg;
+	}
+}
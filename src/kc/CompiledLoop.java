@@ -0,0 +1,17 @@
+package kc;
+
+/**
+ * LoopCompiler が VSM のループを翻訳して作るクラスが実装するインタフェース
+ */
+interface CompiledLoop {
+	/**
+	 * ループの入口から, ループを出るか翻訳していない命令に着くまで実行する
+	 * @param data Dseg
+	 * @param stack オペランドスタック. 出るときに実行後の中身を書き戻す
+	 * @param steps steps[0] が実行した命令の数. 出るときに更新する
+	 * @param limit 実行する命令の数の上限
+	 * @return 出た後に実行する番地 (下位32ビット) と, スタックの要素数 (上位32ビット).
+	 *         分岐したときに命令の数が上限を超えていれば符号ビットを立てる
+	 */
+	long run(int[] data, int[] stack, long[] steps, long limit);
+}
@@ -0,0 +1,485 @@
+package kc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PseudoIseg の命令列から作る制御フローグラフ
+ * 分岐命令の飛び先と, JUMP, 条件分岐, HALT の直後を先頭として命令列を基本ブロックに分け,
+ * 先行・後続ブロック, 支配関係, 自然なループを求める.
+ * linearize で, ブロックを好きな順に並べ直した命令列に戻せる.
+ *
+ * どの計算も再帰を使わず, 命令数とブロック数にほぼ比例する時間で終わる.
+ * グラフは作ったときの命令列を表すので, 命令列を書き換えたら作り直す.
+ */
+class ControlFlowGraph {
+	/**
+	 * 元の命令列
+	 */
+	private PseudoIseg code;
+
+	/**
+	 * 元の命令列の命令数
+	 */
+	private int length;
+
+	/**
+	 * 元の命令列での並び順の基本ブロック
+	 */
+	private ArrayList<BasicBlock> blocks = new ArrayList<BasicBlock>();
+
+	/**
+	 * 各番地の命令を含むブロックの番号
+	 */
+	private int[] blockOf;
+
+	/**
+	 * 入口から到達するブロックの逆後順での並び
+	 */
+	private ArrayList<BasicBlock> reversePostorder = new ArrayList<BasicBlock>();
+
+	/**
+	 * 自然なループ (内側のループが先に並ぶ)
+	 */
+	private ArrayList<Loop> loops = new ArrayList<Loop>();
+
+	/**
+	 * 命令列を引数とするコンストラクタ. 基本ブロックに分け, すべての解析をする
+	 * @param code 命令列
+	 */
+	ControlFlowGraph(PseudoIseg code) {
+		this.code = code;
+		length = code.getLastCodeAddress() + 1;
+		buildBlocks();
+		buildEdges();
+		int[] parent = new int[blocks.size()];
+		ArrayList<BasicBlock> preorder = computeDepthFirstOrder(parent);
+		computeDominators(preorder, parent);
+		numberDominatorTree();
+		findLoops();
+	}
+
+	/**
+	 * 命令列を基本ブロックに分ける
+	 */
+	private void buildBlocks() {
+		boolean[] leader = new boolean[length + 1];
+		leader[0] = true;
+		for (int i = 0; i < length; i++) {
+			Operator operator = code.getOperator(i);
+			if (operator.isJump()) {
+				int target = code.getOperand(i);
+				if (target >= 0 && target < length)
+					leader[target] = true;
+				leader[i + 1] = true;
+			} else if (operator == Operator.HALT) {
+				leader[i + 1] = true;
+			}
+		}
+
+		blockOf = new int[length];
+		int start = 0;
+		for (int i = 1; i <= length; i++) {
+			if (i == length || leader[i]) {
+				BasicBlock block = new BasicBlock(blocks.size(), start, i);
+				for (int j = start; j < i; j++)
+					blockOf[j] = block.getIndex();
+				blocks.add(block);
+				start = i;
+			}
+		}
+	}
+
+	/**
+	 * ブロックの末尾の命令から先行・後続ブロックを求める
+	 */
+	private void buildEdges() {
+		for (BasicBlock block : blocks) {
+			Operator operator = code.getOperator(block.getLast());
+			if (fallsThrough(block))
+				addEdge(block, block.getEnd());
+			if (operator.isJump())
+				addEdge(block, code.getOperand(block.getLast()));
+		}
+	}
+
+	/**
+	 * block から address 番地を先頭とするブロックへの辺を加える. 命令列の外への辺は加えない
+	 */
+	private void addEdge(BasicBlock block, int address) {
+		if (address < 0 || address >= length)
+			return;
+		BasicBlock successor = blocks.get(blockOf[address]);
+		if (block.successors.contains(successor))
+			return;
+		block.successors.add(successor);
+		successor.predecessors.add(block);
+	}
+
+	/**
+	 * ブロックの末尾から次の番地の命令に進むことがあるかを判定する
+	 */
+	private boolean fallsThrough(BasicBlock block) {
+		Operator operator = code.getOperator(block.getLast());
+		return operator != Operator.JUMP && operator != Operator.HALT;
+	}
+
+	/**
+	 * 入口から深さ優先で辿り, 到達するブロックを逆後順に並べる
+	 * @param parent 深さ優先探索の木での親のブロック番号を入れる配列
+	 * @return 到達するブロックの行きがけ順での並び
+	 */
+	private ArrayList<BasicBlock> computeDepthFirstOrder(int[] parent) {
+		ArrayList<BasicBlock> preorder = new ArrayList<BasicBlock>();
+		if (blocks.isEmpty())
+			return preorder;
+		int[] nextSuccessor = new int[blocks.size()];
+		boolean[] visited = new boolean[blocks.size()];
+		ArrayList<BasicBlock> stack = new ArrayList<BasicBlock>();
+		ArrayList<BasicBlock> postorder = new ArrayList<BasicBlock>();
+		stack.add(blocks.get(0));
+		preorder.add(blocks.get(0));
+		visited[0] = true;
+		while (!stack.isEmpty()) {
+			BasicBlock block = stack.get(stack.size() - 1);
+			if (nextSuccessor[block.getIndex()] < block.successors.size()) {
+				BasicBlock successor = block.successors.get(nextSuccessor[block.getIndex()]++);
+				if (!visited[successor.getIndex()]) {
+					visited[successor.getIndex()] = true;
+					parent[successor.getIndex()] = block.getIndex();
+					stack.add(successor);
+					preorder.add(successor);
+				}
+			} else {
+				stack.remove(stack.size() - 1);
+				postorder.add(block);
+			}
+		}
+		for (int i = postorder.size() - 1; i >= 0; i--) {
+			BasicBlock block = postorder.get(i);
+			block.reversePostorder = reversePostorder.size();
+			reversePostorder.add(block);
+		}
+		return preorder;
+	}
+
+	/**
+	 * 直接支配するブロックを求める (Lengauer, Tarjan の方法. 経路圧縮だけを使う版で O(m log n))
+	 * 配列は深さ優先探索の行きがけ順の番号 (入口が 1) で引く
+	 * @param preorder 到達するブロックの行きがけ順での並び
+	 * @param parent 深さ優先探索の木での親のブロック番号
+	 */
+	private void computeDominators(ArrayList<BasicBlock> preorder, int[] parent) {
+		int n = preorder.size();
+		if (n == 0)
+			return;
+		int[] number = new int[blocks.size()];	//ブロック番号から行きがけ順の番号 (到達しなければ 0)
+		for (int v = 1; v <= n; v++)
+			number[preorder.get(v - 1).getIndex()] = v;
+		int[] semi = new int[n + 1];
+		int[] label = new int[n + 1];
+		int[] ancestor = new int[n + 1];
+		int[] dominator = new int[n + 1];
+		int[] bucketHead = new int[n + 1];	//準支配ブロックごとのバケツを連結リストで表す
+		int[] bucketNext = new int[n + 1];
+		int[] path = new int[n + 1];
+		for (int v = 1; v <= n; v++) {
+			semi[v] = v;
+			label[v] = v;
+		}
+
+		for (int w = n; w >= 2; w--) {
+			BasicBlock block = preorder.get(w - 1);
+			for (BasicBlock predecessor : block.predecessors) {
+				int v = number[predecessor.getIndex()];
+				if (v == 0)
+					continue;
+				int u = eval(v, semi, label, ancestor, path);
+				if (semi[u] < semi[w])
+					semi[w] = semi[u];
+			}
+			bucketNext[w] = bucketHead[semi[w]];
+			bucketHead[semi[w]] = w;
+			int p = number[parent[block.getIndex()]];
+			ancestor[w] = p;
+			for (int v = bucketHead[p]; v != 0; v = bucketNext[v]) {
+				int u = eval(v, semi, label, ancestor, path);
+				dominator[v] = semi[u] < semi[v] ? u : p;
+			}
+			bucketHead[p] = 0;
+		}
+		for (int w = 2; w <= n; w++) {
+			if (dominator[w] != semi[w])
+				dominator[w] = dominator[dominator[w]];
+			preorder.get(w - 1).immediateDominator = preorder.get(dominator[w] - 1);
+		}
+	}
+
+	/**
+	 * 森の中で v から根までの経路上で準支配ブロックの番号が最小の頂点を返し, 経路を圧縮する
+	 */
+	private static int eval(int v, int[] semi, int[] label, int[] ancestor, int[] path) {
+		if (ancestor[v] == 0)
+			return v;
+		// 再帰の代わりに, 圧縮する経路を根に近い側から処理する
+		int top = 0;
+		for (int x = v; ancestor[ancestor[x]] != 0; x = ancestor[x])
+			path[top++] = x;
+		while (top > 0) {
+			int x = path[--top];
+			int a = ancestor[x];
+			if (semi[label[a]] < semi[label[x]])
+				label[x] = label[a];
+			ancestor[x] = ancestor[a];
+		}
+		return label[v];
+	}
+
+	/**
+	 * 支配木を深さ優先で辿り, 行きがけと帰りがけの番号を付ける.
+	 * これで支配関係の判定が定数時間になる
+	 */
+	private void numberDominatorTree() {
+		if (reversePostorder.isEmpty())
+			return;
+		// 支配木の子を, 先頭の子と次の兄弟の配列で表す
+		int[] firstChild = new int[blocks.size()];
+		int[] nextSibling = new int[blocks.size()];
+		Arrays.fill(firstChild, -1);
+		for (int i = reversePostorder.size() - 1; i > 0; i--) {
+			BasicBlock block = reversePostorder.get(i);
+			int parent = block.immediateDominator.getIndex();
+			nextSibling[block.getIndex()] = firstChild[parent];
+			firstChild[parent] = block.getIndex();
+		}
+
+		int counter = 0;
+		int[] stack = new int[blocks.size()];
+		int[] cursor = new int[blocks.size()];
+		int depth = 0;
+		stack[0] = reversePostorder.get(0).getIndex();
+		cursor[0] = firstChild[stack[0]];
+		blocks.get(stack[0]).preorder = counter++;
+		while (depth >= 0) {
+			int child = cursor[depth];
+			if (child >= 0) {
+				cursor[depth] = nextSibling[child];
+				blocks.get(child).preorder = counter++;
+				stack[++depth] = child;
+				cursor[depth] = firstChild[child];
+			} else {
+				blocks.get(stack[depth--]).postorder = counter++;
+			}
+		}
+	}
+
+	/**
+	 * 後退辺から自然なループを求め, 入れ子関係を付ける.
+	 * ヘッダを逆後順の後ろから調べるので内側のループが先に見つかり,
+	 * 見つかったループは外側のループを探すときにヘッダ一つにまとめて辿る
+	 */
+	private void findLoops() {
+		// ヘッダのブロック番号から, そのループを含む見つかった中で最も外側のループのヘッダの番号を引く表 (経路を圧縮する)
+		int[] outermost = new int[blocks.size()];
+		ArrayList<BasicBlock> work = new ArrayList<BasicBlock>();
+		for (int i = reversePostorder.size() - 1; i >= 0; i--) {
+			BasicBlock header = reversePostorder.get(i);
+			Loop loop = null;
+			for (BasicBlock predecessor : header.predecessors) {
+				if (header.dominates(predecessor)) {
+					if (loop == null)
+						loop = new Loop(header);
+					loop.latches.add(predecessor);
+					work.add(predecessor);
+				}
+			}
+			if (loop == null)
+				continue;
+			header.loop = loop;
+			outermost[header.getIndex()] = header.getIndex();
+			loops.add(loop);
+
+			while (!work.isEmpty()) {
+				BasicBlock block = work.remove(work.size() - 1);
+				if (block.loop == null) {
+					block.loop = loop;
+					addReachable(work, block.predecessors);
+					continue;
+				}
+				BasicBlock innerHeader = blocks.get(findOutermost(outermost, block.loop.getHeader().getIndex()));
+				if (innerHeader == header)
+					continue;
+				innerHeader.loop.parent = loop;
+				outermost[innerHeader.getIndex()] = header.getIndex();
+				addReachable(work, innerHeader.predecessors);
+			}
+		}
+
+		for (Loop loop : loops) {
+			if (loop.parent != null)
+				loop.parent.children.add(loop);
+		}
+		for (BasicBlock block : blocks) {
+			if (block.loop != null)
+				block.loop.ownBlocks.add(block);
+		}
+	}
+
+	/**
+	 * ヘッダの番号から最も外側のループのヘッダの番号を求め, 辿った表の要素をその番号に書き換える
+	 */
+	private static int findOutermost(int[] outermost, int header) {
+		int root = header;
+		while (outermost[root] != root)
+			root = outermost[root];
+		while (outermost[header] != root) {
+			int next = outermost[header];
+			outermost[header] = root;
+			header = next;
+		}
+		return root;
+	}
+
+	/**
+	 * 入口から到達するブロックだけを作業リストに加える
+	 */
+	private static void addReachable(ArrayList<BasicBlock> work, List<BasicBlock> blocks) {
+		for (BasicBlock block : blocks) {
+			if (block.isReachable())
+				work.add(block);
+		}
+	}
+
+	/**
+	 * @return 元の命令列
+	 */
+	PseudoIseg getCode() {
+		return code;
+	}
+
+	/**
+	 * @return 元の命令列での並び順の, すべての基本ブロック
+	 */
+	List<BasicBlock> getBlocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+
+	/**
+	 * @return 入口のブロック (命令が無ければ null)
+	 */
+	BasicBlock getEntry() {
+		return blocks.isEmpty() ? null : blocks.get(0);
+	}
+
+	/**
+	 * @param address 番地
+	 * @return 指定した番地の命令を含むブロック
+	 */
+	BasicBlock getBlock(int address) {
+		return blocks.get(blockOf[address]);
+	}
+
+	/**
+	 * @return 入口から到達するブロックの逆後順での並び
+	 */
+	List<BasicBlock> getReversePostorder() {
+		return Collections.unmodifiableList(reversePostorder);
+	}
+
+	/**
+	 * @return すべての自然なループ (内側のループが先に並ぶ)
+	 */
+	List<Loop> getLoops() {
+		return Collections.unmodifiableList(loops);
+	}
+
+	/**
+	 * 到達するブロックを元の並び順のまま命令列に戻す. 到達しないブロックは捨てる
+	 * @return 新しい命令列
+	 */
+	PseudoIseg linearize() {
+		ArrayList<BasicBlock> layout = new ArrayList<BasicBlock>();
+		for (BasicBlock block : blocks) {
+			if (block.isReachable())
+				layout.add(block);
+		}
+		return linearize(layout);
+	}
+
+	/**
+	 * ブロックを layout の順に並べた命令列を作る.
+	 * 分岐の飛び先は並べ直したブロックの先頭に付け替え, 後続ブロックが直後に来なくなったところには JUMP を足し,
+	 * 直後のブロックへの JUMP は取り除く. 命令列の末尾への分岐は新しい命令列の末尾への分岐にする.
+	 * @param layout 並べるブロック. 分岐の飛び先になるブロックはすべて含んでいなければならない
+	 * @return 新しい命令列
+	 */
+	PseudoIseg linearize(List<BasicBlock> layout) {
+		// 一回目で各ブロックの新しい番地を決め, 二回目で命令を並べる
+		int[] address = new int[blocks.size()];
+		Arrays.fill(address, -1);
+		int end = 0;
+		for (int k = 0; k < layout.size(); k++) {
+			BasicBlock block = layout.get(k);
+			BasicBlock next = k + 1 < layout.size() ? layout.get(k + 1) : null;
+			address[block.getIndex()] = end;
+			end += block.getEnd() - block.getStart();
+			if (jumpsToNext(block, next))
+				end--;
+			if (needsJump(block, next))
+				end++;
+		}
+
+		PseudoIseg result = new PseudoIseg();
+		for (int k = 0; k < layout.size(); k++) {
+			BasicBlock block = layout.get(k);
+			BasicBlock next = k + 1 < layout.size() ? layout.get(k + 1) : null;
+			int last = jumpsToNext(block, next) ? block.getLast() : block.getEnd();
+			for (int i = block.getStart(); i < last; i++) {
+				int operand = code.getOperand(i);
+				if (code.getOperator(i).isJump())
+					operand = newAddress(address, operand, end);
+				result.setI(code.getOperator(i), code.getFlag(i), operand);
+			}
+			if (needsJump(block, next))
+				result.appendCode(Operator.JUMP, newAddress(address, block.getEnd(), end));
+		}
+		return result;
+	}
+
+	/**
+	 * ブロックが直後に並べるブロックへの JUMP で終わるかを判定する
+	 */
+	private boolean jumpsToNext(BasicBlock block, BasicBlock next) {
+		if (next == null || !code.checkOperator(block.getLast(), Operator.JUMP))
+			return false;
+		int target = code.getOperand(block.getLast());
+		return target >= 0 && target < length && blockOf[target] == next.getIndex();
+	}
+
+	/**
+	 * ブロックの末尾から進む先が直後に並ばないため, JUMP を足す必要があるかを判定する
+	 */
+	private boolean needsJump(BasicBlock block, BasicBlock next) {
+		if (!fallsThrough(block))
+			return false;
+		if (block.getEnd() == length)
+			return next != null;
+		return next == null || blockOf[block.getEnd()] != next.getIndex();
+	}
+
+	/**
+	 * 元の番地を並べ直した命令列での番地にする
+	 */
+	private int newAddress(int[] address, int target, int end) {
+		if (target == length)
+			return end;
+		if (target < 0 || target > length)
+			return target;
+		int newTarget = address[blockOf[target]];
+		if (newTarget < 0)
+			throw new IllegalArgumentException("block " + blocks.get(blockOf[target]) + " is not in the layout");
+		return newTarget;
+	}
+}
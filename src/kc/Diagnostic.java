@@ -0,0 +1,104 @@
+package kc;
+
+/**
+ * コンパイル時に検出したエラーを表すクラス
+ * エラーの種類と, それを検出したソースプログラム中の位置, エラーの内容を保持する.
+ */
+public class Diagnostic {
+	/**
+	 * エラーの種類
+	 */
+	public enum Kind {
+		/** 字句解析時に検出した構文エラー */
+		LEXICAL,
+		/** 構文解析時に検出した構文エラー・制約違反 */
+		SYNTAX,
+		/** ソースプログラムの読み込みエラー */
+		IO
+	}
+
+	/**
+	 * エラーの種類
+	 */
+	private Kind kind;
+
+	/**
+	 * エラーを検出した行番号 (1から数える)
+	 */
+	private int lineNumber;
+
+	/**
+	 * エラーを検出した列番号 (0から数える)
+	 */
+	private int columnNumber;
+
+	/**
+	 * エラーの内容. 字句解析時のエラーでは null
+	 */
+	private String message;
+
+	/**
+	 * 各フィールドを引数で与えられたもので初期化する
+	 */
+	Diagnostic(Kind kind, int lineNumber, int columnNumber, String message) {
+		this.kind = kind;
+		this.lineNumber = lineNumber;
+		this.columnNumber = columnNumber;
+		this.message = message;
+	}
+
+	/**
+	 * フィールドkindのゲッター
+	 * @return kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * フィールドlineNumberのゲッター
+	 * @return lineNumber
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * フィールドcolumnNumberのゲッター
+	 * @return columnNumber
+	 */
+	public int getColumnNumber() {
+		return columnNumber;
+	}
+
+	/**
+	 * フィールドmessageのゲッター
+	 * @return message
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * エラーを検出した位置を "○行目○文字目" の形式で返す
+	 */
+	public String getLocation() {
+		return lineNumber + "行目" + columnNumber + "文字目";
+	}
+
+	/**
+	 * コマンドラインのコンパイラが出力するものと同じ形式のエラーメッセージを返す
+	 */
+	public String toString() {
+		//下記の文言は自動採点で使用するので変更しないでください。
+		switch (kind) {
+		case LEXICAL:
+			return getLocation() + "で字句解析プログラムが構文エラーを検出";
+		case SYNTAX:
+			return getLocation() + "で構文解析プログラムが構文エラーを検出"
+					+ System.lineSeparator() + message;
+		default:
+			return message;
+		}
+	}
+}
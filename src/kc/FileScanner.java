@@ -1,35 +1,35 @@
 package kc;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * ファイルを一文字ずつスキャンするクラス
+ * ファイル全体を一度だけ読み込んで char 配列に格納し, 以降はその配列を添字で走査する.
+ * 行番号・列番号は scanAt() が呼ばれたときにだけ計算する.
  */
 class FileScanner {
 
 	/**
-	 * 入力ファイルの参照
+	 * ソースプログラム全体 (改行コードは '\n' に正規化済み)
 	 */
-	private BufferedReader sourceFile;
+	private char[] buffer;
 
 	/**
-	 * 行バッファ
+	 * buffer 中の有効な文字数
 	 */
-	private String line;
+	private int length;
 
 	/**
-	 * 行カウンタ
+	 * 先読み文字 (nextCharacter) の buffer 中での位置
 	 */
-	private int lineNumber;
-
-	/**
-	 * 列カウンタ
-	 */
-	private int columnNumber;
+	private int position;
 
 	/**
 	 * 読み取り文字
@@ -44,23 +44,64 @@ class FileScanner {
 
     /**
      * コンストラクタ
-     * 引数 sourceFileName で指定されたファイルを開き, sourceFile で参照する．
-     * また lineNumber, columnNumber, currentCharacter, nextCharacter を初期化する
+     * 引数 sourceFileName で指定されたファイルをメモリマップして全文を読み込む．
+     * また position, currentCharacter, nextCharacter を初期化する
      * @param sourceFileName ソースプログラムのファイル名
      */
     FileScanner (String sourceFileName) {
-        Path path = Paths.get (sourceFileName);
-        // ファイルのオープン
-        try {
-            sourceFile = Files.newBufferedReader (path);
+        this (Paths.get (sourceFileName));
+    }
+
+    /**
+     * ファイルのパスを引数とするコンストラクタ
+     * 読み込みに失敗した場合は CompileException を投げる
+     * @param path ソースプログラムのパス
+     */
+    FileScanner (Path path) {
+        // ファイルの読み込み
+        try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode (bytes);
+            setSource (chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
         } catch (IOException err_mes) {
-            System.out.println (err_mes);
-            System.exit (1);
+            throw new CompileException (new Diagnostic (Diagnostic.Kind.IO, 0, -1, err_mes.toString()));
         }
+    }
+
+    /**
+     * 文字列を直接ソースプログラムとするコンストラクタ
+     * @param source ソースプログラム
+     */
+    FileScanner (CharSequence source) {
+        CharBuffer chars = CharBuffer.wrap (source);
+        char[] array = new char[chars.remaining()];
+        chars.get (array);
+        setSource (array, 0, array.length);
+    }
+
+    /**
+     * 読み込んだ文字列の改行コードを '\n' に揃えて buffer に格納し, 最初の文字を先読みする.
+     * BufferedReader.readLine() と同様に "\r\n", "\r" を改行とみなし,
+     * 末尾に改行が無ければ補う.
+     */
+    private void setSource (char[] source, int offset, int count) {
+        this.buffer = new char[count + 1];
+        int n = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = source[i];
+            if (c == '\r') {
+                if (i + 1 < offset + count && source[i + 1] == '\n')
+                    i++;
+                c = '\n';
+            }
+            this.buffer[n++] = c;
+        }
+        if (n > 0 && this.buffer[n - 1] != '\n')
+            this.buffer[n++] = '\n';
+        this.length = n;
 
         // 各フィールドの初期化
-        this.lineNumber = 0;
-        this.columnNumber = -1;
+        this.position = -1;
         this.nextCharacter = '\n';
 
         // nextChar()の実行
@@ -68,39 +109,11 @@ class FileScanner {
     }
 
     /**
-     * sourceFileで参照しているファイルを閉じる
+     * ファイルは読み込み時に閉じているので何もしない
      */
     void closeFile() {
-        try {
-            sourceFile.close();
-        } catch (IOException err_mes) {
-            System.out.println (err_mes);
-            System.exit (1);
-        }
     }
 
-    /**
-     * sourceFileで参照しているファイルから一行読み, フィールドline(文字列変数)にその行を格納する
-     */
-    void readNextLine() {
-        try {
-            if (sourceFile.ready()) { // sourceFile中に未読の行があるかを確認 (例外:IllegalStateException)
-                /*
-                 * nextLineメソッドでsourceFileから1行読み出し 読み出された文字列は改行コードを含まないので
-                 * 改めて改行コードをつけ直す
-                 */
-            	this.line = this.sourceFile.readLine() + '\n';
-
-            } else {
-            	this.line = null;
-            }
-        } catch (IOException err_mes) { // 例外はExceptionでキャッチしてもいい
-            // ファイルの読み出しエラーが発生したときの処理
-            System.out.println (err_mes);
-            closeFile();
-            System.exit (1);
-        }
-    }
     /**
      * nextCharacter中の文字を返す
      */
@@ -109,10 +122,30 @@ class FileScanner {
     }
 
     /**
-     * lineフィールドの文字列を返す
+     * 先読み文字を含む行を返す. ファイル末に達していればnullを返す
      */
     String getLine() {
-    	return this.line;
+    	if (this.position >= this.length)
+    		return null;
+    	int start = this.position;
+    	while (start > 0 && this.buffer[start - 1] != '\n')
+    		start--;
+    	int end = this.position;
+    	while (this.buffer[end] != '\n')
+    		end++;
+    	return new String (this.buffer, start, end - start + 1);
+    }
+
+    /**
+     * ソースプログラムの行数を返す
+     */
+    int lineCount() {
+    	int lines = 0;
+    	for (int i = 0; i < this.length; i++) {
+    		if (this.buffer[i] == '\n')
+    			lines++;
+    	}
+    	return lines;
     }
 
     /**
@@ -120,20 +153,12 @@ class FileScanner {
      */
      char nextChar() {
     	 this.currentCharacter = this.nextCharacter;
-    	 if(this.nextCharacter == '\0') {
-    		 // 何もしない
-    	 } else if(this.nextCharacter == '\n') {
-    		 this.readNextLine();
-    		 if(this.line != null) {
-    			 this.nextCharacter = this.line.charAt(0);  //次の行の0文字目を代入
-    			 this.lineNumber++;
-    			 this.columnNumber = 0;
-    		 } else {
+    	 if(this.nextCharacter != '\0') {
+    		 this.position++;
+    		 if(this.position < this.length)
+    			 this.nextCharacter = this.buffer[this.position];
+    		 else
     			 this.nextCharacter = '\0';
-    		 }
-    	 } else {
-    		 this.columnNumber++;
-    		 this.nextCharacter = this.line.charAt(this.columnNumber);
     	 }
     	 return this.currentCharacter;
      }
@@ -142,7 +167,56 @@ class FileScanner {
      * 現在入力ファイルのどの部分をスキャンしているのかを表現する文字列を返す
      */
      String scanAt() {
-    	 return this.lineNumber + "行目" + this.columnNumber + "文字目";
+    	 return scanAt (this.position);
+     }
+
+    /**
+     * buffer 中の位置 offset を "○行目○文字目" の形式に変換する.
+     * @param offset buffer 中の位置
+     */
+     String scanAt (int offset) {
+    	 return getLineNumber (offset) + "行目" + getColumnNumber (offset) + "文字目";
+     }
+
+    /**
+     * buffer 中の位置 offset の行番号を返す.
+     * ファイル末の位置は最終行の改行文字の位置として扱う
+     * @param offset buffer 中の位置
+     */
+     int getLineNumber (int offset) {
+    	 if (this.length == 0)
+    		 return 0;
+    	 if (offset >= this.length)
+    		 offset = this.length - 1;
+    	 int lineNumber = 1;
+    	 for (int i = 0; i < offset; i++) {
+    		 if (this.buffer[i] == '\n')
+    			 lineNumber++;
+    	 }
+    	 return lineNumber;
+     }
+
+    /**
+     * buffer 中の位置 offset の列番号を返す.
+     * ファイル末の位置は最終行の改行文字の位置として扱う
+     * @param offset buffer 中の位置
+     */
+     int getColumnNumber (int offset) {
+    	 if (this.length == 0)
+    		 return -1;
+    	 if (offset >= this.length)
+    		 offset = this.length - 1;
+    	 int lineStart = offset;
+    	 while (lineStart > 0 && this.buffer[lineStart - 1] != '\n')
+    		 lineStart--;
+    	 return offset - lineStart;
+     }
+
+    /**
+     * 先読み文字の buffer 中での位置を返す
+     */
+     int getPosition() {
+    	 return this.position;
      }
 
     /**
@@ -161,4 +235,4 @@ class FileScanner {
     	}
     	fileScanner.closeFile();
     }
-}
\ No newline at end of file
+}
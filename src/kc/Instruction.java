@@ -110,39 +110,7 @@ class Instruction {
      * @return Operator型の命令
      */
     Operator str2Opeartor (String op) {
-        if (op.equals ("NOP"))           return Operator.NOP;
-        else if (op.equals ("ASSGN"))    return Operator.ASSGN;
-        else if (op.equals ("ADD"))      return Operator.ADD;
-        else if (op.equals ("SUB"))      return Operator.SUB;
-        else if (op.equals ("MUL"))      return Operator.MUL;
-        else if (op.equals ("DIV"))      return Operator.DIV;
-        else if (op.equals ("MOD"))      return Operator.MOD;
-        else if (op.equals ("CSIGN"))    return Operator.CSIGN;
-        else if (op.equals ("AND"))      return Operator.AND;
-        else if (op.equals ("OR"))       return Operator.OR;
-        else if (op.equals ("NOT"))      return Operator.NOT;
-        else if (op.equals ("COMP"))     return Operator.COMP;
-        else if (op.equals ("COPY"))     return Operator.COPY;
-        else if (op.equals ("PUSH"))     return Operator.PUSH;
-        else if (op.equals ("PUSHI"))    return Operator.PUSHI;
-        else if (op.equals ("REMOVE"))   return Operator.REMOVE;
-        else if (op.equals ("POP"))      return Operator.POP;
-        else if (op.equals ("INC"))      return Operator.INC;
-        else if (op.equals ("DEC"))      return Operator.DEC;
-        else if (op.equals ("JUMP"))     return Operator.JUMP;
-        else if (op.equals ("BLT"))      return Operator.BLT;
-        else if (op.equals ("BLE"))      return Operator.BLE;
-        else if (op.equals ("BEQ"))      return Operator.BEQ;
-        else if (op.equals ("BNE"))      return Operator.BNE;
-        else if (op.equals ("BGE"))      return Operator.BGE;
-        else if (op.equals ("BGT"))      return Operator.BGT;
-        else if (op.equals ("HALT"))     return Operator.HALT;
-        else if (op.equals ("INPUT"))    return Operator.INPUT;
-        else if (op.equals ("INPUTC"))   return Operator.INPUTC;
-        else if (op.equals ("OUTPUT"))   return Operator.OUTPUT;
-        else if (op.equals ("OUTPUTC"))  return Operator.OUTPUTC;
-        else if (op.equals ("OUTPUTLN")) return Operator.OUTPUTLN;    
-        else if (op.equals ("LOAD"))     return Operator.LOAD;
-        else                             return Operator.ERR;
+        Operator opcode = MnemonicTable.lookup (op);
+        return opcode != null ? opcode : Operator.ERR;
     }
 }
@@ -0,0 +1,135 @@
+package kc;
+
+/**
+ * 分岐の整理をする最適化
+ * 次の四つを変化が無くなるまで繰り返す.
+ * <ul>
+ * <li>飛び先が JUMP である分岐を, JUMP を辿った最終的な飛び先に付け替える (HALT への JUMP は HALT にする)</li>
+ * <li>0 番地からどの経路でも到達しない命令を取り除く</li>
+ * <li>直後の命令への JUMP を取り除き, 直後の命令への条件分岐を REMOVE にする</li>
+ * <li>JUMP を飛び越すだけの条件分岐 (Bxx L; JUMP T; L:) を, 条件を反転した T への分岐にする</li>
+ * </ul>
+ * 命令を取り除いた後は, すべての分岐命令の飛び先を付け替える.
+ */
+class JumpOptimizer implements Pass {
+	@Override
+	public String getName() {
+		return "jumps";
+	}
+
+	/**
+	 * 命令列を最適化して書き換える
+	 * @param iseg 命令列
+	 * @return 削除した命令の数
+	 */
+	@Override
+	public int optimize(PseudoIseg iseg) {
+		int removed = 0;
+		boolean changed = true;
+		while (changed) {
+			threadJumps(iseg);
+			int count = removeUnreachable(iseg) + removeJumpsToNext(iseg) + invertBranchesOverJumps(iseg);
+			removed += count;
+			changed = count > 0;
+		}
+		return removed;
+	}
+
+	/**
+	 * JUMP の連鎖を辿り, 各分岐命令の飛び先を最終的な飛び先に付け替える
+	 */
+	private void threadJumps(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		for (int i = 0; i < length; i++) {
+			Operator operator = iseg.getOperator(i);
+			if (!operator.isJump())
+				continue;
+			int target = finalTarget(iseg, iseg.getOperand(i), length);
+			if (target != iseg.getOperand(i))
+				iseg.replaceCode(i, target);
+			if (operator == Operator.JUMP && target >= 0 && target < length
+					&& iseg.checkOperator(target, Operator.HALT))
+				iseg.replaceCode(i, Operator.HALT, 0);
+		}
+	}
+
+	/**
+	 * 番地 target から JUMP を辿った先の番地を返す. JUMP が輪になっている場合は途中で止める
+	 */
+	private static int finalTarget(PseudoIseg iseg, int target, int length) {
+		for (int steps = 0; steps < length; steps++) {
+			if (target < 0 || target >= length || !iseg.checkOperator(target, Operator.JUMP))
+				break;
+			int next = iseg.getOperand(target);
+			if (next == target)
+				break;
+			target = next;
+		}
+		return target;
+	}
+
+	/**
+	 * 0 番地から到達しない基本ブロックを取り除く
+	 * @return 取り除いた命令の数
+	 */
+	private int removeUnreachable(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		boolean[] removed = new boolean[length];
+		boolean any = false;
+		for (BasicBlock block : new ControlFlowGraph(iseg).getBlocks()) {
+			if (block.isReachable())
+				continue;
+			for (int i = block.getStart(); i < block.getEnd(); i++)
+				removed[i] = true;
+			any = true;
+		}
+		return any ? iseg.removeCodes(removed) : 0;
+	}
+
+	/**
+	 * JUMP を飛び越すだけの条件分岐 Bxx i+2; JUMP T を, 条件を反転した T への分岐にまとめる.
+	 * JUMP が他の分岐の飛び先であれば何もしない
+	 * @return 取り除いた命令の数
+	 */
+	private int invertBranchesOverJumps(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		boolean[] isTarget = new boolean[length + 1];
+		for (int i = 0; i < length; i++) {
+			int target = iseg.getOperand(i);
+			if (iseg.getOperator(i).isJump() && target >= 0 && target <= length)
+				isTarget[target] = true;
+		}
+		boolean[] removed = new boolean[length];
+		boolean any = false;
+		for (int i = 0; i + 1 < length; i++) {
+			if (iseg.getOperator(i).isConditionalBranch() && iseg.getOperand(i) == i + 2
+					&& iseg.checkOperator(i + 1, Operator.JUMP) && !isTarget[i + 1] && !removed[i]) {
+				iseg.replaceCode(i, iseg.getOperator(i).invertBranch(), iseg.getOperand(i + 1));
+				removed[i + 1] = true;
+				any = true;
+			}
+		}
+		return any ? iseg.removeCodes(removed) : 0;
+	}
+
+	/**
+	 * 直後の命令への JUMP を取り除き, 直後の命令への条件分岐を (分岐に使う値を捨てる) REMOVE にする
+	 * @return 取り除いた命令の数
+	 */
+	private int removeJumpsToNext(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		boolean[] removed = new boolean[length];
+		boolean any = false;
+		for (int i = 0; i < length; i++) {
+			if (iseg.getOperand(i) != i + 1)
+				continue;
+			if (iseg.checkOperator(i, Operator.JUMP)) {
+				removed[i] = true;
+				any = true;
+			} else if (iseg.getOperator(i).isConditionalBranch()) {
+				iseg.replaceCode(i, Operator.REMOVE, 0);
+			}
+		}
+		return any ? iseg.removeCodes(removed) : 0;
+	}
+}
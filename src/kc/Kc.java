@@ -1,26 +1,42 @@
 package kc;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
- * 字句解析器から受け取ったトークンを用いて構文解析，コード生成，制約検査を行うクラス
+ * 字句解析器から受け取ったトークンを用いて構文解析と制約検査を行い, 構文木 (Ast) を作るクラス
+ * 変数は構文解析の時点で変数表を引き, Dseg 上のアドレスとして構文木に書き込む.
+ * 構文木からのコード生成は AstCodeGenerator が行う.
  */
 public class Kc {
 	/**
-	 * 使用する字句解析器
+	 * 字句解析器が切り出したトークンの表
 	 */
-	private LexicalAnalyzer lexer;
+	private TokenBuffer tokens;
 
 	/**
-	 * 字句解析器から受け取ったトークン
+	 * 現在解析しているトークンの tokens 中での位置
 	 */
-	private Token token;
+	private int cursor;
 
 	/**
 	 * 変数表
 	 */
 	private VarTable variableTable;
 
+	/**
+	 * 作っている構文木
+	 */
+	private Ast ast;
+
+	/**
+	 * main 関数の本体のブロックの節点
+	 */
+	private int root = Ast.NONE;
+
 	/**
 	 * アセンブラコード表
 	 */
@@ -32,877 +48,745 @@ public class Kc {
 	private boolean inLoop = false;
 
 	/**
-	 * break文のJUMP命令の番地を記憶する
+	 * コード生成中に最適化するかを示す
 	 */
-	private ArrayList<Integer>breakAddrList;
+	private boolean optimize;
 
     /**
      * ソースファイル名を引数とするコンストラクタ.
      */
     Kc (String sourceFileName) {
-    	lexer = new LexicalAnalyzer(sourceFileName);
+    	this(new LexicalAnalyzer(sourceFileName));
+    }
+
+    /**
+     * 字句解析器を引数とするコンストラクタ.
+     */
+    Kc (LexicalAnalyzer lexer) {
+    	this(lexer, false);
+    }
+
+    /**
+     * 字句解析器と, コード生成中に最適化するかを引数とするコンストラクタ.
+     */
+    Kc (LexicalAnalyzer lexer, boolean optimize) {
+    	tokens = new TokenBuffer(lexer);
+    	cursor = -1;
     	variableTable = new VarTable();
+    	ast = new Ast();
     	iseg = new PseudoIseg();
-    	breakAddrList = new ArrayList<Integer>();
+    	this.optimize = optimize;
     }
 
     /**
      * K21言語プログラム部解析
-     * 再帰降下型構文解析を行うメソッド.
+     * 再帰降下型構文解析を行い, 構文木を作るメソッド. コードは generateCode で生成する.
      * 入力が構文規則に違反していることを検出した場合，エラーの内容を表す文字列を引数として
      * syntaxError メソッドを呼び出す.
      */
     void parseProgram() {
-    	token = lexer.nextToken();
-    	if(token.checkSymbol(Symbol.MAIN)) {
-    		token = lexer.nextToken();
-    		parseMain_function();
-    		if(token.checkSymbol(Symbol.EOF));		//EOFなら何もしない
+    	nextToken();
+    	if(checkSymbol(Symbol.MAIN)) {
+    		nextToken();
+    		root = parseMain_function();
+    		if(checkSymbol(Symbol.EOF));		//EOFなら何もしない
     		else syntaxError("EOFが期待されます");
     	} else syntaxError("'main'が期待されます");
-    	iseg.appendCode(Operator.HALT);
-//    	iseg.dump();	//実行結果確認用に追加
     }
 
     /**
-     * <Main_function>の構文解析をする．
+     * parseProgram で作った構文木から, AstCodeGenerator でアセンブラコードを生成する
      */
-    private void parseMain_function() {
+    void generateCode() {
+    	iseg = new AstCodeGenerator(ast, optimize).generate(root);
+    }
 
-    	if(token.checkSymbol(Symbol.LPAREN))
-    		token = lexer.nextToken();
+    /**
+     * <Main_function>の構文解析をする.
+     */
+    private int parseMain_function() {
+    	if (checkSymbol(Symbol.LPAREN))
+    		nextToken();
     	else syntaxError("'('が期待されます");
 
-    	if(token.checkSymbol(Symbol.RPAREN))
-    		token = lexer.nextToken();
+    	if (checkSymbol(Symbol.RPAREN))
+    		nextToken();
     	else syntaxError("')'が期待されます");
 
-    	parseBlock();
+    	return parseBlock();
     }
 
     /**
-     * <Block>の構文解析をする．
+     * <Block>の構文解析をする.
      */
-    private void parseBlock() {
-    	if(token.checkSymbol(Symbol.LBRACE))
-    		token = lexer.nextToken();
+    private int parseBlock() {
+    	if (checkSymbol(Symbol.LBRACE))
+    		nextToken();
     	else syntaxError("'{'が期待されます");
 
     	int tableSize = variableTable.size();  //変数表のサイズを記憶
+    	NodeList statements = new NodeList();
+    	while (firstStatement())	//ブロック内で文が続く限り, 文の構文解析をする.
+    		statements.add(parseStatement());
 
-    	while(firstStatement()) {	//ブロック内で文が続く限り，文の構文解析をする．
-    		parseStatement();
-    	}
-
-    	if(token.checkSymbol(Symbol.RBRACE))
-    		token = lexer.nextToken();
+    	if (checkSymbol(Symbol.RBRACE))
+    		nextToken();
     	else syntaxError("'}'が期待されます");
 
     	variableTable.removeTail(tableSize);  //変数表の末尾を削除
+    	return ast.add(Ast.Kind.BLOCK, 0, statements.head, Ast.NONE, Ast.NONE);
     }
 
     /**
-     * <Statement>の構文解析をする．
+     * <Statement>の構文解析をする.
      */
-    private void parseStatement() {
-    	switch(token.getSymbol()){
+    private int parseStatement() {
+    	switch (tokens.getSymbol(cursor)) {
     	case INT:
-    		parseVar_decl_statement();
-    		break;
+    		return parseVar_decl_statement();
     	case IF:
-    		parseIf_statement();
-    		break;
+    		return parseIf_statement();
     	case WHILE:
-    		parseWhile_statement();
-    		break;
+    		return parseWhile_statement();
     	case FOR:
-    		parseFor_statement();
-    		break;
+    		return parseFor_statement();
     	case OUTPUTCHAR:
-    		parseOutputchar_statement();
-    		break;
+    		return parseOutput_statement(Ast.Kind.OUTPUT_CHAR);
     	case OUTPUTINT:
-    		parseOutputint_statement();
-    		break;
+    		return parseOutput_statement(Ast.Kind.OUTPUT_INT);
     	case BREAK:
-    		parseBreak_statement();
-    		break;
+    		return parseBreak_statement();
     	case LBRACE:
-    		parseBlock();
-    		break;
+    		return parseBlock();
     	case SEMICOLON:
-    		token = lexer.nextToken();
-    		break;
+    		nextToken();
+    		return ast.add(Ast.Kind.EMPTY, 0);
     	default:
-    		parseExp_statement();
-    		break;
+    		return parseExp_statement();
     	}
     }
 
     /**
-     * <Var_decl_statement>の構文解析をする．
-     * 変数宣言文
+     * <Var_decl_statement>の構文解析をする.
      */
-    private void parseVar_decl_statement() {
-    	parseVar_decl();
-    	if(token.checkSymbol(Symbol.SEMICOLON))
-    		token = lexer.nextToken();
+    private int parseVar_decl_statement() {
+    	int declaration = parseVar_decl();
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
     	else syntaxError("';'が期待されます");
+    	return declaration;
     }
 
     /**
-     * <Var_decl>の構文解析をする．
-     * 変数宣言
+     * <Var_decl>の構文解析をする.
      */
     private int parseVar_decl() {
-    	int popAddr = -1;  //返り値用
-    	token = lexer.nextToken();
-    	if(token.checkSymbol(Symbol.NAME))
-    		popAddr = parseName_list();
-    	else syntaxError("NAMEが期待されます");
-    	return popAddr;   //for文のために返す
-    }
-
-    /**
-     * <Name_list>の構文解析をする．
-     * 変数を複数宣言する
-     */
-    private int parseName_list() {
-    	int popAddr = parseName();
-
-    	while(token.checkSymbol(Symbol.COMMA)) {	//トークンがコンマである限り繰り返す．
-    		token = lexer.nextToken();
-    		if(token.checkSymbol(Symbol.NAME))
-    			popAddr = parseName();
-    		else syntaxError("NAMEが期待されます");
-    	}
-    	return popAddr;
+    	NodeList declarators = new NodeList();
+    	nextToken();
+    	if (checkSymbol(Symbol.NAME)) {
+    		declarators.add(parseName());
+    		while (checkSymbol(Symbol.COMMA)) {	//トークンがコンマである限り繰り返す.
+    			nextToken();
+    			if (checkSymbol(Symbol.NAME))
+    				declarators.add(parseName());
+    			else syntaxError("NAMEが期待されます");
+    		}
+    	} else syntaxError("NAMEが期待されます");
+    	return ast.add(Ast.Kind.DECLARATION, 0, declarators.head, Ast.NONE, Ast.NONE);
     }
 
     /**
      * <Name>の構文解析をする
      */
     private int parseName() {
-    	String name = token.getStrValue();		//変数名を保管しておく
-    	int popAddr = -1;  //for文のために返す
-    	token = lexer.nextToken();
-    	if(variableTable.exist(name)) syntaxError("変数はすでに存在します");
-
-    	if(token.checkSymbol(Symbol.ASSIGN)) {		//変数に代入する形が続く．
-    		token = lexer.nextToken();
-
-    		if(token.checkSymbol(Symbol.SUB) ||
-    			token.checkSymbol(Symbol.INTEGER) ||
-    			token.checkSymbol(Symbol.CHAR)) {
-    			parseConstant();
+    	String name = tokens.getStrValue(cursor);	//変数名を保管しておく
+    	nextToken();
+    	if (variableTable.exist(name)) syntaxError("変数はすでに存在します");
+
+    	if (checkSymbol(Symbol.ASSIGN)) {	//変数に代入する形が続く.
+    		nextToken();
+    		int value = Ast.NONE;
+    		if (checkSymbol(Symbol.SUB) ||
+    				checkSymbol(Symbol.INTEGER) ||
+    				checkSymbol(Symbol.CHAR)) {
+    			value = parseConstant();
     		} else syntaxError("'-'またはINTまたはCHARが期待されます");
 
     		variableTable.registerNewVariable(Type.INT, name, 1);	//変数表に登録
-    		popAddr = iseg.appendCode(Operator.POP, variableTable.getAddress(name));	//Dsegに代入
+    		return ast.add(Ast.Kind.DECLARE_INIT, variableTable.getAddress(name), value, Ast.NONE, Ast.NONE);
 
-    	} else if(token.checkSymbol(Symbol.LBRACKET)) {  //配列の形になる．
-    		int size = 1;  //配列サイズ記憶用
-    		token = lexer.nextToken();
+    	} else if (checkSymbol(Symbol.LBRACKET)) {	//配列の形になる.
+    		nextToken();
 
-    		if(token.checkSymbol(Symbol.INTEGER)) {		//配列のサイズを指定する場合．
-    			size = token.getIntValue();  //配列サイズを記憶
-    			token = lexer.nextToken();
+    		if (checkSymbol(Symbol.INTEGER)) {	//配列のサイズを指定する場合.
+    			int size = tokens.getIntValue(cursor);  //配列サイズを記憶
+    			nextToken();
 
-    			if(token.checkSymbol(Symbol.RBRACKET))
-    				token = lexer.nextToken();
+    			if (checkSymbol(Symbol.RBRACKET))
+    				nextToken();
     			else syntaxError("']'が期待されます");
 
     			variableTable.registerNewVariable(Type.ARRAYOFINT, name, size);	//変数表に配列を登録
+    			return ast.add(Ast.Kind.DECLARE, 0);
 
-    		} else if(token.checkSymbol(Symbol.RBRACKET)) {	//配列のサイズを指定しない場合．
-    			token = lexer.nextToken();
+    		} else if (checkSymbol(Symbol.RBRACKET)) {	//配列のサイズを指定しない場合.
+    			nextToken();
 
-    			if(token.checkSymbol(Symbol.ASSIGN))
-    				token = lexer.nextToken();
+    			if (checkSymbol(Symbol.ASSIGN))
+    				nextToken();
     			else syntaxError("'='が期待されます");
 
-				if(token.checkSymbol(Symbol.LBRACE))
-					token = lexer.nextToken();
-				else syntaxError("'{'が期待されます");
+    			if (checkSymbol(Symbol.LBRACE))
+    				nextToken();
+    			else syntaxError("'{'が期待されます");
 
-				if(token.checkSymbol(Symbol.SUB) ||
-		    			token.checkSymbol(Symbol.INTEGER) ||
-		    			token.checkSymbol(Symbol.CHARACTER)) {
-		    			popAddr = parseConstant_list(name);  //引数追加
-				} else syntaxError("'-'またはINTまたはCHARが期待されます");
+    			int declarator = Ast.NONE;
+    			if (checkSymbol(Symbol.SUB) ||
+    					checkSymbol(Symbol.INTEGER) ||
+    					checkSymbol(Symbol.CHARACTER)) {
+    				declarator = parseConstant_list(name);
+    			} else syntaxError("'-'またはINTまたはCHARが期待されます");
 
-    			if(token.checkSymbol(Symbol.RBRACE))
-    				token = lexer.nextToken();
+    			if (checkSymbol(Symbol.RBRACE))
+    				nextToken();
     			else syntaxError("'}'が期待されます");
+    			return declarator;
 
     		} else syntaxError("INTEGERまたは']'が期待されます");
-    	} else variableTable.registerNewVariable(Type.INT, name, 1);	//変数表に登録
-    	return popAddr;
+    	}
+    	variableTable.registerNewVariable(Type.INT, name, 1);	//変数表に登録
+    	return ast.add(Ast.Kind.DECLARE, 0);
     }
 
     /**
      * <Constant_list>の構文解析をする
-     * 配列に代入するものを扱う
      */
     private int parseConstant_list(String name) {
-    	parseConstant();
+    	NodeList values = new NodeList();
+    	values.add(parseConstant());
     	int size = 1;
-    	int popAddr = -1; //返り値用
-    	int popAddress = iseg.appendCode(Operator.POP, -1); //POP先未定
-    	while(token.checkSymbol(Symbol.COMMA)) {
+    	while (checkSymbol(Symbol.COMMA)) {
     		size++;
-    		token = lexer.nextToken();
-    		parseConstant();
-    		iseg.appendCode(Operator.POP, -1);  //POP先未定
+    		nextToken();
+    		values.add(parseConstant());
     	}
     	variableTable.registerNewVariable(Type.ARRAYOFINT, name, size);	//変数表に登録
-    	for(int i = 0; i < size; i++) {
-    		iseg.replaceCode(popAddress + i*2, variableTable.getAddress(name) + i);
-    		popAddr = popAddress + i*2;
-    	}
-
-    	return popAddr;
+    	return ast.add(Ast.Kind.DECLARE_ARRAY_INIT, variableTable.getAddress(name), values.head, Ast.NONE, Ast.NONE);
     }
 
     /**
      * <Constant>の構文解析をする
-     * 変数に代入するもの
      */
     private int parseConstant() {
     	int value = -1;
-    	if(token.checkSymbol(Symbol.SUB)){
-    		token = lexer.nextToken();
+    	if (checkSymbol(Symbol.SUB)) {
+    		nextToken();
 
-    		if(token.checkSymbol(Symbol.INTEGER)) {
-    			value = -token.getIntValue();	//整数値を保管
-    			token = lexer.nextToken();
+    		if (checkSymbol(Symbol.INTEGER)) {
+    			value = -tokens.getIntValue(cursor);	//整数値を保管
+    			nextToken();
     		} else syntaxError("INTEGERが期待されます");
 
     	} else {
-    		value = token.getIntValue();	//整数値を保管
-			token = lexer.nextToken();
+    		value = tokens.getIntValue(cursor);	//整数値を保管
+    		nextToken();
     	}
-    	iseg.appendCode(Operator.PUSHI, value);	//代入する値を積む
-    	return value;
+    	return ast.add(Ast.Kind.CONSTANT, value);
     }
 
     /**
-     * <If_statement>の構文解析をする．
+     * <If_statement>の構文解析をする.
      */
-    private void parseIf_statement() {
-    	token = lexer.nextToken();
+    private int parseIf_statement() {
+    	nextToken();
 
-    	if(token.checkSymbol(Symbol.LPAREN))
-    		token = lexer.nextToken();
+    	if (checkSymbol(Symbol.LPAREN))
+    		nextToken();
     	else syntaxError("'('が期待されます");
 
-		if(firstExpression())
-			parseExpression();
-		else syntaxError("<Expression>が期待されます");
+    	int condition = Ast.NONE;
+    	if (firstExpression())
+    		condition = parseExpression();
+    	else syntaxError("<Expression>が期待されます");
 
-		if(token.checkSymbol(Symbol.RPAREN))
-			token = lexer.nextToken();
-		else syntaxError("')'が期待されます");
-
-		int beqAddr = iseg.appendCode(Operator.BEQ, -1);  //飛び先が未定なので変数に格納する
-
-		if(firstStatement())
-		    parseStatement();
-		else syntaxError("<Statement>が期待されます");
+    	if (checkSymbol(Symbol.RPAREN))
+    		nextToken();
+    	else syntaxError("')'が期待されます");
 
-		iseg.replaceCode(beqAddr, iseg.getLastCodeAddress()+1); //飛び先が決定したので変更する
+    	int body = Ast.NONE;
+    	if (firstStatement())
+    		body = parseStatement();
+    	else syntaxError("<Statement>が期待されます");
 
+    	return ast.add(Ast.Kind.IF, 0, condition, body, Ast.NONE);
     }
 
     /**
-     * <While_statement>の構文解析をする．
+     * <While_statement>の構文解析をする.
      */
-    private void parseWhile_statement() {
-    	token = lexer.nextToken();
+    private int parseWhile_statement() {
+    	nextToken();
 
-    	if(token.checkSymbol(Symbol.LPAREN))
-    		token = lexer.nextToken();
+    	if (checkSymbol(Symbol.LPAREN))
+    		nextToken();
     	else syntaxError("'('が期待されます");
 
-    	int lastAddr = iseg.getLastCodeAddress();  //条件式直前の番地を記憶
-
-		if(firstExpression())
-			parseExpression();
-		else syntaxError("<Expression>が期待されます");
-
-		if(token.checkSymbol(Symbol.RPAREN))
-			token = lexer.nextToken();
-		else syntaxError("')'が期待されます");
-
-		int beqAddr = iseg.appendCode(Operator.BEQ, -1);  //飛び先未定
-
-		/* ここからbreak文のための処理 */
-		boolean outerLoop = inLoop;  //while文外部の情報を記憶
-		ArrayList<Integer> outerList = breakAddrList;  //ループに入る前にリストを記憶しておく
-		inLoop = true;
-		breakAddrList = new ArrayList<Integer>();  //リストを初期化
-		/* ここまでbreak文のための処理 */
-
-		if(firstStatement())
-			parseStatement();
-		else syntaxError("<Statement>が期待されます");
-
-		int jumpAddr = iseg.appendCode(Operator.JUMP, lastAddr+1);  //条件式へJUMP
+    	int condition = Ast.NONE;
+    	if (firstExpression())
+    		condition = parseExpression();
+    	else syntaxError("<Expression>が期待されます");
 
-		/* ここからbreak文のための処理 */
-		for(int i=0; i<breakAddrList.size(); ++i) {
-			int breakAddr = breakAddrList.get(i);  //break文の番地
-			iseg.replaceCode(breakAddr, jumpAddr+1);  //ループ外へ
-		}
-		inLoop = outerLoop;
-		breakAddrList = outerList;
-		/* ここまでbreak文のための処理 */
+    	if (checkSymbol(Symbol.RPAREN))
+    		nextToken();
+    	else syntaxError("')'が期待されます");
 
-		iseg.replaceCode(beqAddr, jumpAddr+1); //while文の終わりがわかったので書き換える
+    	int body = parseLoopBody();
+    	return ast.add(Ast.Kind.WHILE, 0, condition, body, Ast.NONE);
     }
 
     /**
-     * <For_statement>の構文解析をする．
+     * <For_statement>の構文解析をする.
      */
-    private void parseFor_statement() {
-    	token = lexer.nextToken();
+    private int parseFor_statement() {
+    	nextToken();
     	int tableSize = variableTable.size();  //変数表のサイズを記憶
-    	int removeAddr = -1;
-
-    	if(token.checkSymbol(Symbol.LPAREN)) {
-    		token = lexer.nextToken();
-    	} else syntaxError("'('が期待されます");
-
-    	if(firstExpression()) {
-			parseExpression();
-			removeAddr = iseg.appendCode(Operator.REMOVE);  //条件式直前の番地を記憶
-		} else if(token.checkSymbol(Symbol.INT)) {
-			removeAddr = parseVar_decl();
-		} else syntaxError("<Expression>または<Var_decl>が期待されます");
-
-		if(token.checkSymbol(Symbol.SEMICOLON)) {
-			token = lexer.nextToken();
-		} else syntaxError("';'が期待されます");
-
-		if(firstExpression()) {
-			parseExpression();
-		} else syntaxError("<Expression>が期待されます");
-
-		if(token.checkSymbol(Symbol.SEMICOLON))
-			token = lexer.nextToken();
-		else syntaxError("';'が期待されます");
-
-		int beqAddr = iseg.appendCode(Operator.BEQ, -1);  //飛び先未定
-		int jumpAddr = iseg.appendCode(Operator.JUMP, -1);  //飛び先未定
-
-		if(firstExpression())
-			parseExpression();
-		else syntaxError("<Expression>が期待されます");
-
-		if(token.checkSymbol(Symbol.RPAREN))
-			token = lexer.nextToken();
-		else syntaxError("')'が期待されます");
-
-		iseg.appendCode(Operator.REMOVE);
-		int jumpAddr2 = iseg.appendCode(Operator.JUMP, removeAddr+1);
-
-		/* ここからbreak文のための処理 */
-		boolean outerLoop = inLoop;  //for文外部の情報を記憶
-		ArrayList<Integer> outerList = breakAddrList;  //ループに入る前にリストを記憶しておく
-		inLoop = true;
-		breakAddrList = new ArrayList<Integer>();  //リストを初期化
-		/* ここまでbreak文のための処理 */
 
+    	if (checkSymbol(Symbol.LPAREN))
+    		nextToken();
+    	else syntaxError("'('が期待されます");
 
-		if(firstStatement())
-			parseStatement();
-		else syntaxError("<Statement>が期待されます");
+    	int init = Ast.NONE;
+    	if (firstExpression())
+    		init = parseExpression();
+    	else if (checkSymbol(Symbol.INT))
+    		init = parseVar_decl();
+    	else syntaxError("<Expression>または<Var_decl>が期待されます");
 
-		int jumpAddr3 = iseg.appendCode(Operator.JUMP, jumpAddr+1);
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
+    	else syntaxError("';'が期待されます");
 
+    	int condition = Ast.NONE;
+    	if (firstExpression())
+    		condition = parseExpression();
+    	else syntaxError("<Expression>が期待されます");
 
-		/* ここからbreak文のための処理 */
-		for(int i = 0; i<breakAddrList.size(); ++i) {
-			int breakAddr = breakAddrList.get(i);  //break文の番地
-			iseg.replaceCode(breakAddr, jumpAddr+1); //ループ外へ
-		}
-		inLoop = outerLoop;    //外部のループ情報を復帰
-		breakAddrList = outerList;
-		/* ここまでbreak文のための処理 */
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
+    	else syntaxError("';'が期待されます");
 
+    	int update = Ast.NONE;
+    	if (firstExpression())
+    		update = parseExpression();
+    	else syntaxError("<Expression>が期待されます");
 
-		iseg.replaceCode(beqAddr, jumpAddr3+1); //飛び先修正
-		iseg.replaceCode(jumpAddr, jumpAddr2+1); //飛び先修正
+    	if (checkSymbol(Symbol.RPAREN))
+    		nextToken();
+    	else syntaxError("')'が期待されます");
 
-		variableTable.removeTail(tableSize);  //変数表の末尾を削除
+    	int body = parseLoopBody();
+    	variableTable.removeTail(tableSize);  //変数表の末尾を削除
+    	return ast.add(Ast.Kind.FOR, init, condition, update, body);
     }
 
     /**
-     * <Exp_statement>の構文解析をする．
+     * while, for 文の本体の構文解析をする. 本体の中では break 文を許す
      */
-    private void parseExp_statement() {
-    	parseExpression();
-    	if(token.checkSymbol(Symbol.SEMICOLON)) {
-			token = lexer.nextToken();
-			iseg.appendCode(Operator.REMOVE);
-    	}
-		else syntaxError("';'が期待されます");
+    private int parseLoopBody() {
+    	boolean outerLoop = inLoop;  //ループ外部の情報を記憶
+    	inLoop = true;
+    	int body = Ast.NONE;
+    	if (firstStatement())
+    		body = parseStatement();
+    	else syntaxError("<Statement>が期待されます");
+    	inLoop = outerLoop;
+    	return body;
     }
 
     /**
-     * <Outputchar_statement>の構文解析をする．
-     * 文字の出力文を扱う
+     * <Exp_statement>の構文解析をする.
      */
-    private void parseOutputchar_statement() {
-    	token = lexer.nextToken();
-
-    	if(token.checkSymbol(Symbol.LPAREN))
-			token = lexer.nextToken();
-		else syntaxError("'('が期待されます");
-
-    	if(firstExpression())
-			parseExpression();
-		else syntaxError("<Expression>が期待されます");
-
-    	if(token.checkSymbol(Symbol.RPAREN))
-			token = lexer.nextToken();
-		else syntaxError("')'が期待されます");
-
-    	if(token.checkSymbol(Symbol.SEMICOLON))
-			token = lexer.nextToken();
-		else syntaxError("';'が期待されます");
-
-    	//コード生成
-    	iseg.appendCode(Operator.OUTPUTC);
-    	iseg.appendCode(Operator.OUTPUTLN);
+    private int parseExp_statement() {
+    	int expression = parseExpression();
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
+    	else syntaxError("';'が期待されます");
+    	return ast.add(Ast.Kind.EXPRESSION_STATEMENT, 0, expression, Ast.NONE, Ast.NONE);
     }
 
     /**
-     * <Outputint_statement>の構文解析をする．
-     * 数字の出力文を扱う
+     * <Outputchar_statement>, <Outputint_statement>の構文解析をする.
+     * @param kind OUTPUT_CHAR または OUTPUT_INT
      */
-    private void parseOutputint_statement() {
-    	token = lexer.nextToken();
+    private int parseOutput_statement(Ast.Kind kind) {
+    	nextToken();
 
-    	if(token.checkSymbol(Symbol.LPAREN))
-			token = lexer.nextToken();
-		else syntaxError("'('が期待されます");
+    	if (checkSymbol(Symbol.LPAREN))
+    		nextToken();
+    	else syntaxError("'('が期待されます");
 
-    	if(firstExpression())
-			parseExpression();
-		else syntaxError("<Expression>が期待されます");
+    	int expression = Ast.NONE;
+    	if (firstExpression())
+    		expression = parseExpression();
+    	else syntaxError("<Expression>が期待されます");
 
-    	if(token.checkSymbol(Symbol.RPAREN))
-			token = lexer.nextToken();
-		else syntaxError("')'が期待されます");
+    	if (checkSymbol(Symbol.RPAREN))
+    		nextToken();
+    	else syntaxError("')'が期待されます");
 
-    	if(token.checkSymbol(Symbol.SEMICOLON))
-			token = lexer.nextToken();
-		else syntaxError("';'が期待されます");
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
+    	else syntaxError("';'が期待されます");
 
-    	//コード生成
-    	iseg.appendCode(Operator.OUTPUT);
-    	iseg.appendCode(Operator.OUTPUTLN);
+    	return ast.add(kind, 0, expression, Ast.NONE, Ast.NONE);
     }
 
     /**
-     * <Break_statement>の構文解析をする．
-     * break文を扱う
+     * <Break_statement>の構文解析をする.
      */
-    private void parseBreak_statement() {
-    	token = lexer.nextToken();
-
-    	if(inLoop == false) syntaxError("ループ内ではありません");
+    private int parseBreak_statement() {
+    	nextToken();
 
-    	int addr = iseg.appendCode(Operator.JUMP, -1);  //飛び先未定
-    	breakAddrList.add(addr);  //JUMP命令の番地を記憶
+    	if (inLoop == false) syntaxError("ループ内ではありません");
 
-    	if(token.checkSymbol(Symbol.SEMICOLON))
-			token = lexer.nextToken();
-		else syntaxError("';'が期待されます");
+    	if (checkSymbol(Symbol.SEMICOLON))
+    		nextToken();
+    	else syntaxError("';'が期待されます");
+    	return ast.add(Ast.Kind.BREAK, 0);
     }
 
     /**
-     * <Expression>の構文解析をする．
-     * 主に代入演算を扱う．
+     * <Expression>の構文解析をする.
+     * 主に代入演算を扱う.
      */
-    private void parseExpression() {
-        boolean hasLeftValue = parseExp();	//左辺値の有無を記憶
-        if (token.checkSymbol(Symbol.ASSIGN)
-            || token.checkSymbol(Symbol.ASSIGNADD)
-            || token.checkSymbol(Symbol.ASSIGNSUB)
-            || token.checkSymbol(Symbol.ASSIGNMUL)
-            || token.checkSymbol(Symbol.ASSIGNDIV)) {
-
-        	if(!hasLeftValue) syntaxError("左辺値がありません");
-        	Symbol op = token.getSymbol(); 	//演算子を記憶
-            token = lexer.nextToken();
-
-            if(op != Symbol.ASSIGN) {
-            	iseg.appendCode(Operator.COPY);
-            	iseg.appendCode(Operator.LOAD);
-            }
-
-            if(firstExpression())
-            	parseExpression();
-            else syntaxError("<Expression>が期待されます");
-            if(op == Symbol.ASSIGNADD) iseg.appendCode(Operator.ADD);
-            else if(op == Symbol.ASSIGNSUB) iseg.appendCode(Operator.SUB);
-            else if(op == Symbol.ASSIGNMUL) iseg.appendCode(Operator.MUL);
-            else if(op == Symbol.ASSIGNDIV) iseg.appendCode(Operator.DIV);
-            iseg.appendCode(Operator.ASSGN);
-        }
+    private int parseExpression() {
+    	boolean[] hasLeftValue = new boolean[1];	//左辺値の有無を記憶
+    	int target = parseExp(hasLeftValue);
+    	if (checkSymbol(Symbol.ASSIGN)
+    			|| checkSymbol(Symbol.ASSIGNADD)
+    			|| checkSymbol(Symbol.ASSIGNSUB)
+    			|| checkSymbol(Symbol.ASSIGNMUL)
+    			|| checkSymbol(Symbol.ASSIGNDIV)) {
+
+    		if (!hasLeftValue[0]) syntaxError("左辺値がありません");
+    		Symbol op = tokens.getSymbol(cursor);	//演算子を記憶
+    		nextToken();
+
+    		int value = Ast.NONE;
+    		if (firstExpression())
+    			value = parseExpression();
+    		else syntaxError("<Expression>が期待されます");
+
+    		int operator = -1;
+    		if (op == Symbol.ASSIGNADD) operator = Operator.ADD.ordinal();
+    		else if (op == Symbol.ASSIGNSUB) operator = Operator.SUB.ordinal();
+    		else if (op == Symbol.ASSIGNMUL) operator = Operator.MUL.ordinal();
+    		else if (op == Symbol.ASSIGNDIV) operator = Operator.DIV.ordinal();
+    		return ast.add(Ast.Kind.ASSIGN, operator, target, value, Ast.NONE);
+    	}
+    	return target;
     }
 
     /**
-     * <Exp>の構文解析をする．
+     * <Exp>の構文解析をする.
      * OR演算を扱う
-     * 左辺値があるならtrueを返す
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
      */
-    private boolean parseExp() {
-    	boolean hasLeftValue = parseLogical_term();
-
-    	while(token.checkSymbol(Symbol.OR)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    		token = lexer.nextToken();
-    		if(firstExpression())
-    			parseLogical_term();
+    private int parseExp(boolean[] hasLeftValue) {
+    	NodeList terms = new NodeList();
+    	int first = parseLogical_term(hasLeftValue);
+    	terms.add(first);
+
+    	while (checkSymbol(Symbol.OR)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		nextToken();
+    		if (firstExpression())
+    			terms.add(parseLogical_term(new boolean[1]));
     		else syntaxError("<Logical_term>が期待されます");
-
-    		iseg.appendCode(Operator.OR);
     	}
-    	return hasLeftValue;
+
+    	// 因子が一つだけなら論理式の節点を作らない
+    	if (terms.head == terms.tail && ast.next(ast.first(first)) == Ast.NONE)
+    		return ast.first(first);
+    	return ast.add(Ast.Kind.LOGICAL, 0, terms.head, Ast.NONE, Ast.NONE);
     }
 
     /**
-     * <Logical_term>の構文解析をする．
+     * <Logical_term>の構文解析をする.
      * AND演算を扱う
-     * 左辺値があるならtrueを返す
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
      */
-    private boolean parseLogical_term() {
-    	boolean hasLeftValue = parseLogical_factor();
-
-    	while(token.checkSymbol(Symbol.AND)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    		token = lexer.nextToken();
-    		if(firstExpression())
-    			parseLogical_factor();
+    private int parseLogical_term(boolean[] hasLeftValue) {
+    	NodeList factors = new NodeList();
+    	factors.add(parseLogical_factor(hasLeftValue));
+
+    	while (checkSymbol(Symbol.AND)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		nextToken();
+    		if (firstExpression())
+    			factors.add(parseLogical_factor(new boolean[1]));
     		else syntaxError("<Logical_factor>が期待されます");
-
-    		iseg.appendCode(Operator.AND);
     	}
-    	return hasLeftValue;
+    	return ast.add(Ast.Kind.TERM, 0, factors.head, Ast.NONE, Ast.NONE);
     }
 
     /**
-     * <Logical_factor>の構文解析をする．
+     * <Logical_factor>の構文解析をする.
      * 比較演算を扱う
-     * 左辺値があるならtrueを返す
-     */
-    private boolean parseLogical_factor() {
-    	boolean hasLeftValue = parseArithmetic_expression();
-
-    	if(token.checkSymbol(Symbol.EQUAL) ||
-    			token.checkSymbol(Symbol.NOTEQ) ||
-    			token.checkSymbol(Symbol.LESS) ||
-    			token.checkSymbol(Symbol.GREAT)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    		Symbol op = token.getSymbol();  //演算子を記憶
-    		token = lexer.nextToken();
-    		if(firstExpression())
-    			parseArithmetic_expression();
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
+     */
+    private int parseLogical_factor(boolean[] hasLeftValue) {
+    	int left = parseArithmetic_expression(hasLeftValue);
+
+    	if (checkSymbol(Symbol.EQUAL) ||
+    			checkSymbol(Symbol.NOTEQ) ||
+    			checkSymbol(Symbol.LESS) ||
+    			checkSymbol(Symbol.GREAT)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		Symbol op = tokens.getSymbol(cursor);  //演算子を記憶
+    		nextToken();
+    		int right = Ast.NONE;
+    		if (firstExpression())
+    			right = parseArithmetic_expression(new boolean[1]);
     		else syntaxError("<Arithmetic_expression>が期待されます");
 
-    		int compAddr = iseg.appendCode(Operator.COMP);
-    		switch(op) {
-    			case EQUAL:
-    				iseg.appendCode(Operator.BEQ, compAddr+4);
-    				break;
-    			case NOTEQ:
-    				iseg.appendCode(Operator.BNE, compAddr+4);
-    				break;
-    			case LESS:
-    				iseg.appendCode(Operator.BLT, compAddr+4);
-    				break;
-    			case GREAT:
-    				iseg.appendCode(Operator.BGT, compAddr+4);
-    				break;
-    			default: break;
+    		Operator branch;
+    		switch (op) {
+    		case EQUAL: branch = Operator.BEQ; break;
+    		case NOTEQ: branch = Operator.BNE; break;
+    		case LESS: branch = Operator.BLT; break;
+    		default: branch = Operator.BGT; break;
     		}
-
-    		iseg.appendCode(Operator.PUSHI, 0);
-    		iseg.appendCode(Operator.JUMP, compAddr+5);
-    		iseg.appendCode(Operator.PUSHI, 1);
+    		return ast.add(Ast.Kind.COMPARE, branch.ordinal(), left, right, Ast.NONE);
     	}
-    	return hasLeftValue;
+    	return left;
     }
 
     /**
-     * <Arithmetic_expression>の構文解析をする．
-     * 左辺値があるならtrueを返す
+     * <Arithmetic_expression>の構文解析をする.
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
      */
-    private boolean parseArithmetic_expression() {
-    	boolean hasLeftValue = parseArithmetic_term();
-
-    	while(token.checkSymbol(Symbol.ADD) ||
-    			token.checkSymbol(Symbol.SUB)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-
-    		char operator;
-    		if(token.checkSymbol(Symbol.ADD))
-    			operator = '+';
-    		else
-    			operator = '-';
-
-    		token = lexer.nextToken();
-    		if(firstExpression())
-    			parseArithmetic_term();
+    private int parseArithmetic_expression(boolean[] hasLeftValue) {
+    	int left = parseArithmetic_term(hasLeftValue);
+
+    	while (checkSymbol(Symbol.ADD) ||
+    			checkSymbol(Symbol.SUB)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		Operator operator = checkSymbol(Symbol.ADD) ? Operator.ADD : Operator.SUB;
+
+    		nextToken();
+    		int right = Ast.NONE;
+    		if (firstExpression())
+    			right = parseArithmetic_term(new boolean[1]);
     		else syntaxError("<Arithmetic_term>が期待されます");
-
-    		/* コード生成 */
-    		if(operator == '+')
-    			iseg.appendCode(Operator.ADD);
-    		else
-    			iseg.appendCode(Operator.SUB);
+    		left = ast.add(Ast.Kind.BINARY, operator.ordinal(), left, right, Ast.NONE);
     	}
-    	return hasLeftValue;
+    	return left;
     }
 
     /**
-     * <Arithmetic_term>の構文解析をする．
-     * 左辺値があるならtrueを返す
+     * <Arithmetic_term>の構文解析をする.
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
      */
-    private boolean parseArithmetic_term() {
-    	boolean hasLeftValue = parseArithmetic_factor();
-
-    	while(token.checkSymbol(Symbol.MUL) ||
-    			token.checkSymbol(Symbol.DIV) ||
-    			token.checkSymbol(Symbol.MOD)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-
-    		char operator;
-    		if(token.checkSymbol(Symbol.MUL))
-    			operator = '*';
-    		else if(token.checkSymbol(Symbol.DIV))
-    			operator = '/';
+    private int parseArithmetic_term(boolean[] hasLeftValue) {
+    	int left = parseArithmetic_factor(hasLeftValue);
+
+    	while (checkSymbol(Symbol.MUL) ||
+    			checkSymbol(Symbol.DIV) ||
+    			checkSymbol(Symbol.MOD)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		Operator operator;
+    		if (checkSymbol(Symbol.MUL))
+    			operator = Operator.MUL;
+    		else if (checkSymbol(Symbol.DIV))
+    			operator = Operator.DIV;
     		else
-    			operator = '%';
+    			operator = Operator.MOD;
 
-    		token = lexer.nextToken();
-    		if(firstExpression())
-    			parseArithmetic_factor();
+    		nextToken();
+    		int right = Ast.NONE;
+    		if (firstExpression())
+    			right = parseArithmetic_factor(new boolean[1]);
     		else syntaxError("<Arithmetic_factor>が期待されます");
-
-    		/* コード生成 */
-    		if(operator == '*')
-    			iseg.appendCode(Operator.MUL);
-    		else if(operator == '/')
-    			iseg.appendCode(Operator.DIV);
-    		else
-    			iseg.appendCode(Operator.MOD);
+    		left = ast.add(Ast.Kind.BINARY, operator.ordinal(), left, right, Ast.NONE);
     	}
-    	return hasLeftValue;
+    	return left;
     }
 
     /**
-     * <Arithmetic_factor>の構文解析をする．
-     * 左辺値があるならtrueを返す
+     * <Arithmetic_factor>の構文解析をする.
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にする
      */
-    private boolean parseArithmetic_factor() {
-    	boolean hasLeftValue = false;
-    	if(token.checkSymbol(Symbol.SUB) ||
-    		token.checkSymbol(Symbol.NOT)) {
-    		hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    		boolean minus = false;			//負の数であるか
-    		if(token.checkSymbol(Symbol.SUB))
-    			minus = true;
-    		token = lexer.nextToken();
-
-    		if(firstExpression())
-    			parseArithmetic_factor();
+    private int parseArithmetic_factor(boolean[] hasLeftValue) {
+    	if (checkSymbol(Symbol.SUB) ||
+    			checkSymbol(Symbol.NOT)) {
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		Operator operator = checkSymbol(Symbol.SUB) ? Operator.CSIGN : Operator.NOT;
+    		nextToken();
+
+    		int operand = Ast.NONE;
+    		if (firstExpression())
+    			operand = parseArithmetic_factor(new boolean[1]);
     		else syntaxError("<Arithmetic_factor>が期待されます");
-
-    		/* コード生成 */
-    		if(minus) iseg.appendCode(Operator.CSIGN);
-    		else iseg.appendCode(Operator.NOT);
-    	} else {
-    		hasLeftValue =  parseUnsigned_factor();
+    		return ast.add(Ast.Kind.UNARY, operator.ordinal(), operand, Ast.NONE, Ast.NONE);
     	}
-    	return hasLeftValue;
+    	return parseUnsigned_factor(hasLeftValue);
     }
 
     /**
-     * <Unsigned_factor>の構文解析をする．
-     * 左辺値があるならtrueを返す
+     * <Unsigned_factor>の構文解析をする.
+     * @param hasLeftValue 左辺値があるなら先頭の要素を true にし, そうでなければ false にする
      */
-    private boolean parseUnsigned_factor() {
-    	boolean hasLeftValue = false;
+    private int parseUnsigned_factor(boolean[] hasLeftValue) {
+    	hasLeftValue[0] = false;
 
-    	if(token.checkSymbol(Symbol.NAME)) {
-    		hasLeftValue = true;	//左辺値が出てきた
-    		String name = token.getStrValue();	//変数名を保存
+    	if (checkSymbol(Symbol.NAME)) {
+    		hasLeftValue[0] = true;	//左辺値が出てきた
+    		String name = tokens.getStrValue(cursor);	//変数名を保存
     		int address = variableTable.getAddress(name);	//アドレスを保存
-    		token = lexer.nextToken();
+    		nextToken();
 
     		//型検査
-    		if(!token.checkSymbol(Symbol.LBRACKET)) {
-    			if(!variableTable.checkType(name, Type.INT))
+    		if (!checkSymbol(Symbol.LBRACKET)) {
+    			if (!variableTable.checkType(name, Type.INT))
     				syntaxError("型が不一致です");
     		}
 
-    		//コード生成
-    		if(token.checkSymbol(Symbol.ASSIGN) || token.checkSymbol(Symbol.LBRACKET) ||
-    			token.checkSymbol(Symbol.ASSIGNADD) || token.checkSymbol(Symbol.ASSIGNSUB) ||
-    			token.checkSymbol(Symbol.ASSIGNMUL) || token.checkSymbol(Symbol.ASSIGNDIV)) {	//左辺値の場合
-    			iseg.appendCode(Operator.PUSHI, address); //左辺値を積む
-    		} else {
-    			iseg.appendCode(Operator.PUSH, address);  //右辺値を積む
+    		// NAME++, NAME--の場合
+    		if (checkSymbol(Symbol.INC) || checkSymbol(Symbol.DEC)) {
+    			hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    			Ast.Kind kind = checkSymbol(Symbol.INC) ? Ast.Kind.POST_INCREMENT : Ast.Kind.POST_DECREMENT;
+    			nextToken();
+    			return ast.add(kind, address);
     		}
 
-    		// NAME++の場合
-    		if(token.checkSymbol(Symbol.INC)) {
-    			hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    			token = lexer.nextToken();
-
-    			// 後置インクリメントのコード生成
-    			iseg.appendCode(Operator.COPY);
-    			iseg.appendCode(Operator.INC);
-        		iseg.appendCode(Operator.POP, address);
+    		if (!checkSymbol(Symbol.LBRACKET)) {
+    			if (isAssignment())	//左辺値の場合
+    				return ast.add(Ast.Kind.VARIABLE_ADDRESS, address);
+    			return ast.add(Ast.Kind.VARIABLE, address);
+    		}
 
-        	// NAME--の場合
-    		} else if(token.checkSymbol(Symbol.DEC)) {
-    			hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    			token = lexer.nextToken();
+    		//配列の場合の型検査
+    		if (!variableTable.checkType(name, Type.ARRAYOFINT))
+    			syntaxError("型が不一致です");
 
-    			// 後置デクリメントのコード生成
-    			iseg.appendCode(Operator.COPY);
-        		iseg.appendCode(Operator.DEC);
-        		iseg.appendCode(Operator.POP, address);
+    		nextToken();
 
-    		} else if(token.checkSymbol(Symbol.LBRACKET)){	//配列の場合
-    			//型検査
-    			if(!variableTable.checkType(name, Type.ARRAYOFINT))
-    				syntaxError("型が不一致です");
+    		int index = Ast.NONE;
+    		if (firstExpression())
+    			index = parseExpression();	//配列の添字の部分を解析
+    		else syntaxError("<Expression>が期待されます");
 
-    			token = lexer.nextToken();
+    		if (checkSymbol(Symbol.RBRACKET))
+    			nextToken();
+    		else syntaxError("']'が期待されます");
 
-    			if(firstExpression())
-    				parseExpression();	//配列の添字の部分を解析
-    			else syntaxError("<Expression>が期待されます");
+    		if (isAssignment())	//左辺値の場合
+    			return ast.add(Ast.Kind.ELEMENT_ADDRESS, address, index, Ast.NONE, Ast.NONE);
+    		if (!checkSymbol(Symbol.INC) && !checkSymbol(Symbol.DEC))
+    			return ast.add(Ast.Kind.ELEMENT, address, index, Ast.NONE, Ast.NONE);
 
-    			if(token.checkSymbol(Symbol.RBRACKET))
-    				token = lexer.nextToken();
-    			else syntaxError("']'が期待されます");
-
-    			iseg.appendCode(Operator.ADD); //配列の番地を出す
-    			if(!token.checkSymbol(Symbol.ASSIGN) && !token.checkSymbol(Symbol.ASSIGNADD) &&
-    				!token.checkSymbol(Symbol.ASSIGNSUB) && !token.checkSymbol(Symbol.ASSIGNMUL) &&
-    				!token.checkSymbol(Symbol.ASSIGNDIV) && !token.checkSymbol(Symbol.INC) &&
-    				!token.checkSymbol(Symbol.DEC))	//左辺値かどうか
-    				iseg.appendCode(Operator.LOAD);
-
-    			// NAME[<Expression>]++の場合
-    			if(token.checkSymbol(Symbol.INC)) {
-    				hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    				token = lexer.nextToken();
-    				// 後置インクリメントのコード生成
-        			iseg.appendCode(Operator.COPY);
-        			iseg.appendCode(Operator.LOAD);
-        			iseg.appendCode(Operator.INC);
-            		iseg.appendCode(Operator.ASSGN);
-            		iseg.appendCode(Operator.DEC);
-    			}
-
-    			// NAME[<Expression>]--の場合
-    			if(token.checkSymbol(Symbol.DEC)) {
-    				hasLeftValue = false;  //演算をすると左辺値ではなくなる
-    				token = lexer.nextToken();
-    				// 後置インクリメントのコード生成
-    				iseg.appendCode(Operator.COPY);
-        			iseg.appendCode(Operator.LOAD);
-        			iseg.appendCode(Operator.DEC);
-            		iseg.appendCode(Operator.ASSGN);
-            		iseg.appendCode(Operator.INC);
-    			}
+    		// NAME[<Expression>]++, NAME[<Expression>]--の場合 (++ の後に -- が続いてもよい)
+    		hasLeftValue[0] = false;  //演算をすると左辺値ではなくなる
+    		int postfix = 0;
+    		if (checkSymbol(Symbol.INC)) {
+    			nextToken();
+    			postfix |= Ast.POSTFIX_INCREMENT;
+    		}
+    		if (checkSymbol(Symbol.DEC)) {
+    			nextToken();
+    			postfix |= Ast.POSTFIX_DECREMENT;
     		}
+    		return ast.add(Ast.Kind.ELEMENT_POSTFIX, address, index, postfix, Ast.NONE);
 
-    	} else if(token.checkSymbol(Symbol.INC) ||
-    			token.checkSymbol(Symbol.DEC)) {
-    		Symbol op = token.getSymbol();
-    		token = lexer.nextToken();
+    	} else if (checkSymbol(Symbol.INC) ||
+    			checkSymbol(Symbol.DEC)) {
+    		boolean increment = checkSymbol(Symbol.INC);
+    		nextToken();
     		int addr = -1; //変数のアドレス記憶用
     		String name = "";  //変数名記憶用
 
-    		if(token.checkSymbol(Symbol.NAME)) {
-    			addr = variableTable.getAddress(token.getStrValue());
-    			name = token.getStrValue();	//変数名を記憶
-    			token = lexer.nextToken();
+    		if (checkSymbol(Symbol.NAME)) {
+    			addr = variableTable.getAddress(tokens.getStrValue(cursor));
+    			name = tokens.getStrValue(cursor);	//変数名を記憶
+    			nextToken();
     		}
     		else syntaxError("NAMEが期待されます");
 
-    		if(token.checkSymbol(Symbol.LBRACKET)){  //配列の場合
+    		if (checkSymbol(Symbol.LBRACKET)) {  //配列の場合
     			//型検査
-    			if(!variableTable.checkType(name, Type.ARRAYOFINT))
+    			if (!variableTable.checkType(name, Type.ARRAYOFINT))
     				syntaxError("型が不一致です");
 
-    			token = lexer.nextToken();
-
-    			iseg.appendCode(Operator.PUSHI, addr);
+    			nextToken();
 
-    			if(firstExpression())
-    				parseExpression();
+    			int index = Ast.NONE;
+    			if (firstExpression())
+    				index = parseExpression();
     			else syntaxError("<Expression>が期待されます");
 
-    			if(token.checkSymbol(Symbol.RBRACKET))
-    				token = lexer.nextToken();
+    			if (checkSymbol(Symbol.RBRACKET))
+    				nextToken();
     			else syntaxError("']'が期待されます");
 
-    			//配列の場合の前置INC,DECのコード生成
-    			iseg.appendCode(Operator.ADD);
-    			iseg.appendCode(Operator.COPY);
-    			iseg.appendCode(Operator.LOAD);
-    			if(op == Symbol.INC) iseg.appendCode(Operator.INC);
-        		else iseg.appendCode(Operator.DEC);
-    			iseg.appendCode(Operator.ASSGN);
-    		} else {
-    			//配列でない場合の型検査
-    			if(!variableTable.checkType(name, Type.INT))
-    				syntaxError("型が不一致です");
-
-    			//配列でない場合の前置INC,DECのコード生成
-    			iseg.appendCode(Operator.PUSH, addr);
-        		if(op == Symbol.INC) iseg.appendCode(Operator.INC);
-        		else iseg.appendCode(Operator.DEC);
-        		iseg.appendCode(Operator.COPY);
-        		iseg.appendCode(Operator.POP, addr);
+    			Ast.Kind kind = increment ? Ast.Kind.PRE_INCREMENT_ELEMENT : Ast.Kind.PRE_DECREMENT_ELEMENT;
+    			return ast.add(kind, addr, index, Ast.NONE, Ast.NONE);
     		}
+    		//配列でない場合の型検査
+    		if (!variableTable.checkType(name, Type.INT))
+    			syntaxError("型が不一致です");
+    		return ast.add(increment ? Ast.Kind.PRE_INCREMENT : Ast.Kind.PRE_DECREMENT, addr);
+
+    	} else if (checkSymbol(Symbol.LPAREN)) {
+    		nextToken();
+
+    		int expression = Ast.NONE;
+    		if (firstExpression())
+    			expression = parseExpression();
+    		else syntaxError("<Expression>が期待されます");
+
+    		if (checkSymbol(Symbol.RPAREN))
+    			nextToken();
+    		else syntaxError("')'が期待されます");
+    		return ast.add(Ast.Kind.PAREN, 0, expression, Ast.NONE, Ast.NONE);
+
+    	} else if (checkSymbol(Symbol.INTEGER) ||
+    			checkSymbol(Symbol.CHARACTER)) {
+    		int value = tokens.getIntValue(cursor);
+    		nextToken();
+    		return ast.add(Ast.Kind.CONSTANT, value);
+    	} else if (checkSymbol(Symbol.INPUTINT)) {
+    		nextToken();
+    		return ast.add(Ast.Kind.INPUT_INT, 0);
+    	} else if (checkSymbol(Symbol.INPUTCHAR)) {
+    		nextToken();
+    		return ast.add(Ast.Kind.INPUT_CHAR, 0);
+    	}
+    	nextToken();
+    	return ast.add(Ast.Kind.EMPTY, 0);
+    }
 
+    /**
+     * 現在のトークンが代入演算子かを判定する
+     */
+    private boolean isAssignment() {
+    	return checkSymbol(Symbol.ASSIGN) || checkSymbol(Symbol.ASSIGNADD) ||
+    			checkSymbol(Symbol.ASSIGNSUB) || checkSymbol(Symbol.ASSIGNMUL) ||
+    			checkSymbol(Symbol.ASSIGNDIV);
+    }
 
-    	} else if(token.checkSymbol(Symbol.LPAREN)) {
-    		token = lexer.nextToken();
-
-    		if(firstExpression())
-				parseExpression();
-			else syntaxError("<Expression>が期待されます");
-
-    		if(token.checkSymbol(Symbol.RPAREN))
-				token = lexer.nextToken();
-			else syntaxError("')'が期待されます");
+    /**
+     * 次のトークンに進む
+     */
+    private void nextToken() {
+    	cursor++;
+    }
 
-    	} else if(token.checkSymbol(Symbol.INTEGER) ||
-    				token.checkSymbol(Symbol.CHARACTER)) {
-    		int value = token.getIntValue();
-    		token = lexer.nextToken();
-    		iseg.appendCode(Operator.PUSHI, value);
-    	} else if(token.checkSymbol(Symbol.INPUTINT)) {
-    		token = lexer.nextToken();
-    		iseg.appendCode(Operator.INPUT);
-    	} else if(token.checkSymbol(Symbol.INPUTCHAR)) {
-    		token = lexer.nextToken();
-    		iseg.appendCode(Operator.INPUTC);
-    	} else
-    		token = lexer.nextToken();
-    	return hasLeftValue;
+    /**
+     * 現在のトークンの種別が symbolType と一致するかどうかを調べる
+     */
+    private boolean checkSymbol(Symbol symbolType) {
+    	return tokens.checkSymbol(cursor, symbolType);
     }
 
     /**
@@ -910,25 +794,25 @@ public class Kc {
      * trueを返し，そうでなければfalseを返す．
      */
     private boolean firstStatement() {
-    	if(token.checkSymbol(Symbol.INT) ||
-		   token.checkSymbol(Symbol.IF) ||
-    	   token.checkSymbol(Symbol.WHILE) ||
-    	   token.checkSymbol(Symbol.FOR) ||
-    	   token.checkSymbol(Symbol.NAME) ||
-    	   token.checkSymbol(Symbol.INC) ||
-    	   token.checkSymbol(Symbol.DEC) ||
-    	   token.checkSymbol(Symbol.INTEGER) ||
-    	   token.checkSymbol(Symbol.CHARACTER) ||
-    	   token.checkSymbol(Symbol.LPAREN) ||
-    	   token.checkSymbol(Symbol.INPUTCHAR) ||
-    	   token.checkSymbol(Symbol.INPUTINT) ||
-    	   token.checkSymbol(Symbol.SUB) ||
-    	   token.checkSymbol(Symbol.NOT) ||
-    	   token.checkSymbol(Symbol.OUTPUTCHAR) ||
-    	   token.checkSymbol(Symbol.OUTPUTINT) ||
-    	   token.checkSymbol(Symbol.BREAK) ||
-    	   token.checkSymbol(Symbol.LBRACE) ||
-    	   token.checkSymbol(Symbol.SEMICOLON))
+    	if(checkSymbol(Symbol.INT) ||
+		   checkSymbol(Symbol.IF) ||
+    	   checkSymbol(Symbol.WHILE) ||
+    	   checkSymbol(Symbol.FOR) ||
+    	   checkSymbol(Symbol.NAME) ||
+    	   checkSymbol(Symbol.INC) ||
+    	   checkSymbol(Symbol.DEC) ||
+    	   checkSymbol(Symbol.INTEGER) ||
+    	   checkSymbol(Symbol.CHARACTER) ||
+    	   checkSymbol(Symbol.LPAREN) ||
+    	   checkSymbol(Symbol.INPUTCHAR) ||
+    	   checkSymbol(Symbol.INPUTINT) ||
+    	   checkSymbol(Symbol.SUB) ||
+    	   checkSymbol(Symbol.NOT) ||
+    	   checkSymbol(Symbol.OUTPUTCHAR) ||
+    	   checkSymbol(Symbol.OUTPUTINT) ||
+    	   checkSymbol(Symbol.BREAK) ||
+    	   checkSymbol(Symbol.LBRACE) ||
+    	   checkSymbol(Symbol.SEMICOLON))
     		return true;
     	else return false;
     }
@@ -938,33 +822,33 @@ public class Kc {
      * trueを返し，そうでなければfalseを返す．
      */
     private boolean firstExpression() {
-    	if(token.checkSymbol(Symbol.NAME) ||
-			token.checkSymbol(Symbol.INC) ||
-			token.checkSymbol(Symbol.DEC) ||
-			token.checkSymbol(Symbol.INTEGER) ||
-			token.checkSymbol(Symbol.CHARACTER) ||
-			token.checkSymbol(Symbol.LPAREN) ||
-			token.checkSymbol(Symbol.INPUTCHAR) ||
-			token.checkSymbol(Symbol.INPUTINT) ||
-			token.checkSymbol(Symbol.SUB) ||
-			token.checkSymbol(Symbol.NOT))
+    	if(checkSymbol(Symbol.NAME) ||
+			checkSymbol(Symbol.INC) ||
+			checkSymbol(Symbol.DEC) ||
+			checkSymbol(Symbol.INTEGER) ||
+			checkSymbol(Symbol.CHARACTER) ||
+			checkSymbol(Symbol.LPAREN) ||
+			checkSymbol(Symbol.INPUTCHAR) ||
+			checkSymbol(Symbol.INPUTINT) ||
+			checkSymbol(Symbol.SUB) ||
+			checkSymbol(Symbol.NOT))
     		return true;
     	else return false;
     }
 
 
     /**
-     * 現在読んでいるファイルを閉じる (lexerのcloseFile()に委譲)
+     * 現在読んでいるファイルを閉じる (tokensのcloseFile()に委譲)
      */
     void closeFile() {
-    	lexer.closeFile();
+    	tokens.closeFile();
     }
 
     /**
      * アセンブラコードをファイルに出力する (isegのdump2file()に委譲)
      *
      */
-    void dump2file() {
+    void dump2file() throws IOException {
     	iseg.dump2file();
     }
 
@@ -972,43 +856,180 @@ public class Kc {
      * アセンブラコードをファイルに出力する (isegのdump2file()に委譲)
      *
      */
-    void dump2file (String fileName) {
+    void dump2file (String fileName) throws IOException {
     	iseg.dump2file(fileName);
     }
 
     /**
-     * エラーメッセージを出力しプログラムを終了する
+     * 現在のトークンの位置と message を持つエラーを CompileException として投げる
      * @param message 出力エラーメッセージ
      */
     private void syntaxError (String message) {
-        System.out.print (lexer.analyzeAt());
-        //下記の文言は自動採点で使用するので変更しないでください。
-        System.out.println ("で構文解析プログラムが構文エラーを検出");
-        System.out.println (message);
-        closeFile();
-        System.exit(0);
+        throw new CompileException (tokens.diagnose(cursor, message));
+    }
+
+    /**
+     * 引数で指定したパスのK21言語ファイルをコンパイルする.
+     * プロセスを終了することはなく, エラーは結果の Diagnostic として返す
+     * @param sourceFile ソースファイルのパス
+     * @return コンパイル結果
+     */
+    public static CompileResult compile (Path sourceFile) {
+        try {
+            return compile (new LexicalAnalyzer(new FileScanner(sourceFile)));
+        } catch (CompileException exception) {
+            return CompileResult.failure (exception.getDiagnostic(), 0);
+        }
+    }
+
+    /**
+     * Reader から読み出したK21言語プログラムをコンパイルする.
+     * Reader は閉じない
+     * @param source ソースプログラムを読み出す Reader
+     * @return コンパイル結果
+     */
+    public static CompileResult compile (Reader source) {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            int n;
+            while ((n = source.read(buffer)) >= 0)
+                text.append(buffer, 0, n);
+        } catch (IOException err_mes) {
+            return CompileResult.failure (new Diagnostic(Diagnostic.Kind.IO, 0, -1, err_mes.toString()), 0);
+        }
+        return compile (text);
+    }
+
+    /**
+     * 文字列で与えたK21言語プログラムをコンパイルする.
+     * @param source ソースプログラム
+     * @return コンパイル結果
+     */
+    public static CompileResult compile (CharSequence source) {
+        return compile (new LexicalAnalyzer(new FileScanner(source)));
+    }
+
+    /**
+     * 引数で指定したパスのK21言語ファイルを, 指定した水準で最適化してコンパイルする.
+     * @param sourceFile ソースファイルのパス
+     * @param level 最適化の水準
+     * @return コンパイル結果
+     */
+    public static CompileResult compile (Path sourceFile, OptimizationLevel level) {
+        try {
+            return compile (new LexicalAnalyzer(new FileScanner(sourceFile)), level);
+        } catch (CompileException exception) {
+            return CompileResult.failure (exception.getDiagnostic(), 0);
+        }
+    }
+
+    /**
+     * 文字列で与えたK21言語プログラムを, 指定した水準で最適化してコンパイルする.
+     * @param source ソースプログラム
+     * @param level 最適化の水準
+     * @return コンパイル結果
+     */
+    public static CompileResult compile (CharSequence source, OptimizationLevel level) {
+        return compile (new LexicalAnalyzer(new FileScanner(source)), level);
+    }
+
+    /**
+     * 字句解析器が読むプログラムをコンパイルする.
+     */
+    private static CompileResult compile (LexicalAnalyzer lexer) {
+        return compile (lexer, OptimizationLevel.O0);
+    }
+
+    /**
+     * 字句解析器が読むプログラムを構文木にし, AstCodeGenerator でコードを生成してから, 水準に応じたパスをかける.
+     * 構文解析, コード生成と各パスの時間は結果の getPassReport で取り出せる
+     */
+    private static CompileResult compile (LexicalAnalyzer lexer, OptimizationLevel level) {
+        Kc parser = new Kc (lexer, level.atLeast (OptimizationLevel.O1));
+        PassManager passes = PassManager.forLevel (level, parser.variableTable);
+        long start = System.nanoTime();
+        try {
+            parser.parseProgram();
+        } catch (CompileException exception) {
+            return CompileResult.failure (exception.getDiagnostic(), lexer.getLineCount());
+        } finally {
+            parser.closeFile();
+        }
+        passes.record ("parse", System.nanoTime() - start, 0);
+        start = System.nanoTime();
+        parser.generateCode();
+        passes.record ("codegen", System.nanoTime() - start, parser.iseg.getLastCodeAddress() + 1);
+        // 一つのパスで他のパスの規則に合う命令列ができるので, 命令が減らなくなるまで繰り返す
+        passes.run (parser.iseg);
+        return CompileResult.success (parser.iseg, parser.variableTable.getDataSize(), lexer.getLineCount(), passes);
     }
 
     /**
      * 引数で指定したK21言語ファイルを解析する
      * 読み込んだファイルが文法上正しければアセンブラコードを出力する
+     * 先頭に -O0, -O1, -O2 (-O は -O1) を付けると, その水準で最適化したアセンブラコードを出力する
+     * -time を付けると, 構文解析, コード生成と各パスにかかった時間と命令数の増減を表示する
+     * 出力ファイル名の拡張子が .vsmo なら, アセンブラコードの代わりに VSM のオブジェクトファイルを出力する
      */
     public static void main (String[] args) {
-        Kc parser;
-
+        OptimizationLevel level = OptimizationLevel.O0;
+        boolean time = false;
+        int skip = 0;
+        for (; skip < args.length; skip++) {
+            OptimizationLevel option = OptimizationLevel.fromOption (args[skip]);
+            if (option != null)
+                level = option;
+            else if (args[skip].equals ("-time"))
+                time = true;
+            else
+                break;
+        }
+        args = Arrays.copyOfRange (args, skip, args.length);
         if (args.length == 0) {
-            System.out.println ("Usage: java kc.Kc21 file [objectfile]");
+            System.out.println ("Usage: java kc.Kc21 [-O0|-O1|-O2] [-time] file [objectfile]");
             System.exit (0);
         }
 
-        parser = new Kc (args[0]);
+        CompileResult result = compile (Paths.get(args[0]), level);
+        if (!result.isSuccess()) {
+            Diagnostic diagnostic = result.getDiagnostic();
+            System.out.println (diagnostic);
+            // 構文解析時のエラーは終了コード0, それ以外は1で終了する
+            System.exit (diagnostic.getKind() == Diagnostic.Kind.SYNTAX ? 0 : 1);
+        }
 
-        parser.parseProgram();
-        parser.closeFile();
+        try {
+            if (args.length == 1)
+                result.getCode().dump2file();
+            else if (args[1].endsWith (".vsmo"))
+                result.writeObject (Paths.get (args[1]));
+            else
+                result.getCode().dump2file (args[1]);
+        } catch (IOException exception) {
+            // 出力ファイルを書き出せなければ, 構文解析時以外のエラーと同じく終了コード1で終了する
+            System.err.println (exception);
+            System.exit (1);
+        }
+        if (time)
+            System.out.print (result.getPassReport());
+    }
 
-        if (args.length == 1)
-            parser.dump2file();
-        else
-            parser.dump2file (args[1]);
+    /**
+     * 次の兄弟でつないだ節点の並びを作るための, 先頭と末尾の節点の組
+     */
+    private class NodeList {
+    	int head = Ast.NONE, tail = Ast.NONE;
+
+    	/**
+    	 * 節点を末尾に追加する
+    	 */
+    	void add(int node) {
+    		if (head == Ast.NONE)
+    			head = node;
+    		else
+    			ast.setNext(tail, node);
+    		tail = node;
+    	}
     }
 }
@@ -0,0 +1,160 @@
+package kc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 複数のK21言語ファイルを並列にコンパイルするクラス
+ * 引数で与えたファイル, およびディレクトリ以下の *.k ファイルを ForkJoinPool 上でコンパイルし,
+ * 各ファイルのアセンブラコードを同じディレクトリの *.asm に出力する.
+ * ファイルごとに別の Kc (と VarTable, PseudoIseg) を使うので, タスク間で共有する状態は無い.
+ */
+public class KcBatch {
+	/**
+	 * 一つのファイルのコンパイル結果
+	 */
+	private static class Outcome {
+		/** ソースファイル */
+		Path source;
+		/** コンパイル結果 */
+		CompileResult result;
+		/** 出力時のエラー. 無ければ null */
+		IOException writeError;
+	}
+
+	/**
+	 * 一つのファイルをコンパイルし, 成功すれば *.asm を書き出す
+	 * @param source ソースファイル
+	 * @param level 最適化の水準
+	 */
+	private static Outcome compileOne(Path source, OptimizationLevel level) {
+		Outcome outcome = new Outcome();
+		outcome.source = source;
+		outcome.result = Kc.compile(source, level);
+		if (outcome.result.isSuccess()) {
+			try {
+				Files.writeString(asmPathOf(source), outcome.result.getAssembly());
+			} catch (IOException exception) {
+				outcome.writeError = exception;
+			}
+		}
+		return outcome;
+	}
+
+	/**
+	 * ソースファイルに対応する出力ファイルのパスを返す (拡張子 .k を .asm に置き換える)
+	 */
+	static Path asmPathOf(Path source) {
+		String name = source.getFileName().toString();
+		if (name.endsWith(".k"))
+			name = name.substring(0, name.length() - 2);
+		return source.resolveSibling(name + ".asm");
+	}
+
+	/**
+	 * 引数のファイル・ディレクトリからコンパイルするファイルの一覧を作る
+	 */
+	private static List<Path> collectSources(List<String> arguments) throws IOException {
+		List<Path> sources = new ArrayList<Path>();
+		for (String argument : arguments) {
+			Path path = Paths.get(argument);
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> walk = Files.walk(path)) {
+					sources.addAll(walk.filter(p -> p.toString().endsWith(".k") && Files.isRegularFile(p))
+							.sorted()
+							.collect(Collectors.toList()));
+				}
+			} else {
+				sources.add(path);
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * -j のスレッド数を読む. 正の整数でなければ 0 を返す
+	 */
+	private static int parseParallelism(String text) {
+		try {
+			return Math.max(Integer.parseInt(text), 0);
+		} catch (NumberFormatException exception) {
+			return 0;
+		}
+	}
+
+	/**
+	 * 引数で指定したファイル・ディレクトリのK21言語ファイルをすべてコンパイルし,
+	 * エラーと処理速度 (ファイル/秒, 行/秒) を表示する.
+	 * -O0, -O1 (-O), -O2 は kc.Kc と同じく最適化の水準を指定する
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		OptimizationLevel level = OptimizationLevel.O0;
+		List<String> arguments = new ArrayList<String>();
+		boolean usage = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length) {
+				parallelism = parseParallelism(args[++i]);
+				usage |= parallelism <= 0;
+			} else if (OptimizationLevel.fromOption(args[i]) != null)
+				level = OptimizationLevel.fromOption(args[i]);
+			else
+				arguments.add(args[i]);
+		}
+		if (usage || arguments.isEmpty()) {
+			System.out.println("Usage: java kc.KcBatch [-j threads] [-O0|-O1|-O2] (file|directory)...");
+			System.exit(usage ? 1 : 0);	//-j が正の整数でなければ終了コード1
+		}
+
+		List<Path> sources = collectSources(arguments);
+		List<Callable<Outcome>> tasks = new ArrayList<Callable<Outcome>>();
+		OptimizationLevel optimization = level;
+		for (Path source : sources)
+			tasks.add(() -> compileOne(source, optimization));
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		long start = System.nanoTime();
+		List<Future<Outcome>> futures = pool.invokeAll(tasks);
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+
+		// 結果を入力の順に表示する
+		long lines = 0;
+		int failures = 0;
+		for (Future<Outcome> future : futures) {
+			Outcome outcome;
+			try {
+				outcome = future.get();
+			} catch (ExecutionException exception) {
+				System.out.println(exception.getCause());
+				failures++;
+				continue;
+			}
+			lines += outcome.result.getLineCount();
+			if (!outcome.result.isSuccess()) {
+				System.out.println(outcome.source + ": " + outcome.result.getDiagnostic());
+				failures++;
+			} else if (outcome.writeError != null) {
+				System.out.println(outcome.source + ": " + outcome.writeError);
+				failures++;
+			}
+		}
+
+		double seconds = elapsed / 1e9;
+		System.out.printf("%d files (%d failed), %d lines in %.3f s: %.1f files/s, %.1f lines/s (%d threads)%n",
+				sources.size(), failures, lines, seconds,
+				sources.size() / seconds, lines / seconds, parallelism);
+		if (failures > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,147 @@
+package kc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * KcDaemon にコンパイルを依頼するクライアント
+ * 使い方と出力は kc.Kc と同じで, 成功すればアセンブラコード (出力ファイル名の拡張子が .vsmo なら
+ * VSM のオブジェクトファイル) をファイルに書き出し, 失敗すればエラーメッセージを表示する.
+ * サーバにつながらないときや応答が途切れたときは, 標準エラー出力に表示して終了コード1で終了する.
+ */
+public class KcClient {
+	/**
+	 * 引数で指定したK21言語ファイルのコンパイルをサーバに依頼する
+	 * -s を付けるとファイルの内容を送り, 付けなければパスを送る.
+	 * -O0, -O1 (-O), -O2, -time は kc.Kc と同じ意味で, そのままサーバに渡す
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = KcDaemon.DEFAULT_PORT;
+		boolean sendSource = false;
+		String sourceFileName = null;
+		String outputFileName = "OpCode.asm";
+		OptimizationLevel level = OptimizationLevel.O0;
+		boolean time = false;
+		int files = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p") && i + 1 < args.length)
+				port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-s"))
+				sendSource = true;
+			else if (OptimizationLevel.fromOption(args[i]) != null)
+				level = OptimizationLevel.fromOption(args[i]);
+			else if (args[i].equals("-time"))
+				time = true;
+			else if (files++ == 0)
+				sourceFileName = args[i];
+			else
+				outputFileName = args[i];
+		}
+		if (sourceFileName == null) {
+			System.out.println("Usage: java kc.KcClient [-p port] [-s] [-O0|-O1|-O2] [-time] file [objectfile]");
+			System.exit(0);
+		}
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream out = socket.getOutputStream();
+			String options = "-" + level.name() + (time ? " -time " : " ");
+			if (sendSource) {
+				byte[] source = Files.readAllBytes(Paths.get(sourceFileName));
+				out.write(("SOURCE " + options + source.length + "\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(source);
+			} else {
+				String path = Paths.get(sourceFileName).toAbsolutePath().toString();
+				out.write(("FILE " + options + path + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			String statusLine = KcDaemon.readLine(in);
+			if (statusLine == null)
+				connectionError("サーバが応答せずに接続を閉じました");
+			String[] status = statusLine.split(" ");
+			boolean success = status[0].equals("OK");
+			int lines = -1;
+			int dataSize = 0;
+			int reportLines = 0;
+			if (status.length >= (success ? 2 : 3)) {
+				try {
+					lines = Integer.parseInt(status[success ? 1 : 2]);
+					if (success && status.length > 2)
+						dataSize = Integer.parseInt(status[2]);
+					if (success && status.length > 3)
+						reportLines = Integer.parseInt(status[3]);
+				} catch (NumberFormatException exception) {
+					lines = -1;
+				}
+			}
+			if (lines < 0)
+				connectionError("サーバの応答が読めません: " + statusLine);
+			if (success) {
+				if (outputFileName.endsWith(".vsmo"))
+					writeObject(in, lines, dataSize, outputFileName);
+				else {
+					try (PrintWriter outputFile = new PrintWriter(new BufferedWriter(new FileWriter(outputFileName)))) {
+						for (int i = 0; i < lines; i++)
+							outputFile.println(readBodyLine(in));
+					}
+				}
+				for (int i = 0; i < reportLines; i++)	//-time の報告
+					System.out.println(readBodyLine(in));
+			} else {
+				for (int i = 0; i < lines; i++)
+					System.out.println(readBodyLine(in));
+				// kc.Kc と同じく, 構文解析時のエラーは終了コード0, それ以外は1で終了する
+				System.exit(status[1].equals(Diagnostic.Kind.SYNTAX.name()) ? 0 : 1);
+			}
+		} catch (IOException exception) {
+			connectionError(exception.toString());
+		}
+	}
+
+	/**
+	 * 応答の本文を一行読む. 途中で接続が閉じていれば終了する
+	 */
+	private static String readBodyLine(InputStream in) throws IOException {
+		String line = KcDaemon.readLine(in);
+		if (line == null)
+			connectionError("応答の途中で接続が閉じました");
+		return line;
+	}
+
+	/**
+	 * 応答のアセンブラコードを読み込み, kc.Kc と同じ VSM のオブジェクトファイルにして書き出す
+	 * @param lines アセンブラコードの行数
+	 * @param dataSize 命令列が使う Dseg の語数
+	 */
+	private static void writeObject(InputStream in, int lines, int dataSize, String outputFileName)
+			throws IOException {
+		ByteArrayOutputStream assembly = new ByteArrayOutputStream();
+		for (int i = 0; i < lines; i++)
+			assembly.write((readBodyLine(in) + "\n").getBytes(StandardCharsets.UTF_8));
+		Path file = Paths.get(outputFileName);
+		PseudoIseg iseg = AsmLoader.load(file, new ByteArrayInputStream(assembly.toByteArray()));
+		VsmObject.write(iseg, dataSize, file);
+	}
+
+	/**
+	 * サーバとの通信の失敗を標準エラー出力に表示し, 終了コード1で終了する
+	 */
+	private static void connectionError(String message) {
+		System.err.println("kc.KcClient: " + message);
+		System.exit(1);
+	}
+}
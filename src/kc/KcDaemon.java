@@ -0,0 +1,314 @@
+package kc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * コンパイラを常駐させるサーバ
+ * ループバックアドレスの TCP ポートで待ち受け, 接続ごとに一つのコンパイル要求を処理する.
+ * JVM の起動と JIT のウォームアップを一度で済ませるので, 二回目以降のコンパイルは速い.
+ *
+ * 要求 (1行目は ASCII, 改行で終わる)
+ *   FILE [オプション]... パス          サーバから見えるソースファイルをコンパイルする
+ *   SOURCE [オプション]... バイト数    続く UTF-8 のソースプログラムをコンパイルする
+ *   STOP                               サーバを終了する
+ * オプションは kc.Kc と同じ -O0, -O1 (-O), -O2, -time で, 空白で区切ってパスやバイト数の前に置く.
+ * 応答
+ *   OK 行数 語数 [報告の行数]   続く行がアセンブラコード (語数は命令列が使う Dseg の語数).
+ *                               -time を付けたときは, その後に続く行がパスの時間の報告
+ *   ERROR 種類 行数             続く行がエラーメッセージ (種類は Diagnostic.Kind の名前)
+ * 要求の形が正しくなければ ERROR IO 1 と理由を一行返す.
+ * 要求の途中で READ_TIMEOUT_MILLIS の間何も届かなければ, 応答せずに接続を閉じる.
+ */
+public class KcDaemon {
+	/**
+	 * 既定の待ち受けポート番号
+	 */
+	static final int DEFAULT_PORT = 7421;
+
+	/**
+	 * SOURCE 要求で受け付けるソースプログラムの最大のバイト数
+	 */
+	static final int MAX_SOURCE_LENGTH = 16 << 20;
+
+	/**
+	 * 要求の1行目の最大のバイト数
+	 */
+	private static final int MAX_REQUEST_LENGTH = 8192;
+
+	/**
+	 * 要求を読み終えるまでに, 何も届かないまま待つ最大のミリ秒数
+	 */
+	static final int READ_TIMEOUT_MILLIS = 10_000;
+
+	/**
+	 * ウォームアップ用のプログラム
+	 */
+	private static final String WARMUP_SOURCE =
+			"main() {\n"
+			+ "    int i, n = 10, data[10], tmp;\n"
+			+ "    for (i = 0; i < n; ++i) data[i] = (i * 7 + 3) % n;\n"
+			+ "    while (n > 1) {\n"
+			+ "        i = 0;\n"
+			+ "        while (i < n - 1) {\n"
+			+ "            if (data[i] > data[i+1]) { tmp = data[i]; data[i] = data[i+1]; data[i+1] = tmp; }\n"
+			+ "            i++;\n"
+			+ "        }\n"
+			+ "        n -= 1;\n"
+			+ "    }\n"
+			+ "    if (!(n == 1) || data[0] != 0 && 1) outputchar('x');\n"
+			+ "    outputint(data[0x2] - 'a');\n"
+			+ "}\n";
+
+	/**
+	 * 待ち受け用のソケット
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * 要求を処理するスレッドプール
+	 */
+	private ExecutorService workers;
+
+	/**
+	 * ポート番号を引数とするコンストラクタ. ループバックアドレスで待ち受けを始める
+	 */
+	KcDaemon(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * ウォームアップ用のプログラムを繰り返しコンパイルして, JIT コンパイルを済ませておく
+	 * @param iterations 繰り返す回数
+	 */
+	static void warmUp(int iterations) {
+		for (int i = 0; i < iterations; i++)
+			Kc.compile(WARMUP_SOURCE).getAssembly();
+	}
+
+	/**
+	 * STOP 要求を受けるまで接続を受け付ける
+	 */
+	void serve() throws IOException {
+		while (!serverSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException exception) {
+				if (serverSocket.isClosed())
+					break;
+				throw exception;
+			}
+			workers.execute(() -> handle(socket));
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * 一つの接続の要求を処理する
+	 */
+	private void handle(Socket socket) {
+		try (Socket s = socket) {
+			s.setSoTimeout(READ_TIMEOUT_MILLIS);	//何も送らない接続がワーカーを占有し続けないようにする
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+			String request = readLine(in, MAX_REQUEST_LENGTH);
+			CompileResult result;
+			if (request == null) {
+				return;
+			} else if (request.length() > MAX_REQUEST_LENGTH) {
+				writeError(out, "request line longer than " + MAX_REQUEST_LENGTH + " bytes");
+				return;
+			}
+			Options options;
+			if (request.startsWith("FILE ")) {
+				options = Options.parse(request.substring(5));
+				Path path;
+				try {
+					path = Paths.get(options.operand);
+				} catch (InvalidPathException exception) {
+					writeError(out, "bad path: " + exception.getMessage());
+					return;
+				}
+				result = Kc.compile(path, options.level);
+			} else if (request.startsWith("SOURCE ")) {
+				options = Options.parse(request.substring(7));
+				int length = parseLength(options.operand.trim());
+				if (length < 0) {
+					writeError(out, "bad source length: " + options.operand
+							+ " (0 to " + MAX_SOURCE_LENGTH + " bytes)");
+					return;
+				}
+				byte[] source = in.readNBytes(length);
+				if (source.length < length) {
+					writeError(out, "source ended after " + source.length + " of " + length + " bytes");
+					return;
+				}
+				result = Kc.compile(new String(source, StandardCharsets.UTF_8), options.level);
+			} else if (request.equals("STOP")) {
+				out.write("OK 0\n");
+				out.flush();
+				serverSocket.close();
+				return;
+			} else {
+				writeError(out, "unknown request: " + request);
+				return;
+			}
+			writeResult(out, result, options.time);
+			out.flush();
+		} catch (IOException | RuntimeException exception) {
+			System.err.println(exception);
+		}
+	}
+
+	/**
+	 * FILE, SOURCE 要求のオプションと, その後のパスまたはバイト数
+	 */
+	private static class Options {
+		/** 最適化の水準 */
+		OptimizationLevel level = OptimizationLevel.O0;
+		/** パスの時間の報告を返すか */
+		boolean time;
+		/** オプションの後のパスまたはバイト数 */
+		String operand;
+
+		/**
+		 * 要求の種類の後の文字列から, 先頭に並ぶオプションを取り出す.
+		 * オプションとして読めない語か, 最後の語から後をパスまたはバイト数とする
+		 */
+		static Options parse(String text) {
+			Options options = new Options();
+			for (;;) {
+				int space = text.indexOf(' ');
+				if (!text.startsWith("-") || space < 0)
+					break;
+				String option = text.substring(0, space);
+				OptimizationLevel level = OptimizationLevel.fromOption(option);
+				if (level != null)
+					options.level = level;
+				else if (option.equals("-time"))
+					options.time = true;
+				else
+					break;
+				text = text.substring(space + 1);
+			}
+			options.operand = text;
+			return options;
+		}
+	}
+
+	/**
+	 * SOURCE 要求のバイト数を読む. 数でないか, 負か, MAX_SOURCE_LENGTH を超えれば -1 を返す
+	 */
+	private static int parseLength(String text) {
+		try {
+			int length = Integer.parseInt(text);
+			return length <= MAX_SOURCE_LENGTH ? length : -1;
+		} catch (NumberFormatException exception) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 正しくない要求への応答を書き出す. 理由は改行を含まない一行にする
+	 */
+	private static void writeError(Writer out, String message) throws IOException {
+		out.write("ERROR IO 1\n" + message.replace('\n', ' ').replace('\r', ' ') + "\n");
+		out.flush();
+	}
+
+	/**
+	 * コンパイル結果を応答の形式で書き出す
+	 * @param time 成功したとき, アセンブラコードの後にパスの時間の報告を続けるなら true
+	 */
+	static void writeResult(Writer out, CompileResult result, boolean time) throws IOException {
+		String body;
+		if (result.isSuccess()) {
+			body = result.getAssembly().replace(System.lineSeparator(), "\n");
+			String report = time ? result.getPassReport().replace(System.lineSeparator(), "\n") : "";
+			out.write("OK " + countLines(body) + " " + result.getDataSize()
+					+ (time ? " " + countLines(report) : "") + "\n");
+			body += report;
+		} else {
+			Diagnostic diagnostic = result.getDiagnostic();
+			body = diagnostic.toString().replace(System.lineSeparator(), "\n") + "\n";
+			out.write("ERROR " + diagnostic.getKind().name() + " " + countLines(body) + "\n");
+		}
+		out.write(body);
+	}
+
+	/**
+	 * 改行で終わる行の数を数える
+	 */
+	private static int countLines(String text) {
+		int lines = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n')
+				lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * 改行 (LF) までを一行として読み出す. 接続が閉じていれば null を返す
+	 */
+	static String readLine(InputStream in) throws IOException {
+		return readLine(in, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 改行 (LF) までを一行として読み出す. 接続が閉じていれば null を返す.
+	 * maxLength バイトを超える行は, maxLength + 1 バイトまで読んだところで打ち切り,
+	 * 長さが maxLength を超える (ISO-8859-1 で一バイトを一文字にした) 文字列を返す
+	 */
+	static String readLine(InputStream in, int maxLength) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			line.write(c);
+			if (line.size() > maxLength)
+				return line.toString(StandardCharsets.ISO_8859_1);
+		}
+		if (c < 0 && line.size() == 0)
+			return null;
+		return line.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * コンパイルサーバを起動する
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int warmup = 2000;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p") && i + 1 < args.length)
+				port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-w") && i + 1 < args.length)
+				warmup = Integer.parseInt(args[++i]);
+			else {
+				System.out.println("Usage: java kc.KcDaemon [-p port] [-w warmup-iterations]");
+				System.exit(0);
+			}
+		}
+
+		KcDaemon daemon = new KcDaemon(port);
+		warmUp(warmup);
+		System.out.println("kc daemon listening on " + daemon.serverSocket.getLocalSocketAddress());
+		daemon.serve();
+	}
+}
@@ -0,0 +1,95 @@
+package kc;
+
+import java.util.Arrays;
+
+/**
+ * 予約語表クラス
+ * Symbol に綴りが登録されている予約語から, 衝突の無いハッシュ表 (完全ハッシュ) を
+ * クラスの初期化時に一度だけ作る. 検索は先頭文字・末尾文字・長さから求めた
+ * 一つの位置を調べるだけで済む.
+ */
+class KeywordTable {
+	/**
+	 * ハッシュ表の大きさ (2のべき乗)
+	 */
+	private static final int TABLE_SIZE = 32;
+
+	/**
+	 * ハッシュ表本体. 予約語の無い位置は null
+	 */
+	private static final Symbol[] table = new Symbol[TABLE_SIZE];
+
+	/**
+	 * ハッシュ表に格納した予約語の綴り
+	 */
+	private static final char[][] spellings = new char[TABLE_SIZE][];
+
+	/**
+	 * 先頭文字に掛ける係数
+	 */
+	private static int firstFactor;
+
+	/**
+	 * 末尾文字に掛ける係数
+	 */
+	private static int lastFactor;
+
+	static {
+		if (!build())
+			throw new IllegalStateException("予約語の完全ハッシュを構成できません");
+	}
+
+	/**
+	 * 係数を順に試し, 全ての予約語が異なる位置に入る組を探して表を作る
+	 * @return 表を作れたらtrue
+	 */
+	private static boolean build() {
+		for (int first = 1; first < TABLE_SIZE * 4; first++) {
+			for (int last = 0; last < TABLE_SIZE * 4; last++) {
+				firstFactor = first;
+				lastFactor = last;
+				Arrays.fill(table, null);
+				boolean collision = false;
+				for (Symbol symbol : Symbol.values()) {
+					if (!symbol.isKeyword())
+						continue;
+					char[] chars = symbol.getSpelling().toCharArray();
+					int index = hash(chars, chars.length);
+					if (table[index] != null) {
+						collision = true;
+						break;
+					}
+					table[index] = symbol;
+					spellings[index] = chars;
+				}
+				if (!collision)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 綴りのハッシュ値を求める
+	 */
+	private static int hash(char[] name, int length) {
+		return (name[0] * firstFactor + name[length - 1] * lastFactor + length) & (TABLE_SIZE - 1);
+	}
+
+	/**
+	 * name の先頭 length 文字が予約語であればその Symbol を, そうでなければ null を返す
+	 * @param name 綴りを格納した配列
+	 * @param length 綴りの長さ
+	 */
+	static Symbol lookup(char[] name, int length) {
+		int index = hash(name, length);
+		char[] spelling = spellings[index];
+		if (spelling == null || spelling.length != length)
+			return null;
+		for (int i = 0; i < length; i++) {
+			if (spelling[i] != name[i])
+				return null;
+		}
+		return table[index];
+	}
+}
@@ -0,0 +1,240 @@
+package kc;
+
+import java.util.Arrays;
+
+/**
+ * 表駆動型字句解析器の状態遷移表
+ * 文字を文字クラスに分類する表と, (状態, 文字クラス) から次の状態を引く遷移表,
+ * 各状態で受理したときの動作を表す表からなる. 記号の部分は Symbol に登録された
+ * 綴りからクラスの初期化時に組み立てる.
+ */
+class LexerTable {
+	// 文字クラス
+	/** どのトークンにも使われない文字 */
+	static final int C_OTHER = 0;
+	/** ファイル末 ('\0') */
+	static final int C_EOF = 1;
+	/** 空白, タブ */
+	static final int C_SPACE = 2;
+	/** 改行 */
+	static final int C_NEWLINE = 3;
+	/** '0' */
+	static final int C_ZERO = 4;
+	/** '1'～'9' */
+	static final int C_DIGIT = 5;
+	/** 16進数に使える英字 'A'～'F' */
+	static final int C_HEX = 6;
+	/** 'x' */
+	static final int C_X = 7;
+	/** その他の英字と '_' */
+	static final int C_LETTER = 8;
+	/** '\'' */
+	static final int C_QUOTE = 9;
+	/** 記号の文字に割り当てる文字クラスの先頭 */
+	private static final int C_SYMBOL = 10;
+
+	// 受理したときの動作
+	/** 受理できない (字句エラー) */
+	static final int A_ERROR = 0;
+	/** symbolOf の記号を返す */
+	static final int A_SYMBOL = 1;
+	/** 変数名または予約語 */
+	static final int A_NAME = 2;
+	/** 10進数 */
+	static final int A_DECIMAL = 3;
+	/** 16進数 */
+	static final int A_HEX = 4;
+	/** "0x" の後に16進数が続かない (次の一文字を読んでから字句エラー) */
+	static final int A_HEX_ERROR = 5;
+	/** 文字定数 */
+	static final int A_CHARACTER = 6;
+	/** 空白・行コメントを読み飛ばす */
+	static final int A_SKIP = 7;
+	/** ブロックコメントを読み飛ばす (閉じた直後の一文字も読み飛ばす) */
+	static final int A_COMMENT = 8;
+
+	/** 遷移先が無いことを表す状態番号 */
+	static final int NONE = -1;
+
+	// 状態
+	/** 初期状態 */
+	static final int S_START = 0;
+	private static final int S_SPACE = 1;
+	private static final int S_NAME = 2;
+	private static final int S_ZERO = 3;
+	private static final int S_HEX_PREFIX = 4;
+	private static final int S_HEX = 5;
+	private static final int S_DECIMAL = 6;
+	private static final int S_QUOTE = 7;
+	private static final int S_EOF = 8;
+	private static final int S_ERROR = 9;
+	private static final int S_LINE = 10;
+	private static final int S_LINE_END = 11;
+	private static final int S_BLOCK = 12;
+	private static final int S_BLOCK_STAR = 13;
+	private static final int S_BLOCK_END = 14;
+	/** 記号の状態に割り当てる状態番号の先頭 */
+	private static final int S_SYMBOL = 15;
+
+	/**
+	 * ASCII 文字の文字クラス
+	 */
+	private static final byte[] charClass = new byte[128];
+
+	/**
+	 * 文字クラスの数
+	 */
+	static final int CLASS_COUNT;
+
+	/**
+	 * 遷移表. 状態 s から文字クラス c で遷移する先は transition[s * CLASS_COUNT + c]
+	 */
+	static final int[] transition;
+
+	/**
+	 * 各状態で受理したときの動作
+	 */
+	static final int[] action;
+
+	/**
+	 * 動作が A_SYMBOL である状態で返す記号
+	 */
+	static final Symbol[] symbolOf;
+
+	/**
+	 * 字句を作業用バッファに記録する必要がある状態 (名前と数)
+	 */
+	static final boolean[] record;
+
+	static {
+		Arrays.fill(charClass, (byte) C_OTHER);
+		charClass['\0'] = C_EOF;
+		charClass[' '] = charClass['\t'] = C_SPACE;
+		charClass['\n'] = C_NEWLINE;
+		charClass['0'] = C_ZERO;
+		for (char c = '1'; c <= '9'; c++) charClass[c] = C_DIGIT;
+		for (char c = 'a'; c <= 'z'; c++) charClass[c] = C_LETTER;
+		for (char c = 'A'; c <= 'Z'; c++) charClass[c] = C_LETTER;
+		for (char c = 'A'; c <= 'F'; c++) charClass[c] = C_HEX;
+		charClass['_'] = C_LETTER;
+		charClass['x'] = C_X;
+		charClass['\''] = C_QUOTE;
+		// 記号の綴りに現れる文字に文字クラスを割り当てる
+		int classes = C_SYMBOL;
+		int symbolStates = 0;
+		for (Symbol symbol : Symbol.values()) {
+			String spelling = symbol.getSpelling();
+			if (spelling == null || symbol.isKeyword())
+				continue;
+			symbolStates += spelling.length();
+			for (char c : spelling.toCharArray()) {
+				if (charClass[c] == C_OTHER)
+					charClass[c] = (byte) classes++;
+			}
+		}
+		CLASS_COUNT = classes;
+
+		int states = S_SYMBOL + symbolStates;
+		transition = new int[states * CLASS_COUNT];
+		Arrays.fill(transition, NONE);
+		action = new int[states];
+		symbolOf = new Symbol[states];
+		record = new boolean[states];
+
+		// 空白
+		for (int c : new int[] {C_SPACE, C_NEWLINE}) {
+			setTransition(S_START, c, S_SPACE);
+			setTransition(S_SPACE, c, S_SPACE);
+		}
+		action[S_SPACE] = A_SKIP;
+
+		// 変数名・予約語
+		setTransition(S_START, C_HEX, S_NAME);
+		setTransition(S_START, C_X, S_NAME);
+		setTransition(S_START, C_LETTER, S_NAME);
+		for (int c : new int[] {C_ZERO, C_DIGIT, C_HEX, C_X, C_LETTER})
+			setTransition(S_NAME, c, S_NAME);
+		action[S_NAME] = A_NAME;
+		record[S_NAME] = true;
+
+		// 整数 (先頭が0の場合は0単独か16進数)
+		setTransition(S_START, C_ZERO, S_ZERO);
+		action[S_ZERO] = A_DECIMAL;
+		record[S_ZERO] = true;
+		setTransition(S_ZERO, C_X, S_HEX_PREFIX);
+		action[S_HEX_PREFIX] = A_HEX_ERROR;
+		for (int c : new int[] {C_ZERO, C_DIGIT, C_HEX}) {
+			setTransition(S_HEX_PREFIX, c, S_HEX);
+			setTransition(S_HEX, c, S_HEX);
+		}
+		action[S_HEX] = A_HEX;
+		record[S_HEX_PREFIX] = record[S_HEX] = true;
+		setTransition(S_START, C_DIGIT, S_DECIMAL);
+		setTransition(S_DECIMAL, C_ZERO, S_DECIMAL);
+		setTransition(S_DECIMAL, C_DIGIT, S_DECIMAL);
+		action[S_DECIMAL] = A_DECIMAL;
+		record[S_DECIMAL] = true;
+
+		// 文字定数, ファイル末, 使えない文字
+		setTransition(S_START, C_QUOTE, S_QUOTE);
+		action[S_QUOTE] = A_CHARACTER;
+		setTransition(S_START, C_EOF, S_EOF);
+		action[S_EOF] = A_SYMBOL;
+		symbolOf[S_EOF] = Symbol.EOF;
+		setTransition(S_START, C_OTHER, S_ERROR);
+		action[S_ERROR] = A_ERROR;
+
+		// 記号: 綴りを先頭から辿る木 (トライ) を遷移表に書き込む
+		int nextState = S_SYMBOL;
+		for (Symbol symbol : Symbol.values()) {
+			String spelling = symbol.getSpelling();
+			if (spelling == null || symbol.isKeyword())
+				continue;
+			int state = S_START;
+			for (char c : spelling.toCharArray()) {
+				int index = state * CLASS_COUNT + charClass[c];
+				if (transition[index] == NONE)
+					transition[index] = nextState++;
+				state = transition[index];
+			}
+			action[state] = A_SYMBOL;
+			symbolOf[state] = symbol;
+		}
+
+		// コメント: "//" は改行まで, "/*" は "*/" まで読み飛ばす.
+		// "/*" の '*' も閉じ側の '*' として扱うので "/*/" は一つのコメントになる.
+		int slash = transition[S_START * CLASS_COUNT + charClass['/']];
+		setTransition(slash, charClass['/'], S_LINE);
+		for (int c = 0; c < CLASS_COUNT; c++) {
+			if (c != C_EOF) {
+				setTransition(S_LINE, c, S_LINE);
+				setTransition(S_BLOCK, c, S_BLOCK);
+				setTransition(S_BLOCK_STAR, c, S_BLOCK);
+			}
+		}
+		setTransition(S_LINE, C_NEWLINE, S_LINE_END);
+		action[S_LINE] = action[S_LINE_END] = A_SKIP;
+		setTransition(slash, charClass['*'], S_BLOCK_STAR);
+		setTransition(S_BLOCK, charClass['*'], S_BLOCK_STAR);
+		setTransition(S_BLOCK_STAR, charClass['*'], S_BLOCK_STAR);
+		setTransition(S_BLOCK_STAR, charClass['/'], S_BLOCK_END);
+		action[S_BLOCK] = action[S_BLOCK_STAR] = A_ERROR;
+		action[S_BLOCK_END] = A_COMMENT;
+	}
+
+	/**
+	 * 遷移表に一つの遷移を書き込む
+	 */
+	private static void setTransition(int from, int charClass, int to) {
+		transition[from * CLASS_COUNT + charClass] = to;
+	}
+
+	/**
+	 * 文字 c の文字クラスを返す
+	 */
+	static int classOf(char c) {
+		if (c < 128)
+			return charClass[c];
+		return Character.isAlphabetic(c) ? C_LETTER : C_OTHER;
+	}
+}
@@ -12,7 +12,19 @@ class LexerTester {
             System.exit(1);
         }
 
-        lexer = new LexicalAnalyzer(args[0]); // 試験対象の生成
+        try {
+            test(args[0]);
+        } catch (CompileException exception) {   // 字句解析時のエラー
+            System.out.println(exception.getDiagnostic());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 引数で指定したファイルのトークンを順に表示する
+     */
+    static void test (String fileName) {
+        lexer = new LexicalAnalyzer(fileName); // 試験対象の生成
 
         Token token= lexer.nextToken();       // トークン読み取り
 
@@ -1,5 +1,7 @@
 package kc;
 
+import java.util.Arrays;
+
 /**
  * 字句解析を行い，トークンを生成するクラス.
  */
@@ -9,184 +11,173 @@ class LexicalAnalyzer {
 	 */
 	private FileScanner sourceFileScanner;
 
+	/**
+	 * 変数名の表. 同じ綴りの名前には同じ String を割り当てる
+	 */
+	private NamePool namePool;
+
+	/**
+	 * 変数名・予約語を切り出すための作業用バッファ
+	 */
+	private char[] nameBuffer;
+
+	/**
+	 * 直前に切り出したトークンの整数値, 文字コード, または名前のID
+	 */
+	private int tokenValue;
+
 	// コンストラクタ
     /**
      * ファイル名を引数とするコンストラクタ
      */
     LexicalAnalyzer(String sourceFileName) {
-    	sourceFileScanner = new FileScanner(sourceFileName);
+    	this(new FileScanner(sourceFileName));
     }
 
     /**
-     * 次のトークンを切り出す.
+     * スキャナを引数とするコンストラクタ
+     */
+    LexicalAnalyzer(FileScanner sourceFileScanner) {
+    	this.sourceFileScanner = sourceFileScanner;
+    	namePool = new NamePool();
+    	nameBuffer = new char[32];
+    }
+
+    /**
+     * 次のトークンを切り出し, その種別を返す.
+     * 整数・文字の値や名前のIDは tokenValue に格納し, Token は生成しない.
      * ファイル末に達している場合(’\0’を読んだ場合)はEOFを返す.
      * 入力がマイクロ構文に違反したためトークンの切り出しに失敗した場合，
      * syntaxError()メソッドを呼び出す.
      */
-    Token nextToken() {
-    	Token token = null;     // ダミーの初期値
-    	char currentChar;   	// 現在位置の文字
-    	do {
-    		currentChar = sourceFileScanner.nextChar();
-    	} while(currentChar == ' ' || currentChar == '\n' || currentChar =='\t');	// 空白と改行とタブ文字を読み飛ばす
-
-    	//コメントの読み飛ばし
-    	if(currentChar == '/' && sourceFileScanner.lookAhead() == '*') {
-    		while(!(currentChar == '*' && sourceFileScanner.lookAhead() == '/'))
-    			currentChar = sourceFileScanner.nextChar();
-    		currentChar = sourceFileScanner.nextChar();
-    		currentChar = sourceFileScanner.nextChar();
-    		return nextToken();
-    	}
-
-    	if(currentChar == '/' && sourceFileScanner.lookAhead() == '/') {
-    		while(!(currentChar == '\n'))
+    Symbol scan() {
+    	while(true) {
+    		// 初期状態から, 先読み文字で遷移できる限り遷移を続ける
+    		char currentChar = sourceFileScanner.nextChar();	// 現在位置の文字
+    		int state = LexerTable.transition[LexerTable.classOf(currentChar)];
+    		int length = 0;
+    		if(LexerTable.record[state])
+    			nameBuffer[length++] = currentChar;
+    		while(true) {
+    			int next = LexerTable.transition[state * LexerTable.CLASS_COUNT
+    			                                 + LexerTable.classOf(sourceFileScanner.lookAhead())];
+    			if(next == LexerTable.NONE)
+    				break;
     			currentChar = sourceFileScanner.nextChar();
-    		return nextToken();
-    	}
+    			state = next;
+    			if(LexerTable.record[state]) {
+    				if(length == nameBuffer.length)
+    					nameBuffer = Arrays.copyOf(nameBuffer, length * 2);
+    				nameBuffer[length++] = currentChar;
+    			}
+    		}
 
-    	// 整数解析部分
-    	if(currentChar == '0') {			// 先頭が0の場合は別処理
-    		if(sourceFileScanner.lookAhead() == 'x') {       // このブロック内は16進数の解析
-    			currentChar = sourceFileScanner.nextChar();
-    			currentChar = sourceFileScanner.nextChar();
-    			if(('0' <= currentChar && currentChar <= '9') ||
-    					('A' <= currentChar) && currentChar <= 'F') {
-    				int value = Character.digit(currentChar, 16);
-    				while(('0' <= sourceFileScanner.lookAhead() && sourceFileScanner.lookAhead() <= '9') ||
-        					('A' <= sourceFileScanner.lookAhead() && sourceFileScanner.lookAhead() <= 'F')) {
-        				currentChar = sourceFileScanner.nextChar();
-        				value *= 16;
-        				value += Character.digit(currentChar, 16);
-        			}
-        			token = new Token(Symbol.INTEGER, value);
-    			} else syntaxError();
-    		} else token = new Token(Symbol.INTEGER, 0);
-    	} else if('1' <= currentChar && currentChar <= '9') {
-    		int value = Character.digit(currentChar, 10);
-    		while('0' <= sourceFileScanner.lookAhead() && sourceFileScanner.lookAhead() <= '9') {
-    			currentChar = sourceFileScanner.nextChar();
-    			value *= 10;
-    			value += Character.digit(currentChar, 10);
+    		// 遷移が止まった状態に応じてトークンを作る
+    		switch(LexerTable.action[state]) {
+    		case LexerTable.A_SYMBOL:
+    			return LexerTable.symbolOf[state];
+    		case LexerTable.A_NAME:		// 変数名・予約語
+    			Symbol keyword = KeywordTable.lookup(nameBuffer, length);
+    			if(keyword != null)
+    				return keyword;
+    			tokenValue = namePool.intern(nameBuffer, length);
+    			return Symbol.NAME;
+    		case LexerTable.A_DECIMAL:	// 10進数
+    			tokenValue = 0;
+    			for(int i = 0; i < length; i++)
+    				tokenValue = tokenValue * 10 + Character.digit(nameBuffer[i], 10);
+    			return Symbol.INTEGER;
+    		case LexerTable.A_HEX:		// 16進数 (先頭の "0x" を除く)
+    			tokenValue = 0;
+    			for(int i = 2; i < length; i++)
+    				tokenValue = tokenValue * 16 + Character.digit(nameBuffer[i], 16);
+    			return Symbol.INTEGER;
+    		case LexerTable.A_CHARACTER:	// 文字
+    			tokenValue = scanCharacter();
+    			return Symbol.CHARACTER;
+    		case LexerTable.A_SKIP:		// 空白・行コメント
+    			break;
+    		case LexerTable.A_COMMENT:	// ブロックコメント (閉じた直後の一文字も読み飛ばす)
+    			sourceFileScanner.nextChar();
+    			break;
+    		case LexerTable.A_HEX_ERROR:
+    			sourceFileScanner.nextChar();
+    			syntaxError();
+    			break;
+    		default:  // どのトークンとも一致しなかった場合
+    			syntaxError();
+    			break;
     		}
-    		token = new Token(Symbol.INTEGER, value);
     	}
+    }
 
-    	// 文字解析部分
-    	else if(currentChar == '\'') {
-    		int value = 0;		// 文字コード
-    		currentChar = sourceFileScanner.nextChar();
-    		if(sourceFileScanner.lookAhead() == '\\') {
-    			currentChar = sourceFileScanner.nextChar();
-    			if(currentChar == 'n')
-    				value = (int)'\n';
-    			else if(currentChar == 't')
-    				value = (int)'\t';
-    			else if(currentChar == 'r')
-    				value = (int)'\r';
-    			else if(currentChar == 'f')
-    				value = (int)'\f';
-    			else if(currentChar == 'b')
-        				value = (int)'\b';
-    			else if(currentChar == '\\')
-    				value = (int)'\\';
-    			else if(currentChar == '\'')
-    				value = (int)'\'';
-    			else if(currentChar == '"')
-    				value = (int)'\"';
-    		} else {
-    			value = (int)currentChar;
-    		}
+    /**
+     * 文字定数の開きの '\'' を読んだ後から, 閉じの '\'' までを解析し, 文字コードを返す
+     */
+    private int scanCharacter() {
+    	char currentChar;
+    	int value = 0;		// 文字コード
+    	currentChar = sourceFileScanner.nextChar();
+    	if(sourceFileScanner.lookAhead() == '\\') {
     		currentChar = sourceFileScanner.nextChar();
-    		if(currentChar != '\'')
-    			syntaxError();
-    		token = new Token(Symbol.CHARACTER, value);
+    		if(currentChar == 'n')
+    			value = (int)'\n';
+    		else if(currentChar == 't')
+    			value = (int)'\t';
+    		else if(currentChar == 'r')
+    			value = (int)'\r';
+    		else if(currentChar == 'f')
+    			value = (int)'\f';
+    		else if(currentChar == 'b')
+    			value = (int)'\b';
+    		else if(currentChar == '\\')
+    			value = (int)'\\';
+    		else if(currentChar == '\'')
+    			value = (int)'\'';
+    		else if(currentChar == '"')
+    			value = (int)'\"';
+    	} else {
+    		value = (int)currentChar;
     	}
+    	currentChar = sourceFileScanner.nextChar();
+    	if(currentChar != '\'')
+    		syntaxError();
+    	return value;
+    }
 
-    	// 変数名・予約語解析部分
-    	else if(Character.isAlphabetic(currentChar) || currentChar == '_') {
-    		String name = "";
-    		name += currentChar;
-    		while(Character.isAlphabetic(sourceFileScanner.lookAhead()) ||
-    				sourceFileScanner.lookAhead() == '_' ||
-    				'0' <= sourceFileScanner.lookAhead() && sourceFileScanner.lookAhead() <= '9') {
-    			currentChar = sourceFileScanner.nextChar();
-    			name += currentChar;
-    		}
-    		if(name.equals("main")) 			token = new Token(Symbol.MAIN);
-    		else if(name.equals("if")) 			token = new Token(Symbol.IF);
-    		else if(name.equals("while")) 		token = new Token(Symbol.WHILE);
-    		else if(name.equals("for")) 		token = new Token(Symbol.FOR);
-    		else if(name.equals("inputint")) 	token = new Token(Symbol.INPUTINT);
-    		else if(name.equals("inputchar")) 	token = new Token(Symbol.INPUTCHAR);
-    		else if(name.equals("outputint")) 	token = new Token(Symbol.OUTPUTINT);
-    		else if(name.equals("outputchar")) 	token = new Token(Symbol.OUTPUTCHAR);
-    		else if(name.equals("break")) 		token = new Token(Symbol.BREAK);
-    		else if(name.equals("int")) 		token = new Token(Symbol.INT);
-    		else 								token = new Token(Symbol.NAME, name);
-    	}
+    /**
+     * 次のトークンを切り出し, Token として返す.
+     * ファイル末に達している場合(’\0’を読んだ場合)はEOFを返す.
+     */
+    Token nextToken() {
+    	Symbol symbol = scan();
+    	if(symbol == Symbol.NAME)
+    		return new Token(symbol, tokenValue, namePool.getName(tokenValue));
+    	else if(symbol == Symbol.INTEGER || symbol == Symbol.CHARACTER)
+    		return new Token(symbol, tokenValue);
+    	else
+    		return new Token(symbol);
+    }
 
-    	// 記号解析部分
-    	else if(currentChar == '+') {
-    		if(sourceFileScanner.lookAhead() == '+') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.INC);
-    		} else if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.ASSIGNADD);
-    		} else token = new Token(Symbol.ADD);
-    	} else if(currentChar == '-') {
-    		if(sourceFileScanner.lookAhead() == '-') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.DEC);
-    		} else if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.ASSIGNSUB);
-    		} else token = new Token(Symbol.SUB);
-    	} else if(currentChar == '*') {
-    		if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.ASSIGNMUL);
-    		} else token = new Token(Symbol.MUL);
-    	} else if(currentChar == '/') {
-    		if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.ASSIGNDIV);
-    		} else token = new Token(Symbol.DIV);
-    	} else if(currentChar == '%') token = new Token(Symbol.MOD);
-    	else if(currentChar == '=') {
-    		if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.EQUAL);
-    		} else token = new Token(Symbol.ASSIGN);
-    	} else if(currentChar == '!') {
-    		if(sourceFileScanner.lookAhead() == '=') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.NOTEQ);
-    		} else token = new Token(Symbol.NOT);
-    	} else if(currentChar == '<') 	token = new Token(Symbol.LESS);
-    	else if(currentChar == '>') 	token = new Token(Symbol.GREAT);
-    	else if(currentChar == '&') {
-    		if(sourceFileScanner.lookAhead() == '&') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.AND);
-    		} else syntaxError();
-    	} else if(currentChar == '|') {
-    		if(sourceFileScanner.lookAhead() == '|') {
-    			sourceFileScanner.nextChar();
-    			token = new Token(Symbol.OR);
-    		} else syntaxError();
-    	} else if(currentChar == ';') 	token = new Token(Symbol.SEMICOLON);
-    	else if(currentChar == '(') 	token = new Token(Symbol.LPAREN);
-    	else if(currentChar == ')') 	token = new Token(Symbol.RPAREN);
-    	else if(currentChar == '{') 	token = new Token(Symbol.LBRACE);
-    	else if(currentChar == '}') 	token = new Token(Symbol.RBRACE);
-    	else if(currentChar == '[') 	token = new Token(Symbol.LBRACKET);
-    	else if(currentChar == ']') 	token = new Token(Symbol.RBRACKET);
-    	else if(currentChar == ',') 	token = new Token(Symbol.COMMA);
-    	else if(currentChar == '\0') 	token = new Token(Symbol.EOF);
-    	else syntaxError();  // どのトークンとも一致しなかった場合
-    	return token;
+    /**
+     * 直前に切り出したトークンの値 (整数値, 文字コード, または名前のID) を返す
+     */
+    int getTokenValue() {
+    	return tokenValue;
+    }
+
+    /**
+     * IDで指定した名前の文字列を返す
+     */
+    String getName(int id) {
+    	return namePool.getName(id);
+    }
+
+    /**
+     * 先読み文字のソースプログラム中での位置を返す
+     */
+    int getPosition() {
+    	return sourceFileScanner.getPosition();
     }
 
     /**
@@ -196,6 +187,13 @@ class LexicalAnalyzer {
     	sourceFileScanner.closeFile();
     }
 
+    /**
+     * ソースプログラムの行数を返す
+     */
+    int getLineCount() {
+    	return sourceFileScanner.lineCount();
+    }
+
     /**
      * 現在，入力ファイルのどの部分を解析中であるのかを表現する文字列を返す.
      * sourceFileScannerのscanAtメソッドを呼び出せばよい.
@@ -204,15 +202,22 @@ class LexicalAnalyzer {
     	return sourceFileScanner.scanAt();
     }
 
+    /**
+     * ソースプログラム中の位置 offset の行番号と列番号, および message から
+     * 構文解析時のエラーを作る. getPosition() で得た位置を後からエラーにするときに使う.
+     */
+    Diagnostic diagnose(int offset, String message) {
+    	return new Diagnostic(Diagnostic.Kind.SYNTAX, sourceFileScanner.getLineNumber(offset),
+    			sourceFileScanner.getColumnNumber(offset), message);
+    }
+
     /**
      * 字句解析時に構文エラーを検出したときに呼ばれるメソッド.
-     * プログラム例3のとおりに作成すること.
+     * 現在の位置を持つエラーを CompileException として投げる.
      */
     private void syntaxError() {
-        System.out.print (sourceFileScanner.scanAt());
-        //下記の文言は自動採点で使用するので変更しないでください。
-        System.out.println ("で字句解析プログラムが構文エラーを検出");
-        closeFile();
-        System.exit(1);
+    	int offset = sourceFileScanner.getPosition();
+    	throw new CompileException(new Diagnostic(Diagnostic.Kind.LEXICAL,
+    			sourceFileScanner.getLineNumber(offset), sourceFileScanner.getColumnNumber(offset), null));
     }
 }
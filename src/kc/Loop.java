@@ -0,0 +1,90 @@
+package kc;
+
+import java.util.ArrayList;
+
+/**
+ * 自然なループ
+ * ヘッダが支配するブロックからヘッダへの辺 (後退辺) で作られるループ.
+ * ヘッダが同じ後退辺は一つのループにまとめる.
+ */
+class Loop {
+	/**
+	 * ループの入口のブロック
+	 */
+	private BasicBlock header;
+
+	/**
+	 * ヘッダへの後退辺の始点 (ループの末尾) のブロック
+	 */
+	ArrayList<BasicBlock> latches = new ArrayList<BasicBlock>();
+
+	/**
+	 * このループを直接含むループ (最も外側なら null)
+	 */
+	Loop parent;
+
+	/**
+	 * このループに直接含まれるループ
+	 */
+	ArrayList<Loop> children = new ArrayList<Loop>();
+
+	/**
+	 * 内側のループに含まれないブロック (ヘッダを含む)
+	 */
+	ArrayList<BasicBlock> ownBlocks = new ArrayList<BasicBlock>();
+
+	/**
+	 * ヘッダを引数とするコンストラクタ
+	 */
+	Loop(BasicBlock header) {
+		this.header = header;
+	}
+
+	/**
+	 * @return ループの入口のブロック
+	 */
+	BasicBlock getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return 入れ子の深さ (最も外側のループは 1)
+	 */
+	int getDepth() {
+		int depth = 0;
+		for (Loop loop = this; loop != null; loop = loop.parent)
+			depth++;
+		return depth;
+	}
+
+	/**
+	 * ブロックがこのループ (内側のループを含む) に含まれるかを判定する
+	 */
+	boolean contains(BasicBlock block) {
+		for (Loop loop = block.loop; loop != null; loop = loop.parent) {
+			if (loop == this)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return 内側のループのものも含めた, ループに含まれるすべてのブロック
+	 */
+	ArrayList<BasicBlock> getBlocks() {
+		ArrayList<BasicBlock> blocks = new ArrayList<BasicBlock>();
+		ArrayList<Loop> work = new ArrayList<Loop>();
+		work.add(this);
+		while (!work.isEmpty()) {
+			Loop loop = work.remove(work.size() - 1);
+			blocks.addAll(loop.ownBlocks);
+			work.addAll(loop.children);
+		}
+		return blocks;
+	}
+
+	@Override
+	public String toString() {
+		return "Loop(" + header + ")";
+	}
+}
@@ -0,0 +1,603 @@
+package kc;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * VSM の命令列のうち実行が集中するループを JVM のバイトコードに翻訳し, 隠しクラスとして読み込むクラス
+ * 後退する分岐とその飛び先 (ループの入口) から自然なループ (入口を通らずに後退する分岐に着く番地の集まり) を求め,
+ * それを含む番地の範囲を一つのメソッドにする. for 文のように条件, 更新, 本体が別々の後退する分岐で
+ * つながっていても, 一つのループとして翻訳される.
+ * 範囲の中の各番地でのスタックの深さを入口の深さから静的に求め, スタックの各要素を局所変数に割り当てるので,
+ * 翻訳したコードはオペランドスタックの配列に触れず, HotSpot が通常の Java のループと同じく最適化できる.
+ *
+ * 範囲の外への分岐, 入出力と HALT, 0 での割り算や範囲外のアドレスになる命令の手前では,
+ * スタックの中身と実行した命令の数を書き戻してインタプリタに戻る (サイドイグジット).
+ * 実行した命令の数はインタプリタと同じく一命令ずつ数え, 上限の検査も分岐したときに同じ条件でする.
+ * 深さが合流点で食い違う, 空のスタックから取り出すなど, 深さが静的に決まらない範囲は翻訳しない.
+ */
+class LoopCompiler {
+	/** 翻訳したメソッドのバイトコードの長さの上限. HotSpot はこれより長いメソッドを JIT コンパイルしない */
+	private static final int MAX_CODE_LENGTH = 8000;
+	/** スタックの要素に割り当てる局所変数の数の上限 (局所変数の番号を1バイトに収める) */
+	private static final int MAX_SLOTS = 240;
+	/** 翻訳したクラスの名前. 隠しクラスなので読み込むときに一意の名前が付く */
+	private static final String CLASS_NAME = "kc/CompiledLoopImpl";
+	/** 翻訳するメソッドの記述子 (CompiledLoop.run) */
+	private static final String RUN_DESCRIPTOR = "([I[I[JJ)J";
+
+	/* 局所変数の番号. SLOT から先がスタックの要素 */
+	private static final int DATA = 1, STACK = 2, STEPS = 3, LIMIT = 4, COUNT = 6, SLOT = 8;
+
+	/* verification_type_info の種類 */
+	private static final int ITEM_INTEGER = 1, ITEM_LONG = 4, ITEM_OBJECT = 7;
+
+	/**
+	 * 各番地の命令とオペランド
+	 */
+	private Operator[] operators;
+	private int[] operands;
+
+	/**
+	 * ループの入口の番地
+	 */
+	private int head;
+
+	/**
+	 * 翻訳する範囲の最初と最後の番地
+	 */
+	private int first, last;
+
+	/**
+	 * Dseg の語数
+	 */
+	private int dataSize;
+
+	/**
+	 * 範囲の各番地 (first からの差) の命令を実行する前のスタックの深さ. 着かない番地は -1
+	 */
+	private int[] depth;
+
+	/**
+	 * 範囲の各番地が範囲の中からの分岐の飛び先であれば true
+	 */
+	private boolean[] isTarget;
+
+	/**
+	 * 範囲の中のスタックの最大の深さ
+	 */
+	private int maxDepth;
+
+	private ClassFileWriter classFile;
+	private CodeBuffer code;
+
+	/**
+	 * 範囲の各番地のラベル
+	 */
+	private int[] labels;
+
+	/**
+	 * サイドイグジットのラベル. 出口の番地と深さと上限の印から作ったキーで引く
+	 */
+	private HashMap<Long, Integer> exits = new HashMap<Long, Integer>();
+
+	/**
+	 * まだ命令の数に加えていない, 実行した命令の数
+	 */
+	private int pending;
+
+	/**
+	 * 各フィールドを引数で与えられたもので初期化するコンストラクタ
+	 */
+	private LoopCompiler(Operator[] operators, int[] operands, int head, int dataSize) {
+		this.operators = operators;
+		this.operands = operands;
+		this.head = head;
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * end から head への後退する分岐が作るループを翻訳して読み込む
+	 * @param operators 各番地の命令
+	 * @param operands 各番地のオペランド
+	 * @param head ループの入口の番地
+	 * @param end ループの末尾の後退する分岐の番地
+	 * @param entryDepth 入口でのスタックの深さ
+	 * @param dataSize Dseg の語数
+	 * @param stackSize オペランドスタックの語数
+	 * @return 翻訳したループ. 翻訳できなければ null
+	 */
+	static CompiledLoop compile(Operator[] operators, int[] operands, int head, int end, int entryDepth,
+			int dataSize, int stackSize) {
+		LoopCompiler compiler = new LoopCompiler(operators, operands, head, dataSize);
+		compiler.findRange(end);
+		byte[] bytes = compiler.toClassFile(entryDepth, stackSize);
+		if (bytes == null && (compiler.first != head || compiler.last != end)) {
+			// ループが外側のループに広がって翻訳できなければ, 入口から後退する分岐までに狭めて試す
+			compiler = new LoopCompiler(operators, operands, head, dataSize);
+			compiler.first = head;
+			compiler.last = end;
+			bytes = compiler.toClassFile(entryDepth, stackSize);
+		}
+		if (bytes == null)
+			return null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (CompiledLoop) lookup.lookupClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError exception) {	//検証に通らなければ解釈実行を続ける
+			return null;
+		}
+	}
+
+	/**
+	 * first から last までの範囲を翻訳する
+	 * @return クラスファイル. 深さが静的に決まらないとき, スタックが足りないとき, メソッドが長すぎるときは null
+	 */
+	private byte[] toClassFile(int entryDepth, int stackSize) {
+		if (!analyze(entryDepth) || maxDepth > stackSize)
+			return null;
+		return translate(entryDepth);
+	}
+
+	/**
+	 * end から head への後退する分岐の自然なループを, 後続の番地から先行する番地へさかのぼって求め,
+	 * それを含む最小の範囲を first と last に置く.
+	 * head がループの他の入口を支配しない (内側のループに条件の側から入る) ときは外側のループまで含む
+	 */
+	private void findRange(int end) {
+		int length = operators.length;
+		// 各番地の先行する番地の表 (predecessors の starts[a] から starts[a + 1] の手前まで)
+		int[] starts = new int[length + 2];
+		for (int address = 0; address < length; address++) {
+			if (falls(address))
+				starts[address + 3]++;
+			int target = operands[address];
+			if (operators[address].isJump() && target >= 0 && target < length)
+				starts[target + 2]++;
+		}
+		for (int i = 2; i < starts.length; i++)
+			starts[i] += starts[i - 1];
+		int[] predecessors = new int[starts[length + 1]];
+		for (int address = 0; address < length; address++) {
+			if (falls(address))
+				predecessors[starts[address + 2]++] = address;
+			int target = operands[address];
+			if (operators[address].isJump() && target >= 0 && target < length)
+				predecessors[starts[target + 1]++] = address;
+		}
+
+		boolean[] inLoop = new boolean[length];
+		int[] work = new int[length];
+		int top = 0;
+		inLoop[head] = true;
+		first = last = head;
+		if (!inLoop[end]) {
+			inLoop[end] = true;
+			work[top++] = end;
+		}
+		while (top > 0) {
+			int address = work[--top];
+			first = Math.min(first, address);
+			last = Math.max(last, address);
+			for (int i = starts[address]; i < starts[address + 1]; i++) {
+				int predecessor = predecessors[i];
+				if (!inLoop[predecessor]) {
+					inLoop[predecessor] = true;
+					work[top++] = predecessor;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return 番地 address の命令の次に address + 1 の命令を実行することがあれば true
+	 */
+	private boolean falls(int address) {
+		Operator operator = operators[address];
+		return operator != Operator.JUMP && operator != Operator.HALT && address + 1 < operators.length;
+	}
+
+	/**
+	 * 入口から範囲の中の分岐をたどって各番地のスタックの深さを求める
+	 * @return 深さが静的に決まれば true
+	 */
+	private boolean analyze(int entryDepth) {
+		int size = last - first + 1;
+		depth = new int[size];
+		Arrays.fill(depth, -1);
+		isTarget = new boolean[size];
+		int[] work = new int[size];
+		int top = 0;
+		depth[head - first] = entryDepth;
+		isTarget[head - first] = true;
+		work[top++] = head;
+		maxDepth = entryDepth;
+		while (top > 0) {
+			int address = work[--top];
+			Operator operator = operators[address];
+			if (!isTranslatable(address))	//インタプリタに戻るので先へ伝えない
+				continue;
+			int before = depth[address - first];
+			if (before < operator.popCount())
+				return false;
+			int after = before - operator.popCount() + operator.pushCount();
+			maxDepth = Math.max(maxDepth, after);
+			if (maxDepth > MAX_SLOTS)
+				return false;
+			int target = operands[address];
+			if (operator.isJump() && target >= first && target <= last) {
+				isTarget[target - first] = true;
+				if (depth[target - first] < 0) {
+					depth[target - first] = after;
+					work[top++] = target;
+				} else if (depth[target - first] != after) {
+					return false;
+				}
+			}
+			int next = address + 1;
+			if (operator != Operator.JUMP && next <= last) {
+				if (depth[next - first] < 0) {
+					depth[next - first] = after;
+					work[top++] = next;
+				} else if (depth[next - first] != after) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return 番地 address の命令を翻訳できれば true. できなければその手前でインタプリタに戻る
+	 */
+	private boolean isTranslatable(int address) {
+		switch (operators[address]) {
+			case NOP: case ASSGN: case ADD: case SUB: case MUL: case DIV: case MOD: case CSIGN:
+			case AND: case OR: case NOT: case COMP: case COPY: case PUSHI: case REMOVE:
+			case INC: case DEC: case JUMP: case BLT: case BLE: case BEQ: case BNE: case BGE: case BGT: case LOAD:
+				return true;
+			case PUSH: case POP:
+				return operands[address] >= 0 && operands[address] < dataSize;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 範囲を CompiledLoop を実装するクラスに翻訳する
+	 * @return クラスファイル. メソッドが長すぎれば null
+	 */
+	private byte[] translate(int entryDepth) {
+		classFile = new ClassFileWriter(CLASS_NAME, "java/lang/Object", "kc/CompiledLoop");
+		CodeBuffer constructor = new CodeBuffer();
+		constructor.local(CodeBuffer.ALOAD, 0);
+		constructor.constant(CodeBuffer.INVOKESPECIAL, classFile.methodRef("java/lang/Object", "<init>", "()V"));
+		constructor.op(CodeBuffer.RETURN);
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", constructor, 1, 1);
+
+		code = new CodeBuffer();
+		code.setFrameLocals(frameLocals(), 6 + maxDepth);
+		// 命令の数を局所変数に移し, スタックの要素の局所変数を初期化する (入口より下の要素は配列から読む)
+		code.local(CodeBuffer.ALOAD, STEPS);
+		code.op(CodeBuffer.ICONST_0);
+		code.op(CodeBuffer.LALOAD);
+		code.local(CodeBuffer.LSTORE, COUNT);
+		for (int k = 0; k < maxDepth; k++) {
+			if (k < entryDepth) {
+				code.local(CodeBuffer.ALOAD, STACK);
+				code.pushInt(classFile, k);
+				code.op(CodeBuffer.IALOAD);
+			} else {
+				code.op(CodeBuffer.ICONST_0);
+			}
+			code.local(CodeBuffer.ISTORE, SLOT + k);
+		}
+
+		labels = new int[last - first + 1];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = code.newLabel();
+		if (head != first)
+			code.jump(CodeBuffer.GOTO, labels[head - first]);
+		for (int address = first; address <= last; address++) {
+			int d = depth[address - first];
+			if (d < 0)	//入口から着かない命令
+				continue;
+			if (isTarget[address - first]) {
+				flush();
+				code.bind(labels[address - first]);
+			}
+			if (!isTranslatable(address)) {
+				flush();
+				code.jump(CodeBuffer.GOTO, exit(address, d, false));
+				continue;
+			}
+			translate(address, d);
+			Operator operator = operators[address];
+			if (address == last && operator != Operator.JUMP) {	//範囲の末尾から先へ進む
+				flush();
+				code.jump(CodeBuffer.GOTO, exit(last + 1, d - operator.popCount() + operator.pushCount(), false));
+			}
+			if (code.getLength() > MAX_CODE_LENGTH)
+				return null;
+		}
+		writeExits();
+		if (code.getLength() > MAX_CODE_LENGTH)
+			return null;
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "run", RUN_DESCRIPTOR, code, 6, SLOT + maxDepth);
+		return classFile.toByteArray();
+	}
+
+	/**
+	 * 一命令を翻訳する
+	 * @param address 番地
+	 * @param d 実行する前のスタックの深さ
+	 */
+	private void translate(int address, int d) {
+		int operand = operands[address];
+		switch (operators[address]) {
+			case NOP:
+			case REMOVE:
+				break;
+			case PUSHI:
+				code.pushInt(classFile, operand);
+				code.local(CodeBuffer.ISTORE, slot(d));
+				break;
+			case PUSH:
+				code.local(CodeBuffer.ALOAD, DATA);
+				code.pushInt(classFile, operand);
+				code.op(CodeBuffer.IALOAD);
+				code.local(CodeBuffer.ISTORE, slot(d));
+				break;
+			case POP:
+				code.local(CodeBuffer.ALOAD, DATA);
+				code.pushInt(classFile, operand);
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.op(CodeBuffer.IASTORE);
+				break;
+			case ADD:
+				binary(d, CodeBuffer.IADD);
+				break;
+			case SUB:
+				binary(d, CodeBuffer.ISUB);
+				break;
+			case MUL:
+				binary(d, CodeBuffer.IMUL);
+				break;
+			case DIV:
+			case MOD:
+				flush();
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.jump(CodeBuffer.IFEQ, exit(address, d, false));	//0 で割るならインタプリタでエラーにする
+				binary(d, operators[address] == Operator.DIV ? CodeBuffer.IDIV : CodeBuffer.IREM);
+				break;
+			case CSIGN:
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.op(CodeBuffer.INEG);
+				code.local(CodeBuffer.ISTORE, slot(d - 1));
+				break;
+			case AND:
+			case OR:
+				// x | -x の符号ビットが x != 0 を表すので, 分岐せずに 0 か 1 を求める
+				nonZero(slot(d - 2));
+				nonZero(slot(d - 1));
+				code.op(operators[address] == Operator.AND ? CodeBuffer.IAND : CodeBuffer.IOR);
+				code.pushInt(classFile, 31);
+				code.op(CodeBuffer.IUSHR);
+				code.local(CodeBuffer.ISTORE, slot(d - 2));
+				break;
+			case NOT:
+				nonZero(slot(d - 1));
+				code.pushInt(classFile, 31);
+				code.op(CodeBuffer.IUSHR);
+				code.op(CodeBuffer.ICONST_0 + 1);
+				code.op(CodeBuffer.IXOR);
+				code.local(CodeBuffer.ISTORE, slot(d - 1));
+				break;
+			case COMP:
+				code.local(CodeBuffer.ILOAD, slot(d - 2));
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.constant(CodeBuffer.INVOKESTATIC, classFile.methodRef("java/lang/Integer", "compare", "(II)I"));
+				code.local(CodeBuffer.ISTORE, slot(d - 2));
+				break;
+			case COPY:
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.local(CodeBuffer.ISTORE, slot(d));
+				break;
+			case INC:
+				code.iinc(slot(d - 1), 1);
+				break;
+			case DEC:
+				code.iinc(slot(d - 1), -1);
+				break;
+			case LOAD:
+				flush();
+				checkAddress(slot(d - 1), exit(address, d, false));
+				code.local(CodeBuffer.ALOAD, DATA);
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.op(CodeBuffer.IALOAD);
+				code.local(CodeBuffer.ISTORE, slot(d - 1));
+				break;
+			case ASSGN:
+				flush();
+				checkAddress(slot(d - 2), exit(address, d, false));
+				code.local(CodeBuffer.ALOAD, DATA);
+				code.local(CodeBuffer.ILOAD, slot(d - 2));
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.op(CodeBuffer.IASTORE);
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.local(CodeBuffer.ISTORE, slot(d - 2));
+				break;
+			case JUMP:
+				pending++;
+				flush();
+				branch(operand, d);
+				return;
+			default: {	//条件分岐命令. 分岐しなければ次の命令へ
+				pending++;
+				flush();
+				int fallThrough = code.newLabel();
+				code.local(CodeBuffer.ILOAD, slot(d - 1));
+				code.jump(invertedCondition(operators[address]), fallThrough);
+				branch(operand, d - 1);
+				code.bind(fallThrough);
+				return;
+			}
+		}
+		pending++;
+	}
+
+	/**
+	 * スタックの上の二つの要素に二項演算をして, 結果を下の要素に置く
+	 */
+	private void binary(int d, int opcode) {
+		code.local(CodeBuffer.ILOAD, slot(d - 2));
+		code.local(CodeBuffer.ILOAD, slot(d - 1));
+		code.op(opcode);
+		code.local(CodeBuffer.ISTORE, slot(d - 2));
+	}
+
+	/**
+	 * 局所変数 x について x | -x を積む (x が 0 でなければ符号ビットが立つ)
+	 */
+	private void nonZero(int local) {
+		code.local(CodeBuffer.ILOAD, local);
+		code.op(CodeBuffer.DUP);
+		code.op(CodeBuffer.INEG);
+		code.op(CodeBuffer.IOR);
+	}
+
+	/**
+	 * 局所変数の値が Dseg のアドレスの範囲外ならラベル exit に分岐する
+	 */
+	private void checkAddress(int local, int exit) {
+		code.local(CodeBuffer.ILOAD, local);
+		code.jump(CodeBuffer.IFLT, exit);
+		code.local(CodeBuffer.ILOAD, local);
+		code.local(CodeBuffer.ALOAD, DATA);
+		code.op(CodeBuffer.ARRAYLENGTH);
+		code.jump(CodeBuffer.IF_ICMPGE, exit);
+	}
+
+	/**
+	 * target に分岐する. インタプリタと同じく, 分岐したときに命令の数が上限を超えていれば止まる
+	 * @param after 分岐した後のスタックの深さ
+	 */
+	private void branch(int target, int after) {
+		code.local(CodeBuffer.LLOAD, COUNT);
+		code.local(CodeBuffer.LLOAD, LIMIT);
+		code.op(CodeBuffer.LCMP);
+		code.jump(CodeBuffer.IFGT, exit(target, after, true));
+		if (target >= first && target <= last)
+			code.jump(CodeBuffer.GOTO, labels[target - first]);
+		else
+			code.jump(CodeBuffer.GOTO, exit(target, after, false));
+	}
+
+	/**
+	 * 条件分岐命令の条件が成り立たないときに分岐する JVM の命令を返す
+	 */
+	private static int invertedCondition(Operator operator) {
+		switch (operator) {
+			case BLT: return CodeBuffer.IFGE;
+			case BLE: return CodeBuffer.IFGT;
+			case BEQ: return CodeBuffer.IFNE;
+			case BNE: return CodeBuffer.IFEQ;
+			case BGE: return CodeBuffer.IFLT;
+			default: return CodeBuffer.IFLE;	// BGT
+		}
+	}
+
+	/**
+	 * まだ加えていない命令の数を, 命令の数の局所変数に加える
+	 */
+	private void flush() {
+		if (pending == 0)
+			return;
+		code.local(CodeBuffer.LLOAD, COUNT);
+		if (pending == 1) {
+			code.op(CodeBuffer.LCONST_1);
+		} else {
+			code.pushInt(classFile, pending);
+			code.op(CodeBuffer.I2L);
+		}
+		code.op(CodeBuffer.LADD);
+		code.local(CodeBuffer.LSTORE, COUNT);
+		pending = 0;
+	}
+
+	/**
+	 * サイドイグジットのラベルを返す. 同じ出口は一つにまとめる
+	 * @param address インタプリタで次に実行する番地
+	 * @param d そのときのスタックの深さ
+	 * @param overLimit 命令の数が上限を超えて止まる出口なら true
+	 */
+	private int exit(int address, int d, boolean overLimit) {
+		long key = exitCode(address, d, overLimit);
+		Integer label = exits.get(key);
+		if (label == null) {
+			label = code.newLabel();
+			exits.put(key, label);
+		}
+		return label;
+	}
+
+	/**
+	 * run の返り値を作る
+	 */
+	private static long exitCode(int address, int d, boolean overLimit) {
+		long exit = (long) d << 32 | (address & 0xffffffffL);
+		return overLimit ? exit | Long.MIN_VALUE : exit;
+	}
+
+	/**
+	 * サイドイグジットのコードを書く. スタックの要素と命令の数を書き戻して出口を返す
+	 */
+	private void writeExits() {
+		for (Long key : exits.keySet()) {
+			long exit = key;
+			int d = (int) (exit >>> 32) & Integer.MAX_VALUE;
+			code.bind(exits.get(key));
+			for (int k = 0; k < d; k++) {
+				code.local(CodeBuffer.ALOAD, STACK);
+				code.pushInt(classFile, k);
+				code.local(CodeBuffer.ILOAD, slot(k));
+				code.op(CodeBuffer.IASTORE);
+			}
+			code.local(CodeBuffer.ALOAD, STEPS);
+			code.op(CodeBuffer.ICONST_0);
+			code.local(CodeBuffer.LLOAD, COUNT);
+			code.op(CodeBuffer.LASTORE);
+			code.constant(CodeBuffer.LDC2_W, classFile.longConstant(exit));
+			code.op(CodeBuffer.LRETURN);
+		}
+	}
+
+	/**
+	 * @return スタックの k 番目の要素を置く局所変数の番号
+	 */
+	private static int slot(int k) {
+		return SLOT + k;
+	}
+
+	/**
+	 * フレームの局所変数の型を作る: this, int[] data, int[] stack, long[] steps, long limit, long count, int の要素
+	 */
+	private byte[] frameLocals() {
+		int arrayOfInt = classFile.classRef("[I");
+		int arrayOfLong = classFile.classRef("[J");
+		int self = classFile.getThisClass();
+		byte[] locals = new byte[3 * 4 + 2 + maxDepth];
+		int i = 0;
+		for (int type : new int[] {self, arrayOfInt, arrayOfInt, arrayOfLong}) {
+			locals[i++] = ITEM_OBJECT;
+			locals[i++] = (byte) (type >> 8);
+			locals[i++] = (byte) type;
+		}
+		locals[i++] = ITEM_LONG;
+		locals[i++] = ITEM_LONG;
+		while (i < locals.length)
+			locals[i++] = ITEM_INTEGER;
+		return locals;
+	}
+}
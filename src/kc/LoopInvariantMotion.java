@@ -0,0 +1,392 @@
+package kc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * ループ不変式の移動
+ * ループの中で値の変わらない副作用の無い命令列 (例えば while の条件の SIZE-1 を計算する PUSH SIZE; DEC) を,
+ * ループに入る前 (プリヘッダ) に一度だけ計算して一時領域に保存し, ループの中ではその一時領域の PUSH にする.
+ * 同じループの同じ命令列は一つの一時領域にまとめる.
+ *
+ * ループは ControlFlowGraph の自然なループで, ループの外からの辺はすべてヘッダに入る.
+ * プリヘッダはヘッダの直前に置き, ループの外からヘッダへの分岐だけをプリヘッダに付け替える.
+ * ループの直前のブロックがループの中からヘッダに進む (回転したループ) 場合は,
+ * ループの外からの唯一の入口であるヘッダへの JUMP の直前に置く.
+ * break などでループを途中で出ても, プリヘッダで計算した値を使わなくなるだけなので構わない.
+ *
+ * ループの中で POP する変数と, 定数アドレスへの ASSGN で書き換えうる変数 (ループの中で PUSHI するアドレス) は不変でない.
+ * ++, -- は POP で書き換えるので, inputint の値も POP や ASSGN で書き込むので, これで扱える.
+ * 配列の添字は範囲内にあると仮定し (一時領域は VarTable.reserveTemporary が変数から一語離して置く), ループの中に ASSGN か配列の要素への POP があれば配列の要素はすべて不変でないとする.
+ * 実行時エラーになりうる LOAD, DIV, MOD は, ループに入るたびに必ず実行するヘッダの中で, 出力より前にあるものだけを移す.
+ * 移した命令列の置き換えで元の位置の命令は減るが, プリヘッダの命令が増えるので, 命令の数は増える.
+ */
+class LoopInvariantMotion implements Pass {
+	/* 置き換える命令列 (int 配列) の各要素の位置 */
+	/** 命令列の先頭の番地 */
+	private static final int START = 0;
+	/** 命令列の末尾の次の番地 */
+	private static final int END = 1;
+	/** 値を保存する一時領域のアドレス */
+	private static final int TEMPORARY = 2;
+
+	/**
+	 * 命令列を先頭の番地の順に, 先頭が同じなら外側を先に並べる
+	 */
+	private static final Comparator<int[]> BY_RANGE = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] a, int[] b) {
+			return a[START] != b[START] ? Integer.compare(a[START], b[START]) : Integer.compare(b[END], a[END]);
+		}
+	};
+
+	/**
+	 * 一つのループのプリヘッダ
+	 */
+	private static class Preheader {
+		/** 移す先のループ */
+		Loop loop;
+		/** ヘッダへの JUMP の直前に置くなら true. その JUMP への分岐はすべてプリヘッダに付け替える */
+		boolean beforeJump;
+		/** プリヘッダで計算する命令列 (同じ命令列は一度だけ) */
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+
+		Preheader(Loop loop, boolean beforeJump) {
+			this.loop = loop;
+			this.beforeJump = beforeJump;
+		}
+	}
+
+	/**
+	 * 変数表. 一時領域の確保と, 配列の要素のアドレスの判定に使う
+	 */
+	private VarTable variables;
+
+	/**
+	 * これまでに確保した一時領域
+	 */
+	private ArrayList<Integer> temporaries = new ArrayList<Integer>();
+
+	/** 模したスタックの各要素を積んだ命令列の先頭と末尾の次の番地. ループ不変の一続きの命令列で積んだのでなければ -1 */
+	private int[] stackStart, stackEnd;
+	/** 模したスタックの要素数 */
+	private int depth;
+
+	/**
+	 * 変数表を引数とするコンストラクタ
+	 */
+	LoopInvariantMotion(VarTable variables) {
+		this.variables = variables;
+	}
+
+	@Override
+	public String getName() {
+		return "licm";
+	}
+
+	/**
+	 * 命令列を最適化して書き換える.
+	 * 内側のループから順に調べ, 一回で移すのは一段だけにする (外側のループへは次にかけたときに移す)
+	 * @param iseg 命令列
+	 * @return 削除した命令の数 (命令が増えたら負)
+	 */
+	@Override
+	public int optimize(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		ControlFlowGraph graph = new ControlFlowGraph(iseg);
+		stackStart = new int[length + 2];
+		stackEnd = new int[length + 2];
+
+		HashSet<Integer> used = new HashSet<Integer>();	//命令列の中で使っている一時領域
+		for (int i = 0; i < length; i++) {
+			Operator operator = iseg.getOperator(i);
+			if (operator == Operator.PUSH || operator == Operator.POP)
+				used.add(iseg.getOperand(i));
+		}
+		int next = 0;
+
+		boolean[] claimed = new boolean[length];	//置き換えることにした命令
+		ArrayList<int[]> rewrites = new ArrayList<int[]>();
+		// プリヘッダを置く番地からプリヘッダへの表
+		HashMap<Integer, Preheader> preheaders = new HashMap<Integer, Preheader>();
+		for (Loop loop : graph.getLoops()) {
+			if (!loop.getHeader().isReachable())
+				continue;
+			int at = insertionPoint(iseg, graph, loop);
+			if (at < 0 || preheaders.containsKey(at))
+				continue;
+			ArrayList<int[]> candidates = findInvariants(iseg, loop);
+			if (candidates.isEmpty())
+				continue;
+			candidates.sort(BY_RANGE);
+
+			Preheader preheader = new Preheader(loop, at != loop.getHeader().getStart());
+			HashMap<String, Integer> temporaryOf = new HashMap<String, Integer>();	//命令列の字面から一時領域への表
+			int outerEnd = -1;
+			for (int[] candidate : candidates) {
+				if (candidate[END] <= outerEnd || isClaimed(claimed, candidate))
+					continue;
+				outerEnd = candidate[END];
+				String text = textOf(iseg, candidate);
+				Integer temporary = temporaryOf.get(text);
+				if (temporary == null) {
+					while (next < temporaries.size() && used.contains(temporaries.get(next)))
+						next++;
+					if (next == temporaries.size())
+						temporaries.add(variables.reserveTemporary());
+					temporary = temporaries.get(next++);
+					temporaryOf.put(text, temporary);
+					preheader.ranges.add(new int[] {candidate[START], candidate[END], temporary});
+				}
+				candidate[TEMPORARY] = temporary;
+				rewrites.add(candidate);
+				for (int i = candidate[START]; i < candidate[END]; i++)
+					claimed[i] = true;
+			}
+			if (!preheader.ranges.isEmpty())
+				preheaders.put(at, preheader);
+		}
+		if (rewrites.isEmpty())
+			return 0;
+		rebuild(iseg, graph, rewrites, preheaders);
+		return length - (iseg.getLastCodeAddress() + 1);
+	}
+
+	/**
+	 * プリヘッダを置く番地を求める
+	 * @return プリヘッダをその番地の命令の前に置く. 置けなければ -1
+	 */
+	private static int insertionPoint(PseudoIseg iseg, ControlFlowGraph graph, Loop loop) {
+		BasicBlock header = loop.getHeader();
+		int start = header.getStart();
+		// ループの中から直前の番地を経てヘッダに進むことが無ければ, ヘッダの直前に置ける
+		if (start == 0 || !loop.contains(graph.getBlock(start - 1)) || !fallsThrough(iseg, graph.getBlock(start - 1)))
+			return start;
+
+		BasicBlock entry = null;	//ループの外の唯一の先行ブロック
+		for (BasicBlock predecessor : header.predecessors) {
+			if (loop.contains(predecessor))
+				continue;
+			if (entry != null)
+				return -1;
+			entry = predecessor;
+		}
+		if (entry == null || iseg.getOperator(entry.getLast()) != Operator.JUMP)
+			return -1;
+		return entry.getLast();
+	}
+
+	/**
+	 * ブロックの末尾から次の番地の命令に進むことがあるかを判定する
+	 */
+	private static boolean fallsThrough(PseudoIseg iseg, BasicBlock block) {
+		Operator operator = iseg.getOperator(block.getLast());
+		return operator != Operator.JUMP && operator != Operator.HALT;
+	}
+
+	/**
+	 * ループの中の, 値を一つ積むループ不変で二命令以上の命令列を求める (入れ子になったものも含む)
+	 * @return 命令列の {先頭の番地, 末尾の次の番地, -1} の並び
+	 */
+	private ArrayList<int[]> findInvariants(PseudoIseg iseg, Loop loop) {
+		ArrayList<BasicBlock> blocks = loop.getBlocks();
+		HashSet<Integer> written = new HashSet<Integer>();	//ループの中で書き換えうるアドレス
+		HashSet<Integer> constants = new HashSet<Integer>();
+		boolean arrayWritten = false, stores = false;
+		for (BasicBlock block : blocks) {
+			for (int i = block.getStart(); i < block.getEnd(); i++) {
+				Operator operator = iseg.getOperator(i);
+				int operand = iseg.getOperand(i);
+				if (operator == Operator.POP) {
+					written.add(operand);
+					if (variables.isArrayElement(operand))
+						arrayWritten = true;
+				} else if (operator == Operator.PUSHI) {
+					constants.add(operand);
+				} else if (operator == Operator.ASSGN) {
+					stores = true;
+				}
+			}
+		}
+		if (stores) {	//ASSGN の書き込み先は, ループの中で PUSHI したアドレスか配列の要素
+			written.addAll(constants);
+			arrayWritten = true;
+		}
+
+		ArrayList<int[]> candidates = new ArrayList<int[]>();
+		for (BasicBlock block : blocks) {
+			boolean mayFail = block == loop.getHeader();	//実行時エラーになりうる命令を移せるなら true
+			depth = 0;
+			for (int i = block.getStart(); i < block.getEnd(); i++) {
+				Operator operator = iseg.getOperator(i);
+				int operand = iseg.getOperand(i);
+				switch (operator) {
+				case PUSHI:
+					push(i, i + 1);
+					break;
+				case PUSH: {
+					boolean invariant = !written.contains(operand) && !(arrayWritten && variables.isArrayElement(operand));
+					push(invariant ? i : -1, i + 1);
+					break;
+				}
+				case LOAD:
+					pop();
+					push(mayFail && !arrayWritten ? adjacentStart(i) : -1, i + 1);
+					break;
+				case ADD: case SUB: case MUL: case AND: case OR: case COMP:
+					binary(true, i);
+					break;
+				case DIV: case MOD:
+					binary(mayFail, i);
+					break;
+				case CSIGN: case NOT: case INC: case DEC:
+					pop();
+					push(adjacentStart(i), i + 1);
+					break;
+				case COPY:
+					pop();
+					push(stackStart[depth], stackEnd[depth]);
+					push(-1, -1);
+					break;
+				case ASSGN:
+					pop();
+					pop();
+					push(-1, -1);
+					break;
+				case INPUT: case INPUTC:
+					push(-1, -1);
+					break;
+				case OUTPUT: case OUTPUTC:
+					pop();
+					mayFail = false;
+					break;
+				case OUTPUTLN:
+					mayFail = false;
+					break;
+				case POP: case REMOVE:
+				case BLT: case BLE: case BEQ: case BNE: case BGE: case BGT:
+					pop();
+					break;
+				default:
+					break;
+				}
+				if (depth > 0 && stackEnd[depth - 1] == i + 1 && i + 1 - stackStart[depth - 1] >= 2)
+					candidates.add(new int[] {stackStart[depth - 1], i + 1, -1});
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * 二項演算の結果を積む. 両方の被演算子がループ不変で, 続けて積まれていればループ不変とする
+	 * @param allowed この演算を移せるなら true
+	 */
+	private void binary(boolean allowed, int address) {
+		pop();
+		int rightStart = adjacentStart(address);
+		pop();
+		boolean contiguous = stackStart[depth] >= 0 && rightStart >= 0 && stackEnd[depth] == rightStart;
+		push(allowed && contiguous ? stackStart[depth] : -1, address + 1);
+	}
+
+	/**
+	 * 降ろした要素が address 番地の直前までの命令列で積まれていれば, その命令列の先頭の番地を返す. そうでなければ -1
+	 */
+	private int adjacentStart(int address) {
+		return stackEnd[depth] == address ? stackStart[depth] : -1;
+	}
+
+	/**
+	 * 命令列に置き換えることにした命令が含まれるかを判定する
+	 */
+	private static boolean isClaimed(boolean[] claimed, int[] range) {
+		for (int i = range[START]; i < range[END]; i++) {
+			if (claimed[i])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 同じ命令列かを比べるための, 命令列の字面
+	 */
+	private static String textOf(PseudoIseg iseg, int[] range) {
+		StringBuilder text = new StringBuilder();
+		for (int i = range[START]; i < range[END]; i++)
+			text.append(iseg.getOperator(i).ordinal()).append(' ').append(iseg.getOperand(i)).append(';');
+		return text.toString();
+	}
+
+	/**
+	 * プリヘッダと置き換えを命令列に反映し, 分岐命令の飛び先を付け替える
+	 */
+	private void rebuild(PseudoIseg iseg, ControlFlowGraph graph, ArrayList<int[]> rewrites,
+			HashMap<Integer, Preheader> preheaders) {
+		rewrites.sort(BY_RANGE);
+		int length = iseg.getLastCodeAddress() + 1;
+		int[] newAddress = new int[length + 1];
+		int[] entryAddress = new int[length + 1];	//プリヘッダがあればその先頭の番地
+		ArrayList<Integer> jumps = new ArrayList<Integer>();	//元の命令列での分岐命令の番地
+		PseudoIseg code = new PseudoIseg();
+		int r = 0;
+		for (int i = 0; i < length; ) {
+			entryAddress[i] = code.getLastCodeAddress() + 1;
+			Preheader preheader = preheaders.get(i);
+			if (preheader != null) {
+				for (int[] range : preheader.ranges) {
+					for (int k = range[START]; k < range[END]; k++)
+						code.setI(iseg.getOperator(k), iseg.getFlag(k), iseg.getOperand(k));
+					code.appendCode(Operator.POP, range[TEMPORARY]);
+				}
+			}
+			if (r < rewrites.size() && rewrites.get(r)[START] == i) {
+				int[] rewrite = rewrites.get(r++);
+				int addr = code.appendCode(Operator.PUSH, rewrite[TEMPORARY]);
+				for (; i < rewrite[END]; i++)
+					newAddress[i] = addr;
+			} else {
+				newAddress[i] = code.setI(iseg.getOperator(i), iseg.getFlag(i), iseg.getOperand(i));
+				if (iseg.getOperator(i).isJump())
+					jumps.add(i);
+				i++;
+			}
+		}
+		newAddress[length] = code.getLastCodeAddress() + 1;
+
+		for (int i : jumps) {
+			int target = iseg.getOperand(i);
+			if (target < 0 || target > length)
+				continue;
+			Preheader preheader = preheaders.get(target);
+			// ループの外からの分岐はプリヘッダに, ループの中からの分岐はヘッダに飛ぶ
+			boolean entering = preheader != null
+					&& (preheader.beforeJump || !preheader.loop.contains(graph.getBlock(i)));
+			code.replaceCode(newAddress[i], entering ? entryAddress[target] : newAddress[target]);
+		}
+		iseg.removeTail(0);
+		iseg.appendCode(code, 0, code.getLastCodeAddress() + 1, 0);
+	}
+
+	/**
+	 * スタックに積む
+	 * @param start 値を積んだ命令列の先頭の番地 (ループ不変の一続きの命令列でなければ -1)
+	 * @param end 値を積んだ命令列の末尾の次の番地
+	 */
+	private void push(int start, int end) {
+		stackStart[depth] = start;
+		stackEnd[depth] = start >= 0 ? end : -1;
+		depth++;
+	}
+
+	/**
+	 * スタックから降ろす. ブロックに入る前に積まれた値はループ不変でないとみなす.
+	 * 降ろした要素の命令列の範囲は stackStart[depth], stackEnd[depth] に残る
+	 */
+	private void pop() {
+		if (depth == 0)
+			push(-1, -1);
+		depth--;
+	}
+}
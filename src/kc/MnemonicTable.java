@@ -0,0 +1,118 @@
+package kc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 命令の綴り (ニーモニック) の表
+ * Operator の名前から, 衝突の無いハッシュ表 (完全ハッシュ) をクラスの初期化時に一度だけ作る.
+ * 検索は先頭の2文字・末尾文字・長さから求めた一つの位置を調べるだけで済む.
+ * アセンブラファイルをバイト列のまま読む AsmLoader と, 文字列から変換する Instruction の両方が使う.
+ */
+class MnemonicTable {
+	/**
+	 * ハッシュ表の大きさ (2のべき乗)
+	 */
+	private static final int TABLE_SIZE = 128;
+
+	/**
+	 * ハッシュ表本体. 命令の無い位置は null
+	 */
+	private static final Operator[] table = new Operator[TABLE_SIZE];
+
+	/**
+	 * ハッシュ表に格納した命令の綴り
+	 */
+	private static final byte[][] spellings = new byte[TABLE_SIZE][];
+
+	/**
+	 * 先頭文字, 2文字目, 末尾文字に掛ける係数
+	 */
+	private static int firstFactor, secondFactor, lastFactor;
+
+	static {
+		if (!build())
+			throw new IllegalStateException("命令の綴りの完全ハッシュを構成できません");
+	}
+
+	/**
+	 * 係数を順に試し, 全ての命令が異なる位置に入る組を探して表を作る (ERR は登録しない)
+	 * @return 表を作れたらtrue
+	 */
+	private static boolean build() {
+		for (int first = 1; first < TABLE_SIZE; first++) {
+			for (int second = 0; second < TABLE_SIZE; second++) {
+				for (int last = 0; last < TABLE_SIZE; last++) {
+					firstFactor = first;
+					secondFactor = second;
+					lastFactor = last;
+					if (fill())
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 今の係数で表を作る
+	 * @return 衝突が無ければtrue
+	 */
+	private static boolean fill() {
+		Arrays.fill(table, null);
+		Arrays.fill(spellings, null);
+		for (Operator operator : Operator.values()) {
+			if (operator == Operator.ERR)
+				continue;
+			byte[] name = operator.name().getBytes(StandardCharsets.US_ASCII);
+			int index = hash(name[0], name[1], name[name.length - 1], name.length);
+			if (table[index] != null)
+				return false;
+			table[index] = operator;
+			spellings[index] = name;
+		}
+		return true;
+	}
+
+	/**
+	 * 綴りのハッシュ値を求める
+	 */
+	private static int hash(int first, int second, int last, int length) {
+		return (first * firstFactor + second * secondFactor + last * lastFactor + length) & (TABLE_SIZE - 1);
+	}
+
+	/**
+	 * bytes の start 番目から length バイトが命令の綴りであればその Operator を, そうでなければ null を返す
+	 */
+	static Operator lookup(byte[] bytes, int start, int length) {
+		if (length < 2)
+			return null;
+		int index = hash(bytes[start], bytes[start + 1], bytes[start + length - 1], length);
+		byte[] spelling = spellings[index];
+		if (spelling == null || spelling.length != length)
+			return null;
+		for (int i = 0; i < length; i++) {
+			if (spelling[i] != bytes[start + i])
+				return null;
+		}
+		return table[index];
+	}
+
+	/**
+	 * 文字列が命令の綴りであればその Operator を, そうでなければ null を返す
+	 */
+	static Operator lookup(String name) {
+		int length = name.length();
+		if (length < 2)
+			return null;
+		int index = hash(name.charAt(0), name.charAt(1), name.charAt(length - 1), length);
+		byte[] spelling = spellings[index];
+		if (spelling == null || spelling.length != length)
+			return null;
+		for (int i = 0; i < length; i++) {
+			if (spelling[i] != name.charAt(i))
+				return null;
+		}
+		return table[index];
+	}
+}
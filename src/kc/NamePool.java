@@ -0,0 +1,114 @@
+package kc;
+
+import java.util.Arrays;
+
+/**
+ * 変数名の表 (インターンプール)
+ * 一回のコンパイルの中で現れた名前を一つずつ登録し, 同じ綴りの名前には
+ * 常に同じ String と番号 (ID) を返す. これにより名前の比較は参照の比較で済む.
+ */
+class NamePool {
+	/**
+	 * 登録された名前. 添字が名前の ID になる
+	 */
+	private String[] names;
+
+	/**
+	 * 登録された名前のハッシュ値
+	 */
+	private int[] hashes;
+
+	/**
+	 * オープンアドレス法のハッシュ表. 名前の ID + 1 を格納し, 空きは 0
+	 */
+	private int[] slots;
+
+	/**
+	 * 登録された名前の数
+	 */
+	private int count;
+
+	/**
+	 * 空の表を作る
+	 */
+	NamePool() {
+		this.names = new String[64];
+		this.hashes = new int[64];
+		this.slots = new int[128];
+		this.count = 0;
+	}
+
+	/**
+	 * name の先頭 length 文字を登録し, その ID を返す. 既に登録済みなら同じ ID を返す
+	 * @param name 綴りを格納した配列
+	 * @param length 綴りの長さ
+	 */
+	int intern(char[] name, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+			hash = 31 * hash + name[i];
+		int mask = slots.length - 1;
+		int index = (hash ^ (hash >>> 16)) & mask;
+		while (slots[index] != 0) {
+			int id = slots[index] - 1;
+			if (hashes[id] == hash && sameName(names[id], name, length))
+				return id;
+			index = (index + 1) & mask;
+		}
+
+		// 未登録の名前を追加する
+		if (count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2);
+		}
+		int id = count++;
+		names[id] = new String(name, 0, length);
+		hashes[id] = hash;
+		slots[index] = id + 1;
+		if (count * 2 > slots.length)
+			rehash();
+		return id;
+	}
+
+	/**
+	 * ID で指定した名前を返す
+	 * @param id 名前の ID
+	 */
+	String getName(int id) {
+		return names[id];
+	}
+
+	/**
+	 * 登録された名前の数を返す
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * 登録済みの名前 str が name の先頭 length 文字と一致するかを調べる
+	 */
+	private static boolean sameName(String str, char[] name, int length) {
+		if (str.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (str.charAt(i) != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * ハッシュ表を倍の大きさで作り直す
+	 */
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+		for (int id = 0; id < count; id++) {
+			int index = (hashes[id] ^ (hashes[id] >>> 16)) & mask;
+			while (slots[index] != 0)
+				index = (index + 1) & mask;
+			slots[index] = id + 1;
+		}
+	}
+}
@@ -37,5 +37,68 @@ enum Operator {
   OUTPUTC,
   OUTPUTLN,
   LOAD,
-  ERR   // エラー
+  ERR;  // エラー
+
+  /**
+   * オペランドを飛び先とする命令 (JUMP と条件分岐命令) かを返す
+   */
+  boolean isJump() {
+    return this == JUMP || isConditionalBranch();
+  }
+
+  /**
+   * スタックの先頭の値によって分岐する命令 (BLT～BGT) かを返す
+   */
+  boolean isConditionalBranch() {
+    return compareTo(BLT) >= 0 && compareTo(BGT) <= 0;
+  }
+
+  /**
+   * 実行したときにスタックから取り出す値の数を返す (ERR は 0)
+   */
+  int popCount() {
+    switch (this) {
+      case ASSGN: case ADD: case SUB: case MUL: case DIV: case MOD:
+      case AND: case OR: case COMP:
+        return 2;
+      case CSIGN: case NOT: case INC: case DEC: case LOAD: case COPY:
+      case REMOVE: case POP: case OUTPUT: case OUTPUTC:
+      case BLT: case BLE: case BEQ: case BNE: case BGE: case BGT:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * 実行したときにスタックに積む値の数を返す (ERR は 0)
+   */
+  int pushCount() {
+    switch (this) {
+      case COPY:
+        return 2;
+      case ASSGN: case ADD: case SUB: case MUL: case DIV: case MOD:
+      case AND: case OR: case COMP:
+      case CSIGN: case NOT: case INC: case DEC: case LOAD:
+      case PUSH: case PUSHI: case INPUT: case INPUTC:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * 条件分岐命令の条件を反転した命令を返す
+   */
+  Operator invertBranch() {
+    switch (this) {
+      case BEQ: return BNE;
+      case BNE: return BEQ;
+      case BLT: return BGE;
+      case BGE: return BLT;
+      case BGT: return BLE;
+      case BLE: return BGT;
+      default: throw new IllegalArgumentException (name());
+    }
+  }
 }
@@ -0,0 +1,40 @@
+package kc;
+
+/**
+ * 最適化の水準
+ * コマンドラインの -O0, -O1, -O2 に対応する. -O だけなら O1 とする.
+ */
+public enum OptimizationLevel {
+	/** 最適化しない (生成するコードは従来と同じ) */
+	O0,
+	/** 構文解析中の定数の畳み込み, 比較の分岐への融合, 短絡評価, ループの回転と, 覗き穴最適化, 分岐の整理 */
+	O1,
+	/** O1 に加えて, コンパイルに時間のかかる最適化 */
+	O2;
+
+	/**
+	 * コマンドラインの引数を最適化の水準に変換する
+	 * @param option 引数
+	 * @return 対応する水準. 最適化の指定でなければ null
+	 */
+	static OptimizationLevel fromOption(String option) {
+		switch (option) {
+			case "-O":
+			case "-O1":
+				return O1;
+			case "-O0":
+				return O0;
+			case "-O2":
+				return O2;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * この水準が level 以上かを判定する
+	 */
+	boolean atLeast(OptimizationLevel level) {
+		return compareTo(level) >= 0;
+	}
+}
@@ -0,0 +1,19 @@
+package kc;
+
+/**
+ * 生成済みの命令列を書き換える最適化のパス
+ * PassManager に登録して, 決まった順に繰り返しかける.
+ */
+interface Pass {
+	/**
+	 * @return 時間の報告に使うパスの名前
+	 */
+	String getName();
+
+	/**
+	 * 命令列を最適化して書き換える
+	 * @param iseg 命令列
+	 * @return 削除した命令の数 (命令を増やしたなら負). 0 なら他のパスに新しい機会を作っていないものとみなす
+	 */
+	int optimize(PseudoIseg iseg);
+}
@@ -0,0 +1,154 @@
+package kc;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * 最適化のパスを管理するクラス
+ * 登録した順にパスをかけ, どのパスも命令の数を変えなくなるまで繰り返す.
+ * パスごとにかけた回数, かかった時間, 命令数の増減を記録し, report で表にして返す.
+ */
+class PassManager {
+	/**
+	 * 一巡で命令が減り続けても, この回数で打ち切る
+	 */
+	private static final int MAX_ROUNDS = 100;
+
+	/**
+	 * 覗き穴最適化の規則のうち, 定数の畳み込みとして別のパスにするもの
+	 */
+	private static final EnumSet<PeepholeOptimizer.Rule> FOLD_RULES = EnumSet.of(
+			PeepholeOptimizer.Rule.CONSTANT_FOLD, PeepholeOptimizer.Rule.CONSTANT_BRANCH, PeepholeOptimizer.Rule.IDENTITY);
+
+	/**
+	 * 登録したパス
+	 */
+	private ArrayList<Pass> passes = new ArrayList<Pass>();
+
+	/**
+	 * 記録の名前. 構文解析など, パス以外の記録も含む
+	 */
+	private ArrayList<String> names = new ArrayList<String>();
+
+	/**
+	 * 記録ごとの実行回数
+	 */
+	private ArrayList<Integer> runs = new ArrayList<Integer>();
+
+	/**
+	 * 記録ごとの合計時間 (ナノ秒)
+	 */
+	private ArrayList<Long> nanos = new ArrayList<Long>();
+
+	/**
+	 * 記録ごとの命令数の増減の合計
+	 */
+	private ArrayList<Integer> deltas = new ArrayList<Integer>();
+
+	/**
+	 * 最初にパスをかける前と, 最後にかけた後の命令数
+	 */
+	private int initialCount = -1, finalCount = -1;
+
+	/**
+	 * 最適化の水準に応じたパスを登録したものを作る
+	 * @param level 最適化の水準
+	 * @param variables 構文解析に使った変数表. 一時領域を確保するパスが使う
+	 */
+	static PassManager forLevel(OptimizationLevel level, VarTable variables) {
+		PassManager manager = new PassManager();
+		if (level.atLeast(OptimizationLevel.O1)) {
+			manager.add(new PeepholeOptimizer("fold", FOLD_RULES));
+			manager.add(new PeepholeOptimizer("peephole", EnumSet.complementOf(FOLD_RULES)));
+			manager.add(new JumpOptimizer());
+		}
+		if (level.atLeast(OptimizationLevel.O2)) {
+			manager.add(new LoopInvariantMotion(variables));
+			manager.add(new ValueNumbering(variables));
+		}
+		return manager;
+	}
+
+	/**
+	 * パスを末尾に登録する
+	 */
+	void add(Pass pass) {
+		passes.add(pass);
+	}
+
+	/**
+	 * パス以外の処理 (構文解析など) の時間と命令数の増減を記録する.
+	 * 同じ名前の記録があれば合計する
+	 * @param name 記録の名前
+	 * @param time かかった時間 (ナノ秒)
+	 * @param delta 命令数の増減
+	 */
+	void record(String name, long time, int delta) {
+		record(name, 1, time, delta);
+	}
+
+	/**
+	 * 記録を加える
+	 */
+	private void record(String name, int count, long time, int delta) {
+		int index = names.indexOf(name);
+		if (index < 0) {
+			names.add(name);
+			runs.add(count);
+			nanos.add(time);
+			deltas.add(delta);
+		} else {
+			runs.set(index, runs.get(index) + count);
+			nanos.set(index, nanos.get(index) + time);
+			deltas.set(index, deltas.get(index) + delta);
+		}
+	}
+
+	/**
+	 * 登録したパスを順にかけ, 一巡しても命令の数が変わらなくなるまで繰り返す
+	 * @param iseg 命令列
+	 * @return 削除した命令の数
+	 */
+	int run(PseudoIseg iseg) {
+		int before = iseg.getLastCodeAddress() + 1;
+		if (initialCount < 0)
+			initialCount = before;
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			boolean changed = false;
+			for (Pass pass : passes) {
+				int count = iseg.getLastCodeAddress() + 1;
+				long start = System.nanoTime();
+				if (pass.optimize(iseg) != 0)
+					changed = true;
+				long time = System.nanoTime() - start;
+				record(pass.getName(), 1, time, iseg.getLastCodeAddress() + 1 - count);
+			}
+			if (!changed)
+				break;
+		}
+		finalCount = iseg.getLastCodeAddress() + 1;
+		return before - finalCount;
+	}
+
+	/**
+	 * 記録を表にした文字列を返す
+	 */
+	String report() {
+		StringBuilder text = new StringBuilder();
+		String lineSeparator = System.lineSeparator();
+		text.append(String.format(Locale.ROOT, "%-12s %6s %12s %12s", "pass", "runs", "time(ms)", "instructions"))
+				.append(lineSeparator);
+		long total = 0;
+		for (int i = 0; i < names.size(); i++) {
+			text.append(String.format(Locale.ROOT, "%-12s %6d %12.3f %+12d",
+					names.get(i), runs.get(i), nanos.get(i) / 1e6, deltas.get(i))).append(lineSeparator);
+			total += nanos.get(i);
+		}
+		text.append(String.format(Locale.ROOT, "%-12s %6s %12.3f", "total", "", total / 1e6));
+		if (initialCount >= 0)
+			text.append(String.format(Locale.ROOT, " %12s", initialCount + " -> " + finalCount));
+		text.append(lineSeparator);
+		return text.toString();
+	}
+}
@@ -0,0 +1,471 @@
+package kc;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * 生成済みの命令列に対する覗き穴最適化
+ * 連続する数命令の窓を先頭から順にずらし, 規則に一致した命令列を短い命令列に置き換える.
+ * 置き換えが起きなくなるまで繰り返し, 各回の終わりに削除した命令を詰めて飛び先を付け替える.
+ *
+ * 窓が飛び先を含んでよいのは先頭の命令だけとする. 途中に飛び込まれる命令列は置き換えない.
+ * 削除した命令への飛び先は, その後ろで最初に残った命令に付け替える.
+ */
+class PeepholeOptimizer implements Pass {
+	/**
+	 * 置き換え規則
+	 */
+	enum Rule {
+		/** COPY; POP a; REMOVE → POP a */
+		STORE_COPY,
+		/** COPY; INC|DEC; POP a; REMOVE → INC|DEC; POP a */
+		STORE_INCREMENT,
+		/** PUSHI a; LOAD → PUSH a */
+		CONSTANT_LOAD,
+		/** PUSHI a; COPY; LOAD → PUSHI a; PUSH a */
+		CONSTANT_COPY_LOAD,
+		/** PUSHI a; (分岐を含まず値を一つ積む命令列); ASSGN; REMOVE → (同じ命令列); POP a */
+		CONSTANT_STORE,
+		/** PUSHI c1; PUSHI c2; 二項演算 → PUSHI 結果, PUSHI c; 単項演算 → PUSHI 結果 */
+		CONSTANT_FOLD,
+		/** PUSHI c; 条件分岐 → JUMP または削除 */
+		CONSTANT_BRANCH,
+		/** PUSHI 0; ADD|SUB, PUSHI 1; MUL|DIV, CSIGN; CSIGN → 削除 */
+		IDENTITY,
+		/** PUSHI 1; ADD|SUB → INC|DEC */
+		INCREMENT,
+		/** PUSH|PUSHI|COPY; REMOVE → 削除 */
+		DEAD_PUSH,
+		/** 直後の命令への JUMP → 削除 */
+		JUMP_NEXT
+	}
+
+	/**
+	 * CONSTANT_STORE で PUSHI a と ASSGN の間に許す命令数の上限
+	 */
+	private static final int STORE_WINDOW = 32;
+
+	/**
+	 * パスの名前
+	 */
+	private String name;
+
+	/**
+	 * 適用する規則
+	 */
+	private Set<Rule> rules;
+
+	/**
+	 * 最適化中の命令のオペレータ. 削除した命令は null
+	 */
+	private Operator[] operators;
+
+	/**
+	 * 最適化中の命令のオペランド
+	 */
+	private int[] operands;
+
+	/**
+	 * 命令数
+	 */
+	private int length;
+
+	/**
+	 * 飛び先になっている番地の印. 添字 length (命令列の末尾) も含む
+	 */
+	private boolean[] isTarget;
+
+	/**
+	 * すべての規則を適用するコンストラクタ
+	 */
+	PeepholeOptimizer() {
+		this("peephole", EnumSet.allOf(Rule.class));
+	}
+
+	/**
+	 * パスの名前と適用する規則を指定するコンストラクタ
+	 * @param name パスの名前
+	 * @param rules 適用する規則
+	 */
+	PeepholeOptimizer(String name, Set<Rule> rules) {
+		this.name = name;
+		this.rules = EnumSet.noneOf(Rule.class);
+		this.rules.addAll(rules);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 命令列を最適化して書き換える
+	 * @param iseg 命令列
+	 * @return 削除した命令の数
+	 */
+	@Override
+	public int optimize(PseudoIseg iseg) {
+		length = iseg.getLastCodeAddress() + 1;
+		int originalLength = length;
+		operators = new Operator[length];
+		operands = new int[length];
+		for (int i = 0; i < length; i++) {
+			operators[i] = iseg.getOperator(i);
+			operands[i] = iseg.getOperand(i);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			markTargets();
+			changed = false;
+			int i = 0;
+			while (i < length) {
+				int matched = 0;
+				for (Rule rule : rules) {
+					matched = apply(rule, i);
+					if (matched > 0)
+						break;
+				}
+				if (matched > 0) {
+					changed = true;
+					i += matched;
+				} else {
+					i++;
+				}
+			}
+			if (changed)
+				compact();
+		}
+
+		for (int i = 0; i < length; i++)
+			iseg.replaceCode(i, operators[i], operands[i]);
+		iseg.removeTail(length);
+		return originalLength - length;
+	}
+
+	/**
+	 * 飛び先になっている番地に印を付ける
+	 */
+	private void markTargets() {
+		isTarget = new boolean[length + 1];
+		for (int i = 0; i < length; i++) {
+			if (operators[i].isJump() && operands[i] >= 0 && operands[i] <= length)
+				isTarget[operands[i]] = true;
+		}
+	}
+
+	/**
+	 * 番地 i から始まる規則の窓に一致すれば置き換える
+	 * @param rule 規則
+	 * @param i 窓の先頭の番地
+	 * @return 置き換えた窓の命令数. 一致しなければ 0
+	 */
+	private int apply(Rule rule, int i) {
+		switch (rule) {
+		case STORE_COPY:
+			if (match(i, Operator.COPY, Operator.POP, Operator.REMOVE)) {
+				set(i, Operator.POP, operands[i + 1]);
+				delete(i + 1, 2);
+				return 3;
+			}
+			break;
+		case STORE_INCREMENT:
+			if (fits(i, 4) && operators[i] == Operator.COPY
+					&& (operators[i + 1] == Operator.INC || operators[i + 1] == Operator.DEC)
+					&& operators[i + 2] == Operator.POP && operators[i + 3] == Operator.REMOVE) {
+				set(i, operators[i + 1], 0);
+				set(i + 1, Operator.POP, operands[i + 2]);
+				delete(i + 2, 2);
+				return 4;
+			}
+			break;
+		case CONSTANT_LOAD:
+			if (match(i, Operator.PUSHI, Operator.LOAD)) {
+				set(i, Operator.PUSH, operands[i]);
+				delete(i + 1, 1);
+				return 2;
+			}
+			break;
+		case CONSTANT_COPY_LOAD:
+			if (match(i, Operator.PUSHI, Operator.COPY, Operator.LOAD)) {
+				set(i + 1, Operator.PUSH, operands[i]);
+				delete(i + 2, 1);
+				return 3;
+			}
+			break;
+		case CONSTANT_STORE:
+			if (operators[i] == Operator.PUSHI) {
+				int assign = findAssign(i);
+				if (assign > 0) {
+					// 値を計算する命令列を一つ前にずらし, ASSGN; REMOVE を POP a にする
+					int address = operands[i];
+					for (int j = i; j < assign - 1; j++)
+						set(j, operators[j + 1], operands[j + 1]);
+					set(assign - 1, Operator.POP, address);
+					delete(assign, 2);
+					return assign + 2 - i;
+				}
+			}
+			break;
+		case CONSTANT_FOLD:
+			if (fits(i, 3) && operators[i] == Operator.PUSHI && operators[i + 1] == Operator.PUSHI
+					&& isFoldable(operators[i + 2], operands[i + 1])) {
+				set(i, Operator.PUSHI, fold(operators[i + 2], operands[i], operands[i + 1]));
+				delete(i + 1, 2);
+				return 3;
+			}
+			if (fits(i, 2) && operators[i] == Operator.PUSHI && isFoldableUnary(operators[i + 1])) {
+				set(i, Operator.PUSHI, fold(operators[i + 1], operands[i]));
+				delete(i + 1, 1);
+				return 2;
+			}
+			break;
+		case CONSTANT_BRANCH:
+			if (fits(i, 2) && operators[i] == Operator.PUSHI && operators[i + 1].isConditionalBranch()) {
+				if (branches(operators[i + 1], operands[i])) {
+					set(i, Operator.JUMP, operands[i + 1]);
+					delete(i + 1, 1);
+				} else {
+					delete(i, 2);
+				}
+				return 2;
+			}
+			break;
+		case IDENTITY:
+			if (fits(i, 2) && operators[i] == Operator.PUSHI
+					&& (operands[i] == 0 && (operators[i + 1] == Operator.ADD || operators[i + 1] == Operator.SUB)
+					|| operands[i] == 1 && (operators[i + 1] == Operator.MUL || operators[i + 1] == Operator.DIV))
+					|| match(i, Operator.CSIGN, Operator.CSIGN)) {
+				delete(i, 2);
+				return 2;
+			}
+			break;
+		case INCREMENT:
+			if (fits(i, 2) && operators[i] == Operator.PUSHI && operands[i] == 1
+					&& (operators[i + 1] == Operator.ADD || operators[i + 1] == Operator.SUB)) {
+				set(i, operators[i + 1] == Operator.ADD ? Operator.INC : Operator.DEC, 0);
+				delete(i + 1, 1);
+				return 2;
+			}
+			break;
+		case DEAD_PUSH:
+			if (fits(i, 2) && operators[i + 1] == Operator.REMOVE
+					&& (operators[i] == Operator.PUSH || operators[i] == Operator.PUSHI || operators[i] == Operator.COPY)) {
+				delete(i, 2);
+				return 2;
+			}
+			break;
+		case JUMP_NEXT:
+			if (operators[i] == Operator.JUMP && operands[i] == i + 1) {
+				delete(i, 1);
+				return 1;
+			}
+			break;
+		}
+		return 0;
+	}
+
+	/**
+	 * 番地 i の PUSHI が積んだアドレスに, 後続の命令列が積んだ一つの値を代入して捨てる
+	 * ASSGN; REMOVE を探す. 途中に分岐や飛び先がある場合, 途中でアドレスに触れる場合は探さない
+	 * @return ASSGN の番地. 見つからなければ -1
+	 */
+	private int findAssign(int i) {
+		int depth = 0;	// PUSHI a の上に積まれている値の数
+		for (int j = i + 1; j < length - 1 && j <= i + STORE_WINDOW; j++) {
+			if (isTarget[j] || operators[j].isJump())
+				return -1;
+			if (operators[j] == Operator.ASSGN && depth == 1)
+				return !isTarget[j + 1] && operators[j + 1] == Operator.REMOVE ? j : -1;
+			int[] effect = stackEffect(operators[j]);
+			if (effect == null || depth < effect[0])
+				return -1;
+			depth += effect[1];
+		}
+		return -1;
+	}
+
+	/**
+	 * 命令が取り出す値の数と, 実行後のスタックの深さの増減を返す. 扱わない命令なら null
+	 */
+	private static int[] stackEffect(Operator operator) {
+		switch (operator) {
+		case PUSH:
+		case PUSHI:
+		case INPUT:
+		case INPUTC:
+			return new int[] {0, 1};
+		case COPY:
+			return new int[] {1, 1};
+		case LOAD:
+		case CSIGN:
+		case NOT:
+		case INC:
+		case DEC:
+			return new int[] {1, 0};
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case AND:
+		case OR:
+		case COMP:
+		case ASSGN:
+			return new int[] {2, -1};
+		case POP:
+		case REMOVE:
+		case OUTPUT:
+		case OUTPUTC:
+			return new int[] {1, -1};
+		case OUTPUTLN:
+		case NOP:
+			return new int[] {0, 0};
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * 番地 i から count 命令の窓を置き換えられるか (命令列に収まり, 途中に飛び先が無いか) を返す
+	 */
+	private boolean fits(int i, int count) {
+		if (i + count > length)
+			return false;
+		for (int j = i + 1; j < i + count; j++) {
+			if (isTarget[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 番地 i からの窓のオペレータが pattern と一致するかを返す
+	 */
+	private boolean match(int i, Operator... pattern) {
+		if (!fits(i, pattern.length))
+			return false;
+		for (int j = 0; j < pattern.length; j++) {
+			if (operators[i + j] != pattern[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 番地 i の命令を書き換える
+	 */
+	private void set(int i, Operator operator, int operand) {
+		operators[i] = operator;
+		operands[i] = operand;
+	}
+
+	/**
+	 * 番地 i から count 命令を削除済みにする
+	 */
+	private void delete(int i, int count) {
+		for (int j = i; j < i + count; j++)
+			operators[j] = null;
+	}
+
+	/**
+	 * 二つの定数に対する演算 operator を畳み込めるかを返す. 0 による除算は畳み込まない
+	 */
+	private static boolean isFoldable(Operator operator, int right) {
+		switch (operator) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case AND:
+		case OR:
+			return true;
+		case DIV:
+		case MOD:
+			return right != 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 一つの定数に対する演算 operator を畳み込めるかを返す
+	 */
+	private static boolean isFoldableUnary(Operator operator) {
+		return operator == Operator.CSIGN || operator == Operator.NOT
+				|| operator == Operator.INC || operator == Operator.DEC;
+	}
+
+	/**
+	 * 二つの定数に対する演算の結果を返す
+	 */
+	static int fold(Operator operator, int left, int right) {
+		switch (operator) {
+		case ADD: return left + right;
+		case SUB: return left - right;
+		case MUL: return left * right;
+		case DIV: return left / right;
+		case MOD: return left % right;
+		case AND: return left != 0 && right != 0 ? 1 : 0;
+		case OR: return left != 0 || right != 0 ? 1 : 0;
+		default: throw new IllegalArgumentException(operator.name());
+		}
+	}
+
+	/**
+	 * 一つの定数に対する演算の結果を返す
+	 */
+	static int fold(Operator operator, int value) {
+		switch (operator) {
+		case CSIGN: return -value;
+		case NOT: return value == 0 ? 1 : 0;
+		case INC: return value + 1;
+		case DEC: return value - 1;
+		default: throw new IllegalArgumentException(operator.name());
+		}
+	}
+
+	/**
+	 * スタックの先頭が value のとき条件分岐命令 branch が分岐するかを返す
+	 */
+	static boolean branches(Operator branch, int value) {
+		switch (branch) {
+		case BLT: return value < 0;
+		case BLE: return value <= 0;
+		case BEQ: return value == 0;
+		case BNE: return value != 0;
+		case BGE: return value >= 0;
+		case BGT: return value > 0;
+		default: throw new IllegalArgumentException(branch.name());
+		}
+	}
+
+	/**
+	 * 削除済みの命令を詰め, 飛び先を付け替える
+	 */
+	private void compact() {
+		// 旧番地から新番地への対応表. 削除した命令は後ろで最初に残った命令に対応させる
+		int[] newAddress = new int[length + 1];
+		int next = 0;
+		for (int i = 0; i < length; i++) {
+			if (operators[i] != null)
+				next++;
+		}
+		newAddress[length] = next;
+		for (int i = length - 1; i >= 0; i--) {
+			if (operators[i] != null)
+				next--;
+			newAddress[i] = next;
+		}
+
+		int j = 0;
+		for (int i = 0; i < length; i++) {
+			if (operators[i] == null)
+				continue;
+			int operand = operands[i];
+			if (operators[i].isJump() && operand >= 0 && operand <= length)
+				operand = newAddress[operand];
+			set(j++, operators[i], operand);
+		}
+		length = j;
+	}
+}
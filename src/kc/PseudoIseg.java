@@ -1,20 +1,31 @@
 package kc;
 
 import java.io.*;   // ファイル入出力用
-import java.util.*; // ArrayList用
+import java.util.*; // Arrays用
 
 /**
- * 各命令(Instractions.class のインスタンス) を格納するテーブルをArrayListで作る．
+ * 各命令を格納するテーブルを int 配列で作る．
  * ここで作った命令列をファイルに出力し,  VSM の Iseg に改めて格納するので, 
  * PseudoIseg(仮のIseg) と名付けた．
- * ArrayListによる命令表と, 命令表を操作するいくつかのメソッドを定義している.
+ * 一命令は配列の連続する2要素 (オペレータとアドレス修飾子を詰めた値, オペランド) に格納するので,
+ * オペレータやオペランドの書き換えは配列要素の上書きで済む．
+ * Instruction オブジェクトは getInstruction などで必要になったときにだけ作る.
  */
 class PseudoIseg {
-    ArrayList<Instruction> pIseg; //表本体
+    /** 一命令が占める配列要素の数 */
+    private static final int SLOT = 2;
+    /** オペレータを詰める下位ビットの幅 */
+    private static final int OP_BITS = 8;
+    /** オペレータを取り出すマスク */
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+    /** 序数から Operator を引く表 */
+    private static final Operator[] OPERATORS = Operator.values();
+
+    int[] pIseg; //表本体. 2i 番目が i 番地の (アドレス修飾子 << OP_BITS | オペレータ), 2i+1 番目がオペランド
     int pIsegPtr; //命令数カウンタ
 
     PseudoIseg() {
-        pIseg = new ArrayList<Instruction>(); //表本体を作成
+        pIseg = new int[SLOT * 64]; //表本体を作成
         pIsegPtr = 0;         //命令カウンタは 0        
     }
     
@@ -28,12 +39,14 @@ class PseudoIseg {
      * @return 追加した命令の表内での位置
      */
     int setI (Operator opCode, int flag, int addr) {
-         /* オペレータ opCode, アドレス修飾値 flag, オペランド addr
-         から, 一命令を作る．*/
-         Instruction inst = new Instruction(opCode,flag,addr);
+         //表が一杯なら倍の大きさにする．
+         if (SLOT * (pIsegPtr + 1) > pIseg.length)
+             pIseg = Arrays.copyOf(pIseg, pIseg.length * 2);
 
-         //作った命令を表に追加し, カウンタをインクレメントする．
-         pIseg.add(inst);
+         /* オペレータ opCode, アドレス修飾値 flag, オペランド addr
+         を表に格納し, カウンタをインクレメントする．*/
+         pIseg[SLOT * pIsegPtr] = flag << OP_BITS | opCode.ordinal();
+         pIseg[SLOT * pIsegPtr + 1] = addr;
          ++pIsegPtr; 
 
          //返り値は, 追加した命令の表内での位置．
@@ -59,6 +72,29 @@ class PseudoIseg {
         return setI(opCode, 0, 0);
     }
 
+    /**
+     * 別の表 code の from 番地から to 番地の手前までの命令を, 表の末尾に追加するメソッド．
+     * code の 0 番地を origin 番地とみなし, 飛び先が origin+from 番地から origin+to 番地まで
+     * (範囲の直後を含む) にある命令は, 追加した位置に合わせて飛び先をずらす．
+     * @param code 追加する命令の表
+     * @param from 追加する先頭の命令の code 内の位置
+     * @param to 追加する最後の命令の次の code 内の位置
+     * @param origin code の 0 番地に対応する番地
+     * @return 追加した先頭の命令の表内での位置
+     */
+    int appendCode(PseudoIseg code, int from, int to, int origin) {
+        int start = pIsegPtr;
+        int shift = start - (origin + from);
+        for (int i = from; i < to; i++) {
+            Operator opCode = code.getOperator(i);
+            int addr = code.getOperand(i);
+            if (opCode.isJump() && addr >= origin + from && addr <= origin + to)
+                addr += shift;
+            setI(opCode, code.pIseg[SLOT * i] >>> OP_BITS, addr);
+        }
+        return start;
+    }
+
     /**
      * @return 表内に格納された最後の命令の位置
      */
@@ -72,48 +108,33 @@ class PseudoIseg {
     void dump() {
         for (int i = 0; i < pIsegPtr; i++) {
             System.out.print(i + ": ");
-            System.out.println(pIseg.get(i).printInstruction());
+            System.out.println(getInstruction(i).printInstruction());
         }
     }
 
     /** 
      * 表内の全ての命令をファイルに出力するメソッド．
      * 引数なしで呼ばれた場合,ファイル名は "OpCode.asm" になる．
+     * @throws IOException ファイルに書き出せないとき
      */
-    void dump2file() {
-        PrintWriter outputFile = null;
-        try {
-            outputFile = new PrintWriter(
-                             new BufferedWriter(
-                                 new FileWriter("OpCode.asm")));
-            for (int i = 0; i < pIsegPtr; i++)
-                outputFile.println((pIseg.get(i)).printInstruction());
-       } catch(IOException exception) {
-           System.out.println(exception);
-       } finally {
-            outputFile.close();
-            System.exit(1);
-       }
+    void dump2file() throws IOException {
+        dump2file("OpCode.asm");
     }
 
     /**
      * 表内の全ての命令をファイルに出力するメソッド．
      * 引数ありで呼ばれた場合,ファイル名は その引数 になる．
      * @param outputFileName 出力ファイル名
+     * @throws IOException ファイルに書き出せないとき
      */
-    void dump2file (String outputFileName) {
-        PrintWriter outputFile = null;
-        try {
-            outputFile = new PrintWriter(
-                             new BufferedWriter(
-                                 new FileWriter(outputFileName)));
+    void dump2file (String outputFileName) throws IOException {
+        try (PrintWriter outputFile = new PrintWriter(
+                                          new BufferedWriter(
+                                              new FileWriter(outputFileName)))) {
             for (int i = 0; i < pIsegPtr; i++)
-                outputFile.println((pIseg.get(i)).printInstruction());
-        } catch(IOException exception) {
-            System.out.println(exception);
-        } finally {
-            outputFile.close();
-            System.exit(1);
+                outputFile.println(getInstruction(i).printInstruction());
+            if (outputFile.checkError())    // PrintWriter は書き込みの失敗を例外にしない
+                throw new IOException(outputFileName + ": 書き込めません");
         }
     }
 
@@ -123,11 +144,8 @@ class PseudoIseg {
      * @param opCode オペレータ
      */
     void replaceCode (int ptr, Operator opCode) {
-        int oldReg = (pIseg.get(ptr)).getReg();
-        int oldAddr = (pIseg.get(ptr)).getAddr();
-        Instruction inst = new Instruction (opCode, oldReg, oldAddr);
-        pIseg.remove (ptr);
-        pIseg.add (ptr,inst);
+        checkAddress (ptr);
+        pIseg[SLOT * ptr] = pIseg[SLOT * ptr] & ~OP_MASK | opCode.ordinal();
     }
 
     /**
@@ -136,20 +154,29 @@ class PseudoIseg {
      * @param addrs オペランド
      */
     void replaceCode (int ptr, int addrs) {
-        int oldReg = pIseg.get(ptr).getReg();
-        Operator oldOp = pIseg.get(ptr).getOperator();
-        Instruction inst = new Instruction (oldOp, oldReg, addrs);
-        pIseg.remove (ptr);
-        pIseg.add (ptr, inst);
+        checkAddress (ptr);
+        pIseg[SLOT * ptr + 1] = addrs;
     }
     
+    /**
+     * ptr 番目の命令の オペレータ と オペランド を変更するメソッド
+     * @param ptr 変更する位置
+     * @param opCode オペレータ
+     * @param addrs オペランド
+     */
+    void replaceCode (int ptr, Operator opCode, int addrs) {
+        replaceCode (ptr, opCode);
+        replaceCode (ptr, addrs);
+    }
+
     /**
      * ISeg の指定した番地の命令を返す
      * @param ptr 返す命令の位置
      * @return 指定した番地の命令
      */
     Instruction getInstruction (int ptr) {
-       return pIseg.get (ptr);
+       checkAddress (ptr);
+       return new Instruction (getOperator (ptr), pIseg[SLOT * ptr] >>> OP_BITS, pIseg[SLOT * ptr + 1]);
     }
 
     /**
@@ -157,7 +184,8 @@ class PseudoIseg {
      * @param ptr 返すオペレータの位置
      */
     Operator getOperator (int ptr) {
-        return pIseg.get(ptr).getOperator();
+        checkAddress (ptr);
+        return OPERATORS[pIseg[SLOT * ptr] & OP_MASK];
     }
 
     /**
@@ -165,7 +193,17 @@ class PseudoIseg {
      * @param ptr 返すオペランドの位置
      */
     int getOperand (int ptr) {
-        return pIseg.get(ptr).getAddr();
+        checkAddress (ptr);
+        return pIseg[SLOT * ptr + 1];
+    }
+
+    /**
+     * ISeg の指定した番地のアドレス修飾子を返す
+     * @param ptr 返すアドレス修飾子の位置
+     */
+    int getFlag (int ptr) {
+        checkAddress (ptr);
+        return pIseg[SLOT * ptr] >>> OP_BITS;
     }
 
     /**
@@ -173,15 +211,74 @@ class PseudoIseg {
      * @param ptr 削除する位置
      */
     void removeCode (int ptr) {
-       pIseg.remove (ptr); 
+       checkAddress (ptr);
+       System.arraycopy (pIseg, SLOT * (ptr + 1), pIseg, SLOT * ptr, SLOT * (pIsegPtr - ptr - 1));
        --pIsegPtr;           // 命令カウンタを1減らす
     }
 
+    /**
+     * ISeg の指定した番地から末尾までの命令を削除する
+     * @param ptr 削除する先頭の位置
+     */
+    void removeTail (int ptr) {
+        if (ptr < 0 || ptr > pIsegPtr)
+            throw new IndexOutOfBoundsException ("Index " + ptr + " out of bounds for length " + pIsegPtr);
+        pIsegPtr = ptr;
+    }
+
+    /**
+     * 印を付けた命令を取り除いて詰め, 残った命令の飛び先を付け替えるメソッド．
+     * 取り除いた命令への飛び先は, その後ろで最初に残った命令に付け替える．
+     * @param removed 取り除く命令の番地に true を入れた配列
+     * @return 取り除いた命令の数
+     */
+    int removeCodes (boolean[] removed) {
+        // 旧番地から新番地への対応表 (末尾の次の番地も含む)
+        int[] newAddress = new int[pIsegPtr + 1];
+        int next = 0;
+        for (int i = 0; i < pIsegPtr; i++) {
+            newAddress[i] = next;
+            if (!removed[i])
+                next++;
+        }
+        newAddress[pIsegPtr] = next;
+
+        int j = 0;
+        for (int i = 0; i < pIsegPtr; i++) {
+            if (removed[i])
+                continue;
+            int addr = pIseg[SLOT * i + 1];
+            if (getOperator (i).isJump() && addr >= 0 && addr <= pIsegPtr)
+                addr = newAddress[addr];
+            pIseg[SLOT * j] = pIseg[SLOT * i];
+            pIseg[SLOT * j + 1] = addr;
+            j++;
+        }
+        int count = pIsegPtr - j;
+        pIsegPtr = j;
+        return count;
+    }
+
+    /**
+     * ISeg の指定した番地から末尾までの命令を取り除き, 新しい表として返す．
+     * 取り除いた命令は新しい表の 0 番地から並ぶが, 飛び先は元の番地のままにする
+     * (appendCode で追加するときに origin として ptr を渡す)
+     * @param ptr 取り除く先頭の位置
+     * @return 取り除いた命令の表
+     */
+    PseudoIseg cutTail (int ptr) {
+        PseudoIseg tail = new PseudoIseg();
+        for (int i = ptr; i < pIsegPtr; i++)
+            tail.setI (getOperator (i), pIseg[SLOT * i] >>> OP_BITS, pIseg[SLOT * i + 1]);
+        removeTail (ptr);
+        return tail;
+    }
+
     /**
      * ISeg の末尾の番地の命令を削除する
      */
     void removeLastCode() {
-        pIseg.remove (pIsegPtr-1);
+        checkAddress (pIsegPtr-1);
         --pIsegPtr;           // 命令カウンタを1減らす
     }
 
@@ -192,7 +289,7 @@ class PseudoIseg {
      * @return 命令が一致すればtrueを返す
      */
     boolean checkOperator (int ptr, Operator opCode) {
-        return pIseg.get(ptr).equals (opCode);
+        return getOperator (ptr) == opCode;
     }
 
     /**
@@ -202,6 +299,15 @@ class PseudoIseg {
      * @return 命令が一致すればtrueを返す
      */
     boolean checkOperator (int ptr, String op) {
-        return pIseg.get(ptr).equals (op);
-    }    
+        return getInstruction (ptr).equals (op);
+    }
+
+    /**
+     * 番地が表内に格納された命令の範囲にあるかを確かめ, 範囲外なら例外を投げる
+     * @param ptr 番地
+     */
+    private void checkAddress (int ptr) {
+        if (ptr < 0 || ptr >= pIsegPtr)
+            throw new IndexOutOfBoundsException ("Index " + ptr + " out of bounds for length " + pIsegPtr);
+    }
 }
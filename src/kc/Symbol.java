@@ -1,61 +1,95 @@
 package kc;
 enum Symbol {
     NULL,									//
-    MAIN,       /* main */					//
-    IF,         /* if */					//
-    WHILE,      /* while */					//
-	FOR,        /* for */					//
-    INPUTINT,   /* inputint */				//
-    INPUTCHAR,  /* inputchar */				//
-    OUTPUTINT,  /* outputint */				//
-    OUTPUTCHAR, /* outputchar */			//
+    MAIN("main"),             /* main */        //
+    IF("if"),                 /* if */          //
+    WHILE("while"),           /* while */       //
+    FOR("for"),               /* for */         //
+    INPUTINT("inputint"),     /* inputint */    //
+    INPUTCHAR("inputchar"),   /* inputchar */   //
+    OUTPUTINT("outputint"),   /* outputint */   //
+    OUTPUTCHAR("outputchar"), /* outputchar */  //
     OUTPUTSTR,  /* outputstr(拡張用) */
     SETSTR,     /* setstr   (拡張用) */
     ELSE,       /* else     (拡張用) */
     DO,         /* do       (拡張用) */
     SWITCH,     /* switch   (拡張用) */
     CASE,       /* case     (拡張用) */
-    BREAK,      /* break */					//
+    BREAK("break"),           /* break */       //
     CONTINUE,   /* continue (拡張用) */
-    INT,        /* int */					//
+    INT("int"),               /* int */         //
     CHAR,       /* char     (拡張用) */
     BOOLEAN,    /* boolean  (拡張用) */
     TRUE,       /* true     (拡張用) */
     FALSE,      /* false    (拡張用) */
-    EQUAL,      /* == */					//
-    NOTEQ,      /* != */					//
-    LESS,       /* < */						//
-    GREAT,      /* > */						//
+    EQUAL("=="),              /* == */          //
+    NOTEQ("!="),              /* != */          //
+    LESS("<"),                /* < */           //
+    GREAT(">"),               /* > */           //
     LESSEQ,     /* <=       (拡張用) */
     GREATEQ,    /* >=       (拡張用) */
-    AND,        /* && */					//
-    OR,         /* || */					//
-    NOT,        /* ! */						//
-    ADD,        /* + */						//
-    SUB,        /* - */						//
-    MUL,        /* * */						//
-    DIV,        /* / */						//
-    MOD,        /* % */						//
-    ASSIGN,     /* = */						//
-    ASSIGNADD,  /* += */					//
-    ASSIGNSUB,  /* -= */					//
-    ASSIGNMUL,  /* *= */					//
-    ASSIGNDIV,  /* /= */					//
+    AND("&&"),                /* && */          //
+    OR("||"),                 /* || */          //
+    NOT("!"),                 /* ! */           //
+    ADD("+"),                 /* + */           //
+    SUB("-"),                 /* - */           //
+    MUL("*"),                 /* * */           //
+    DIV("/"),                 /* / */           //
+    MOD("%"),                 /* % */           //
+    ASSIGN("="),              /* = */           //
+    ASSIGNADD("+="),          /* += */          //
+    ASSIGNSUB("-="),          /* -= */          //
+    ASSIGNMUL("*="),          /* *= */          //
+    ASSIGNDIV("/="),          /* /= */          //
     ASSIGNMOD,  /* %=       (拡張用) */
-    INC,        /* ++ */					//
-    DEC,        /* -- */					//
-    SEMICOLON,  /* ; */						//
-    LPAREN,     /* ( */						//
-    RPAREN,     /* ) */						//
-    LBRACE,     /* { */						//
-    RBRACE,     /* } */						//
-    LBRACKET,   /* [ */						//
-    RBRACKET,   /* ] */						//
-    COMMA,      /* , */						//
+    INC("++"),                /* ++ */          //
+    DEC("--"),                /* -- */          //
+    SEMICOLON(";"),           /* ; */           //
+    LPAREN("("),              /* ( */           //
+    RPAREN(")"),              /* ) */           //
+    LBRACE("{"),              /* { */           //
+    RBRACE("}"),              /* } */           //
+    LBRACKET("["),            /* [ */           //
+    RBRACKET("]"),            /* ] */           //
+    COMMA(","),               /* , */           //
     INTEGER,    /* 整数 */					//
     CHARACTER,  /* 文字 */
     NAME,       /* 変数名 */					//
     STRING,     /* 文字列   (拡張用) */
     ERR,        /* エラー */
-    EOF         /* end of file */			//
+    EOF;        /* end of file */			//
+
+    /**
+     * 予約語・記号の綴り. 整数や名前など綴りが決まっていない記号, および拡張用の記号では null
+     */
+    private final String spelling;
+
+    /**
+     * 綴りを持たない記号を表すコンストラクタ
+     */
+    Symbol() {
+        this.spelling = null;
+    }
+
+    /**
+     * 予約語・記号を表すコンストラクタ
+     * @param spelling 予約語・記号の綴り
+     */
+    Symbol(String spelling) {
+        this.spelling = spelling;
+    }
+
+    /**
+     * 予約語・記号の綴りを返す. 綴りを持たなければ null を返す
+     */
+    String getSpelling() {
+        return spelling;
+    }
+
+    /**
+     * 予約語であれば true を返す
+     */
+    boolean isKeyword() {
+        return spelling != null && Character.isLetter(spelling.charAt(0));
+    }
 }
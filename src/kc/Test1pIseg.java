@@ -1,11 +1,13 @@
 package kc;
 
+import java.io.IOException;
+
 /** 一つの命令はInstruction クラスのインスタンスに格納され, そのインスタンスが
 命令表(PseudoIseg クラスのインスタンス) に格納される．
 このプログラムでは, 命令を作って表に格納したり, 命令のオペレータやオペランドを
 書き換えたり, 全命令を表示したり, ファイルに出力する方法を例示する*/
 public class Test1pIseg {
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		PseudoIseg iseg = new PseudoIseg(); //命令を格納するiseg を作る
        /* PseudoIseg のメソッドappendCode を用いて、iseg に各命令を格納していく．
 		  appendCode の返り値はint だが, 例示には必要ないのでとりあえず返り値は
@@ -14,6 +14,7 @@ class Token {
 	/**
 	 * トークンの種別が整数 (INTEGER) または文字 (CHARACTER) であるとき，
 	 * その整数値あるいは文字コードを保持する.
+	 * 名前 (NAME) であるときは，その名前のIDを保持する.
 	 */
 	private int intValue;
 
@@ -54,6 +55,16 @@ class Token {
     	this.strValue = strValue;
     }
 
+    /**
+     * 名前のトークンを生成するための，
+     * トークンの種別と名前のID，文字列を引数とするコンストラクタ
+     */
+    Token(Symbol symbol, int intValue, String strValue) {
+    	this.symbol = symbol;
+    	this.intValue = intValue;
+    	this.strValue = strValue;
+    }
+
     /**
      * symbolフィールドが，引数symbolTypeとトークン種別と一致するかどうかを調べる
      */
@@ -0,0 +1,123 @@
+package kc;
+
+import java.util.Arrays;
+
+/**
+ * 字句解析器が切り出したトークンを, Token を生成せずに格納する表
+ * トークンの種別・値・ソース中の位置をそれぞれ int 配列に並べて保持し,
+ * 構文解析器は添字 (カーソル) でトークンを参照する.
+ * トークンは参照された時点で必要な分だけ字句解析器から読み出す.
+ */
+class TokenBuffer {
+	/**
+	 * Symbol の ordinal から Symbol への変換表
+	 */
+	private static final Symbol[] SYMBOLS = Symbol.values();
+
+	/**
+	 * トークンを切り出す字句解析器
+	 */
+	private LexicalAnalyzer lexer;
+
+	/**
+	 * トークンの種別 (Symbol の ordinal)
+	 */
+	private int[] symbols;
+
+	/**
+	 * トークンの整数値, 文字コード, または名前のID
+	 */
+	private int[] values;
+
+	/**
+	 * トークンを切り出した直後の, ソースプログラム中での先読み位置
+	 */
+	private int[] offsets;
+
+	/**
+	 * 読み出し済みのトークン数
+	 */
+	private int count;
+
+	/**
+	 * 字句解析器を引数とするコンストラクタ
+	 */
+	TokenBuffer(LexicalAnalyzer lexer) {
+		this.lexer = lexer;
+		this.symbols = new int[256];
+		this.values = new int[256];
+		this.offsets = new int[256];
+		this.count = 0;
+	}
+
+	/**
+	 * index 番目までのトークンを読み出す.
+	 * EOF より後を参照された場合は EOF を繰り返し格納する.
+	 */
+	private void fill(int index) {
+		while (count <= index) {
+			if (count == symbols.length) {
+				symbols = Arrays.copyOf(symbols, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			Symbol symbol = lexer.scan();
+			symbols[count] = symbol.ordinal();
+			values[count] = lexer.getTokenValue();
+			offsets[count] = lexer.getPosition();
+			count++;
+		}
+	}
+
+	/**
+	 * index 番目のトークンの種別を返す
+	 */
+	Symbol getSymbol(int index) {
+		if (index >= count)
+			fill(index);
+		return SYMBOLS[symbols[index]];
+	}
+
+	/**
+	 * index 番目のトークンの種別が symbol と一致するかを調べる
+	 */
+	boolean checkSymbol(int index, Symbol symbol) {
+		if (index >= count)
+			fill(index);
+		return symbols[index] == symbol.ordinal();
+	}
+
+	/**
+	 * index 番目のトークンの整数値あるいは文字コードを返す
+	 */
+	int getIntValue(int index) {
+		if (index >= count)
+			fill(index);
+		return values[index];
+	}
+
+	/**
+	 * index 番目のトークン (名前) の文字列を返す
+	 */
+	String getStrValue(int index) {
+		if (index >= count)
+			fill(index);
+		return lexer.getName(values[index]);
+	}
+
+	/**
+	 * index 番目のトークンを切り出した時点の位置と message から構文解析時のエラーを作る
+	 */
+	Diagnostic diagnose(int index, String message) {
+		if (index >= count)
+			fill(index);
+		return lexer.diagnose(offsets[index], message);
+	}
+
+	/**
+	 * 読んでいるファイルを閉じる
+	 */
+	void closeFile() {
+		lexer.closeFile();
+	}
+}
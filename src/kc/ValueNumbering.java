@@ -0,0 +1,559 @@
+package kc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * 基本ブロック内の局所的な値番号付けによる共通部分式の削除
+ * ブロックの命令を先頭からスタックを模して実行し, 積まれる値に番号を付ける.
+ * 同じ演算を同じ番号の値にかけた結果には同じ番号を付けるので, 同じ値を再び計算する命令列が分かる.
+ *
+ * 副作用の無い命令だけからなり値を一つ積む命令列 (例えば配列の要素のアドレスを求める PUSHI; PUSH; DEC; ADD) が,
+ * 既に計算した値を再び計算していれば, 次のどちらかに置き換える.
+ * <ul>
+ * <li>その値をまだ保持している変数があれば, その変数の PUSH</li>
+ * <li>そうでなければ, 最初に計算した直後に COPY; POP t で一時領域 t に保存しておき, PUSH t.
+ * 保存に2命令かかるので, 置き換えで減る命令の数がそれを上回る値だけにする</li>
+ * </ul>
+ * 置き換える命令列が入れ子になっていれば外側を置き換える.
+ * 先行ブロックが直前のブロックだけであるブロック (条件分岐の分岐しない側など) は, 直前のブロックの続きとして扱う.
+ * 一時領域は VarTable が変数と重ならない Dseg のアドレスに確保し, このように続くブロックの並びの中だけで使う.
+ *
+ * POP と定数アドレスへの ASSGN はそのアドレスの値だけを書き換える.
+ * 配列の添字は範囲内にあると仮定し (一時領域は VarTable.reserveTemporary が変数から一語離して置く), アドレスを計算して書き込む ASSGN は配列の要素だけを書き換えるものとみなす
+ * (配列の要素から読んだ値はすべて無効にし, 変数の値は無効にしない).
+ */
+class ValueNumbering implements Pass {
+	/**
+	 * 値の番号の上限. 演算の鍵を long に詰めるために使う
+	 */
+	private static final int MAX_VALUES = 1 << 28;
+
+	/**
+	 * 値を一時領域に保存する命令の数
+	 */
+	private static final int SAVE_COST = 2;
+
+	/**
+	 * 置き換える命令列を選び直す回数の上限
+	 */
+	private static final int MAX_SELECTIONS = 16;
+
+	/* 置き換えの候補 (int 配列) の各要素の位置 */
+	/** 命令列の先頭の番地 */
+	private static final int START = 0;
+	/** 命令列の末尾の次の番地 */
+	private static final int END = 1;
+	/** 値の番号 */
+	private static final int VALUE = 2;
+	/** 値を持つアドレス (一時領域に保存する値なら, 割り当てるまで -1) */
+	private static final int HOLDER = 3;
+	/** 並びの中でのブロックの番号 */
+	private static final int BLOCK = 4;
+	/** 一時領域に保存する位置 (この番地の命令の前) */
+	private static final int SITE = 5;
+	/** 候補から除いたら 1 */
+	private static final int REMOVED = 6;
+
+	/**
+	 * 候補を先頭の番地の順に, 先頭が同じなら外側を先に並べる
+	 */
+	private static final Comparator<int[]> BY_RANGE = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] a, int[] b) {
+			return a[START] != b[START] ? Integer.compare(a[START], b[START]) : Integer.compare(b[END], a[END]);
+		}
+	};
+
+	/**
+	 * 変数表. 一時領域の確保と, 配列の要素のアドレスの判定に使う
+	 */
+	private VarTable variables;
+
+	/**
+	 * これまでに確保した一時領域
+	 */
+	private ArrayList<Integer> temporaries = new ArrayList<Integer>();
+
+	/* 以下は続くブロックの並びごとに初期化する作業領域 */
+
+	/** 演算の鍵から値の番号への表 */
+	private HashMap<Long, Integer> values = new HashMap<Long, Integer>();
+	/** 定数の値の番号から定数への表 */
+	private HashMap<Integer, Integer> constants = new HashMap<Integer, Integer>();
+	/** Dseg のアドレスから, そこにある値の番号への表 */
+	private HashMap<Integer, Integer> cells = new HashMap<Integer, Integer>();
+	/** 配列の要素のアドレスについて, 値を記録したときの memoryEpoch */
+	private HashMap<Integer, Integer> cellEpochs = new HashMap<Integer, Integer>();
+	/** 値の番号から, 最後にその値を書き込んだアドレスへの表 */
+	private HashMap<Integer, Integer> holders = new HashMap<Integer, Integer>();
+	/** 値の番号ごとの, その値を最初に計算した命令列の末尾の次の番地 (無ければ -1) */
+	private int[] firstEnd;
+	/** 値の番号ごとの, その値を最初に計算したブロックの並びの中での番号 */
+	private int[] firstBlock;
+	/** 付けた値の番号の数 */
+	private int valueCount;
+	/** 配列の要素を書き換えうる命令を実行するたびに増やす番号 */
+	private int memoryEpoch;
+	/** 並びの中で今のブロックの番号 */
+	private int blockNumber;
+
+	/** 模したスタックの各要素の値の番号 */
+	private int[] stackValue;
+	/** 模したスタックの各要素を積んだ命令列の先頭と末尾の次の番地. 副作用の無い一続きの命令列で積んだのでなければ -1 */
+	private int[] stackStart, stackEnd;
+	/** 模したスタックの要素数 */
+	private int depth;
+
+	/**
+	 * 変数表を引数とするコンストラクタ
+	 */
+	ValueNumbering(VarTable variables) {
+		this.variables = variables;
+	}
+
+	@Override
+	public String getName() {
+		return "cse";
+	}
+
+	/**
+	 * 命令列を最適化して書き換える
+	 * @param iseg 命令列
+	 * @return 削除した命令の数
+	 */
+	@Override
+	public int optimize(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		firstEnd = new int[3 * length + 3];	//一命令で付ける番号は高々3つ
+		firstBlock = new int[firstEnd.length];
+		stackValue = new int[length + 2];
+		stackStart = new int[length + 2];
+		stackEnd = new int[length + 2];
+
+		ArrayList<int[]> rewrites = new ArrayList<int[]>();	//置き換える命令列
+		// 一時領域に保存する位置から一時領域のアドレスへの表
+		HashMap<Integer, Integer> saves = new HashMap<Integer, Integer>();
+		ArrayList<int[]> candidates = new ArrayList<int[]>();
+		BasicBlock previous = null;
+		int chainStart = 0;
+		for (BasicBlock block : new ControlFlowGraph(iseg).getBlocks()) {
+			if (previous == null || block.predecessors.size() != 1 || block.predecessors.get(0) != previous) {
+				if (previous != null)
+					finishChain(iseg, chainStart, previous.getEnd(), candidates, rewrites, saves);
+				reset();
+				chainStart = block.getStart();
+			}
+			numberBlock(iseg, block, candidates);
+			blockNumber++;
+			previous = block;
+		}
+		if (previous != null)
+			finishChain(iseg, chainStart, previous.getEnd(), candidates, rewrites, saves);
+		if (rewrites.isEmpty())
+			return 0;
+		rebuild(iseg, rewrites, saves);
+		return length - (iseg.getLastCodeAddress() + 1);
+	}
+
+	/**
+	 * 作業領域を初期化する
+	 */
+	private void reset() {
+		values.clear();
+		constants.clear();
+		cells.clear();
+		cellEpochs.clear();
+		holders.clear();
+		valueCount = 0;
+		memoryEpoch = 0;
+		depth = 0;
+		blockNumber = 0;
+	}
+
+	/**
+	 * 一つのブロックの値に番号を付け, 既に計算した値を再び計算する命令列を置き換えの候補に加える
+	 */
+	private void numberBlock(PseudoIseg iseg, BasicBlock block, ArrayList<int[]> candidates) {
+		for (int i = block.getStart(); i < block.getEnd() && valueCount < MAX_VALUES - 3; i++) {
+			Operator operator = iseg.getOperator(i);
+			int operand = iseg.getOperand(i);
+			switch (operator) {
+			case PUSHI:
+				push(lookup(operator, operand, 0), i, i + 1);
+				break;
+			case PUSH:
+				push(readCell(operand), i, i + 1);
+				break;
+			case LOAD: {
+				int address = pop();
+				int start = adjacentStart(i);
+				Integer constant = constants.get(address);
+				int value = constant != null ? readCell(constant) : lookup(operator, address, memoryEpoch);
+				push(value, start, i + 1);
+				break;
+			}
+			case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR: case COMP: {
+				int right = pop();
+				int rightStart = adjacentStart(i);
+				int left = pop();
+				boolean contiguous = stackStart[depth] >= 0 && rightStart >= 0 && stackEnd[depth] == rightStart;
+				push(lookup(operator, left, right), contiguous ? stackStart[depth] : -1, i + 1);
+				break;
+			}
+			case CSIGN: case NOT: case INC: case DEC: {
+				int value = pop();
+				push(lookup(operator, value, 0), adjacentStart(i), i + 1);
+				break;
+			}
+			case COPY: {
+				int value = pop();
+				push(value, stackStart[depth], stackEnd[depth]);
+				push(value, -1, -1);
+				break;
+			}
+			case POP:
+				writeCell(operand, pop(), true);
+				break;
+			case ASSGN: {
+				int value = pop();
+				Integer constant = constants.get(pop());
+				if (constant != null)
+					writeCell(constant, value, true);
+				else	//配列の要素への書き込み
+					memoryEpoch++;
+				push(value, -1, -1);
+				break;
+			}
+			case INPUT: case INPUTC:
+				push(newValue(), -1, -1);
+				break;
+			case REMOVE: case OUTPUT: case OUTPUTC:
+			case BLT: case BLE: case BEQ: case BNE: case BGE: case BGT:
+				pop();
+				break;
+			default:
+				break;
+			}
+
+			// 値を一つ積む副作用の無い二命令以上の命令列が, 既に計算した値を積んでいれば候補にする
+			if (depth == 0 || stackEnd[depth - 1] != i + 1)
+				continue;
+			int start = stackStart[depth - 1];
+			int value = stackValue[depth - 1];
+			if (i + 1 - start < 2)
+				continue;
+			int holder = holderOf(value);
+			if (holder >= 0 || firstEnd[value] >= 0) {
+				candidates.add(new int[] {start, i + 1, value, holder, blockNumber, -1, 0});
+			} else {
+				firstEnd[value] = i + 1;
+				firstBlock[value] = blockNumber;
+			}
+		}
+	}
+
+	/**
+	 * 続くブロックの並び (start 番地から end 番地の手前まで) の候補から置き換える命令列を選んで rewrites に加え,
+	 * 一時領域に保存する値に一時領域を割り当てて saves に記録する.
+	 * 並びの中で使っていない一時領域を使い回し, 足りなければ VarTable に新しく確保させる.
+	 */
+	private void finishChain(PseudoIseg iseg, int start, int end, ArrayList<int[]> candidates,
+			ArrayList<int[]> rewrites, HashMap<Integer, Integer> saves) {
+		if (candidates.isEmpty())
+			return;
+		ArrayList<int[]> selected = select(candidates);
+		candidates.clear();
+
+		HashSet<Integer> used = new HashSet<Integer>();	//並びの中で使っている一時領域
+		for (int i = start; i < end; i++) {
+			Operator operator = iseg.getOperator(i);
+			if (operator == Operator.PUSH || operator == Operator.POP)
+				used.add(iseg.getOperand(i));
+		}
+		int next = 0;
+		for (int[] rewrite : selected) {
+			if (rewrite[HOLDER] < 0) {
+				Integer temporary = saves.get(rewrite[SITE]);
+				if (temporary == null) {
+					while (next < temporaries.size() && used.contains(temporaries.get(next)))
+						next++;
+					if (next == temporaries.size())
+						temporaries.add(variables.reserveTemporary());
+					temporary = temporaries.get(next++);
+					saves.put(rewrite[SITE], temporary);
+				}
+				rewrite[HOLDER] = temporary;
+			}
+			rewrites.add(rewrite);
+		}
+	}
+
+	/**
+	 * 候補から, 互いに重ならず得になる置き換えを選ぶ.
+	 * 候補から除かれていない最も外側の候補を選び, 一時領域に保存する値については次の規則で得にならないものを除く.
+	 * これを除くものが無くなるまで繰り返す.
+	 * <ul>
+	 * <li>後ろのブロックは最初のブロックより実行される回数が少ないかもしれないので, 実行する命令を増やさないように,
+	 * 値を最初に計算したブロックの中の置き換えで減る命令が保存する命令より多ければ, その直後に保存する</li>
+	 * <li>そうでなければ, 後ろのブロックごとに, そのブロックで最初に計算した直後に保存して得になるかを調べる.
+	 * 最初の計算は置き換えの候補から除く</li>
+	 * <li>保存する位置が選んだ命令列の内側になるものは除く</li>
+	 * </ul>
+	 * @return 選んだ置き換え (先頭の番地の順)
+	 */
+	private ArrayList<int[]> select(ArrayList<int[]> candidates) {
+		candidates.sort(BY_RANGE);
+		// 値の番号とブロックの番号から, そのブロックで保存する位置への表 (最初に計算した直後に保存しない値だけ)
+		HashMap<Long, Integer> blockSites = new HashMap<Long, Integer>();
+		ArrayList<int[]> selected = new ArrayList<int[]>();
+		boolean strict = false;	//選んだ候補だけで得になるかを調べる段階なら true
+		for (int round = 0; round < MAX_SELECTIONS; round++) {
+			selectOutermost(candidates, selected);
+			int[] starts = new int[selected.size()], ends = new int[selected.size()];
+			for (int r = 0; r < selected.size(); r++) {
+				starts[r] = selected.get(r)[START];
+				ends[r] = selected.get(r)[END];
+			}
+			// 初めは外側の候補が除かれて現れうる内側の候補も数えて, 得になる見込みの無いものから除く
+			LinkedHashMap<Integer, ArrayList<int[]>> uses = new LinkedHashMap<Integer, ArrayList<int[]>>();
+			for (int[] rewrite : strict ? selected : candidates) {
+				if (rewrite[HOLDER] >= 0 || rewrite[REMOVED] != 0)
+					continue;
+				ArrayList<int[]> list = uses.get(rewrite[VALUE]);
+				if (list == null) {
+					list = new ArrayList<int[]>();
+					uses.put(rewrite[VALUE], list);
+				}
+				list.add(rewrite);
+			}
+
+			boolean changed = false;
+			for (ArrayList<int[]> list : uses.values()) {
+				int value = list.get(0)[VALUE];
+				long key = (long) value << 32;
+				if (!blockSites.containsKey(key | firstBlock[value])) {
+					int gain = 0;
+					for (int[] rewrite : list)
+						if (rewrite[BLOCK] == firstBlock[value])
+							gain += rewrite[END] - rewrite[START] - 1;
+					if (gain > SAVE_COST && !(strict && encloses(starts, ends, firstEnd[value]))) {
+						for (int[] rewrite : list)
+							rewrite[SITE] = firstEnd[value];
+						continue;
+					}
+					// 以後は最初に計算したブロックでは保存しない
+					blockSites.put(key | firstBlock[value], -1);
+				}
+				for (int u = 0; u < list.size(); ) {
+					int block = list.get(u)[BLOCK];
+					int v = u;
+					while (v < list.size() && list.get(v)[BLOCK] == block)
+						v++;
+					Integer site = blockSites.get(key | block);
+					if (site == null && v - u >= 2) {	//ブロックで最初の計算の直後に保存する
+						site = list.get(u)[END];
+						blockSites.put(key | block, site);
+						list.get(u)[REMOVED] = 1;
+						u++;
+						changed = true;
+					}
+					int gain = 0;
+					for (int w = u; w < v; w++)
+						if (site != null && site >= 0 && list.get(w)[START] >= site)
+							gain += list.get(w)[END] - list.get(w)[START] - 1;
+					for (int w = u; w < v; w++) {
+						int[] rewrite = list.get(w);
+						if (gain > SAVE_COST && rewrite[START] >= site && !(strict && encloses(starts, ends, site))) {
+							rewrite[SITE] = site;
+						} else {
+							rewrite[REMOVED] = 1;
+							changed = true;
+						}
+					}
+					u = v;
+				}
+			}
+			if (!changed) {
+				if (strict)
+					return selected;
+				strict = true;
+			}
+		}
+
+		// 打ち切った場合は, 保存する位置が正しくないものを除く
+		selectOutermost(candidates, selected);
+		int[] starts = new int[selected.size()], ends = new int[selected.size()];
+		for (int r = 0; r < selected.size(); r++) {
+			starts[r] = selected.get(r)[START];
+			ends[r] = selected.get(r)[END];
+		}
+		ArrayList<int[]> valid = new ArrayList<int[]>();
+		for (int[] rewrite : selected) {
+			if (rewrite[HOLDER] >= 0
+					|| (rewrite[SITE] >= 0 && rewrite[SITE] <= rewrite[START] && !encloses(starts, ends, rewrite[SITE])))
+				valid.add(rewrite);
+		}
+		return valid;
+	}
+
+	/**
+	 * 除かれていない候補のうち, 除かれていない他の候補の内側に無いものを selected に入れる
+	 */
+	private static void selectOutermost(ArrayList<int[]> candidates, ArrayList<int[]> selected) {
+		selected.clear();
+		int outerEnd = -1;
+		for (int[] candidate : candidates) {
+			if (candidate[REMOVED] != 0 || candidate[END] <= outerEnd)
+				continue;
+			selected.add(candidate);
+			outerEnd = candidate[END];
+		}
+	}
+
+	/**
+	 * 先頭の番地の順に並んだ互いに重ならない命令列のいずれかが, site 番地の命令の前の位置を内側に含むかを返す
+	 */
+	private static boolean encloses(int[] starts, int[] ends, int site) {
+		int q = Arrays.binarySearch(starts, site);
+		q = q < 0 ? -q - 2 : q - 1;	//先頭が site より前で最後の命令列
+		return q >= 0 && site < ends[q];
+	}
+
+	/**
+	 * 置き換えと一時領域への保存を命令列に反映し, 分岐命令の飛び先を付け替える
+	 */
+	private void rebuild(PseudoIseg iseg, ArrayList<int[]> rewrites, HashMap<Integer, Integer> saves) {
+		int length = iseg.getLastCodeAddress() + 1;
+		int[] newAddress = new int[length + 1];
+		PseudoIseg code = new PseudoIseg();
+		int r = 0;
+		for (int i = 0; i < length; ) {
+			Integer temporary = saves.get(i);
+			if (temporary != null) {	//直前の命令が積んだ値を一時領域に保存する
+				code.appendCode(Operator.COPY);
+				code.appendCode(Operator.POP, temporary);
+			}
+			if (r < rewrites.size() && rewrites.get(r)[START] == i) {
+				int[] rewrite = rewrites.get(r++);
+				int addr = code.appendCode(Operator.PUSH, rewrite[HOLDER]);
+				for (; i < rewrite[END]; i++)
+					newAddress[i] = addr;
+			} else {
+				newAddress[i] = code.setI(iseg.getOperator(i), iseg.getFlag(i), iseg.getOperand(i));
+				i++;
+			}
+		}
+		newAddress[length] = code.getLastCodeAddress() + 1;
+
+		for (int i = 0; i <= code.getLastCodeAddress(); i++) {
+			int target = code.getOperand(i);
+			if (code.getOperator(i).isJump() && target >= 0 && target <= length)
+				code.replaceCode(i, newAddress[target]);
+		}
+		iseg.removeTail(0);
+		iseg.appendCode(code, 0, code.getLastCodeAddress() + 1, 0);
+	}
+
+	/**
+	 * 値をスタックに積む
+	 * @param start 値を積んだ命令列の先頭の番地 (副作用の無い一続きの命令列でなければ -1)
+	 * @param end 値を積んだ命令列の末尾の次の番地
+	 */
+	private void push(int value, int start, int end) {
+		stackValue[depth] = value;
+		stackStart[depth] = start;
+		stackEnd[depth] = start >= 0 ? end : -1;
+		depth++;
+	}
+
+	/**
+	 * スタックから値を降ろす. ブロックの並びに入る前に積まれた値は, 新しい番号の値とみなす.
+	 * 降ろした要素の命令列の範囲は stackStart[depth], stackEnd[depth] に残る
+	 */
+	private int pop() {
+		if (depth == 0)
+			push(newValue(), -1, -1);
+		return stackValue[--depth];
+	}
+
+	/**
+	 * 降ろした要素が address 番地の直前までの命令列で積まれていれば, その命令列の先頭の番地を返す. そうでなければ -1
+	 */
+	private int adjacentStart(int address) {
+		return stackEnd[depth] == address ? stackStart[depth] : -1;
+	}
+
+	/**
+	 * 新しい番号を付ける
+	 */
+	private int newValue() {
+		firstEnd[valueCount] = -1;
+		return valueCount++;
+	}
+
+	/**
+	 * 演算と被演算子の値の番号の組に付けた番号を返す. 初めての組なら新しい番号を付ける
+	 * (PUSHI は left に定数を, LOAD は right に memoryEpoch を入れる)
+	 */
+	private int lookup(Operator operator, int left, int right) {
+		long key = operator == Operator.PUSHI
+				? (long) operator.ordinal() << 56 | left & 0xffffffffL
+				: (long) operator.ordinal() << 56 | (long) left << 28 | right;
+		Integer value = values.get(key);
+		if (value == null) {
+			value = newValue();
+			values.put(key, value);
+			if (operator == Operator.PUSHI)
+				constants.put(value, left);
+		}
+		return value;
+	}
+
+	/**
+	 * Dseg のアドレスにある値の番号を返す. 分からなければ新しい番号を付けて記録する
+	 */
+	private int readCell(int address) {
+		Integer value = cells.get(address);
+		if (value == null || !isCurrent(address)) {
+			value = newValue();
+			writeCell(address, value, false);
+		}
+		return value;
+	}
+
+	/**
+	 * Dseg のアドレスに値を記録する. 配列の要素に書き込んだ場合は, アドレスを計算して読んだ値を無効にする
+	 * @param store 実際に書き込む命令なら true, 読んだ値を記録するだけなら false
+	 */
+	private void writeCell(int address, int value, boolean store) {
+		if (variables.isArrayElement(address)) {
+			if (store)
+				memoryEpoch++;
+			cellEpochs.put(address, memoryEpoch);
+		}
+		cells.put(address, value);
+		holders.put(value, address);
+	}
+
+	/**
+	 * アドレスに記録した値が, その後の配列の要素への書き込みで無効になっていなければ true を返す
+	 */
+	private boolean isCurrent(int address) {
+		return !variables.isArrayElement(address) || cellEpochs.get(address) == memoryEpoch;
+	}
+
+	/**
+	 * 値を今も保持しているアドレスを返す. 無ければ -1
+	 */
+	private int holderOf(int value) {
+		Integer address = holders.get(value);
+		if (address == null || cells.get(address) != value || !isCurrent(address))
+			return -1;
+		return address;
+	}
+}
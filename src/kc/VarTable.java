@@ -1,10 +1,15 @@
 package kc;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * 変数表クラス
  * 変数クラスのVarをArrayListに格納し，それに対する処理をする
+ * 名前からの検索には HashMap の索引を使う. ブロックの入口で size() を記憶しておき,
+ * 出口で removeTail() に渡すと, そのブロックで宣言した変数だけが索引からも削除される
  */
 class VarTable {
     /**
@@ -12,18 +17,42 @@ class VarTable {
      */
 	private ArrayList<Var> varList;
 
+	/**
+	 * 変数名から変数への索引. varList と同じ変数を持つ
+	 */
+	private HashMap<String, Var> varIndex;
+
 	/**
 	 * 次に登録される変数のアドレス
 	 */
 	private int nextAddress;
 
+	/**
+	 * これまでに登録した変数と一時領域が使う Dseg のアドレスの上限 (最大のアドレスの次)
+	 * removeTail で nextAddress が戻っても減らない
+	 */
+	private int maxAddress;
+
+	/**
+	 * 一時領域を確保したかどうか
+	 */
+	private boolean temporaryReserved;
+
+	/**
+	 * これまでに配列の要素として登録したアドレスの印
+	 */
+	private BitSet arrayAddresses;
+
 	/**
 	 * ArrayList<Var>を一つ作り，varList で参照する
 	 * nextAddressを0に初期化する
 	 */
 	VarTable() {
 		this.varList = new ArrayList<Var>();
+		this.varIndex = new HashMap<String, Var>();
 		this.nextAddress = 0;
+		this.maxAddress = 0;
+		this.arrayAddresses = new BitSet();
 	}
 
     /**
@@ -33,11 +62,7 @@ class VarTable {
      * VarTableクラス内部からのみ呼び出される
      */
     private Var getVar(String name) {
-    	for(Var var: varList) {
-    		if(var.getName().equals(name))
-    			return var;
-    	}
-    	return null;
+    	return varIndex.get(name);
     }
 
     /**
@@ -45,10 +70,7 @@ class VarTable {
      * 戻り値として返す
      */
     boolean exist(String name) {
-    	boolean flag = false;
-    	if(getVar(name) != null)
-    		flag = true;
-    	return flag;
+    	return varIndex.containsKey(name);
     }
 
     /**
@@ -60,8 +82,13 @@ class VarTable {
     boolean registerNewVariable(Type type, String name, int size) {
     	boolean ret = false;
     	if(!exist(name)) {
-    		varList.add(new Var(type, name, nextAddress, size));   // 変数表に追加
+    		Var var = new Var(type, name, nextAddress, size);
+    		varList.add(var);   // 変数表に追加
+    		varIndex.put(name, var);   // 索引に追加
     		this.nextAddress += size; //nextAddressを更新
+    		this.maxAddress = Math.max(maxAddress, nextAddress);
+    		if(type == Type.ARRAYOFINT)
+    			arrayAddresses.set(var.getAddress(), nextAddress);
     		ret = true;
     	}
     	return ret;
@@ -72,8 +99,9 @@ class VarTable {
      * nameを持つ変数が無ければ-1を返す
      */
     int getAddress(String name) {
-    	if(exist(name))
-    		return getVar(name).getAddress();
+    	Var var = getVar(name);
+    	if(var != null)
+    		return var.getAddress();
     	else
     		return -1;
     }
@@ -82,8 +110,9 @@ class VarTable {
      * 名前nameを持つ変数の型を戻り値として返す
      */
     Type getType(String name) {
-    	if(exist(name))
-    		return getVar(name).getType();
+    	Var var = getVar(name);
+    	if(var != null)
+    		return var.getType();
     	else
     		return Type.NULL;
     }
@@ -99,8 +128,9 @@ class VarTable {
      * 名前nameを持つ変数のサイズを返す
      */
     int getSize(String name) {
-    	if(exist(name))
-    		return getVar(name).getSize();
+    	Var var = getVar(name);
+    	if(var != null)
+    		return var.getSize();
     	else
     		return -1;
     }
@@ -114,15 +144,46 @@ class VarTable {
 
     /**
      * 引数で指定した位置から後の変数を変数表から削除する
+     * 削除する変数の個数に比例する時間で済む
      */
     void removeTail (int index) {
     	if(index >= 0 && index < varList.size()) {
     		this.nextAddress = varList.get(index).getAddress(); // nextAddressを記憶しておく
-    		while(index < varList.size())
-    			varList.remove(index);
+    		List<Var> tail = varList.subList(index, varList.size());
+    		for(Var var: tail)
+    			varIndex.remove(var.getName());
+    		tail.clear();
     	}
     }
 
+    /**
+     * これまでに登録した変数と確保した一時領域がすべて収まる Dseg の語数を返す
+     */
+    int getDataSize() {
+    	return maxAddress;
+    }
+
+    /**
+     * どの変数とも重ならない一時領域を Dseg に一語確保し, そのアドレスを返す.
+     * 最適化で値を一時的に保存するために, 構文解析が終わった後に使う.
+     * 最後の配列の一つ先への書き込みで壊れないように, 変数と一時領域の間は一語空ける
+     */
+    int reserveTemporary() {
+    	if(!temporaryReserved) {
+    		temporaryReserved = true;
+    		maxAddress++;	//変数との間に空ける一語
+    	}
+    	return maxAddress++;
+    }
+
+    /**
+     * 引数のアドレスが, これまでに登録したいずれかの配列の要素であれば true を返す.
+     * ブロックを出た後に同じアドレスを別の変数が使っていても true になる
+     */
+    boolean isArrayElement(int address) {
+    	return address >= 0 && arrayAddresses.get(address);
+    }
+
     /**
      * 動作確認用のメインメソッド
      * int型変数およびint型配列を表に登録し、その後登録された変数を表示する
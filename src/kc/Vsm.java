@@ -0,0 +1,835 @@
+package kc;
+
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * VSM の命令列を実行するインタプリタ
+ * 命令列は実行前に int 配列 (2i 番目が i 番地の命令の番号, 2i+1 番目がオペランド) に変換しておき,
+ * 命令の番号による switch で一命令ずつ実行する. オペランドスタックと Dseg も int 配列で, 実行中にオブジェクトを作らない.
+ * スタックとアドレスの範囲は配列の添字の検査に任せ, 範囲外になったら VsmException にする.
+ *
+ * 入出力は dump2file が出力するコードを実行する VSM に合わせる.
+ * INPUT は空白を読み飛ばして符号付きの十進数を読み, INPUTC は一文字読む (入力の終わりでは -1).
+ * OUTPUT は十進数, OUTPUTC は文字コードの文字, OUTPUTLN は改行を出力する.
+ * COMP は左辺が小さければ -1, 等しければ 0, 大きければ 1 を積む.
+ * 最後の命令の次の番地に進んだときは HALT と同じく止まる.
+ *
+ * Kc が生成するコードに多い命令の並び (配列の要素の読み出し, 変数の増減, 比較の結果を 0 か 1 にする分岐, 比較と分岐) は,
+ * 実行前に先頭の命令を一つの複合命令に置き換え, 一度の switch でまとめて実行する.
+ * 並びの二つ目以降の命令は元のまま残すので, 途中の番地に分岐しても元の命令を実行すればよい.
+ * 複合命令は元の並びと同じだけ実行した命令の数を数え, 途中でエラーになる場合や命令の数が上限に近い場合は
+ * 先頭の命令だけを実行して残りを元の命令に任せるので, エラーの番地と内容も変わらない.
+ *
+ * enableJit を呼ぶと, 後退する分岐で同じ番地に HOT_LOOP_THRESHOLD 回戻ったループを LoopCompiler で
+ * JVM のバイトコードに翻訳し, 以後そのループに入るときは翻訳したコードを実行する.
+ * 翻訳したコードは入出力などの手前でインタプリタに戻り, 実行した命令の数と上限の検査もインタプリタと同じになる.
+ */
+public class Vsm {
+	/** Dseg の語数の既定値 */
+	static final int DEFAULT_DATA_SIZE = 1 << 16;
+	/** オペランドスタックの語数の既定値 */
+	static final int DEFAULT_STACK_SIZE = 1 << 16;
+	/** 出力をこの文字数ためたら書き出す */
+	private static final int OUTPUT_CHUNK = 8192;
+
+	/* 実行する命令の番号. Operator の並び順に依存しないように, 変換表で対応させる.
+	   オブジェクトファイルにもこの番号を書くので, 変えるときは VsmObject.VERSION を上げる */
+	private static final int NOP = 0, ASSGN = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, MOD = 6, CSIGN = 7,
+			AND = 8, OR = 9, NOT = 10, COMP = 11, COPY = 12, PUSH = 13, PUSHI = 14, REMOVE = 15, POP = 16,
+			INC = 17, DEC = 18, JUMP = 19, BLT = 20, BLE = 21, BEQ = 22, BNE = 23, BGE = 24, BGT = 25,
+			HALT = 26, INPUT = 27, INPUTC = 28, OUTPUT = 29, OUTPUTC = 30, OUTPUTLN = 31, LOAD = 32, ERR = 33;
+
+	/* 複合命令の番号. 実行前の置き換えでだけ作り, オブジェクトファイルには書かない */
+	private static final int ARRAY_LOAD = 34,	// PUSHI b; PUSH x; ADD; LOAD
+			PRE_STEP = 35,	// PUSH a; INC (DEC); COPY; POP a
+			STEP_VAR = 36,	// PUSH a; INC (DEC); POP a
+			COMP_FLAG = 37,	// COMP; Bxx +4; PUSHI 0; JUMP +5; PUSHI 1
+			COMP_BRANCH = 38;	// COMP; Bxx L (飛び先 L は COMP のオペランドに置く)
+
+	/* JIT を使うときに後退する分岐を置き換える命令の番号. 分岐の回数を数えてループを翻訳する */
+	private static final int BACK_JUMP = 39,	// 後退する JUMP
+			BACK_BRANCH = 40;	// 後退する条件分岐 (条件は BRANCH_MASKS の値を secondOperands に置く)
+
+	/** ループの入口に何回戻ったら翻訳するか */
+	private static final int HOT_LOOP_THRESHOLD = 1000;
+
+	/**
+	 * 条件分岐命令 (BLT～BGT の順) が, COMP の結果 -1, 0, 1 のそれぞれで分岐するかを下位の3ビットで表したもの
+	 */
+	private static final int[] BRANCH_MASKS = {0b001, 0b011, 0b010, 0b101, 0b110, 0b100};
+
+	/**
+	 * Operator の序数から命令の番号への表
+	 */
+	private static final int[] CODES = new int[Operator.values().length];
+
+	/**
+	 * 命令の番号から Operator への表
+	 */
+	private static final Operator[] OPERATORS = new Operator[ERR + 1];
+
+	static {
+		for (Operator operator : Operator.values()) {
+			CODES[operator.ordinal()] = codeOf(operator);
+			OPERATORS[codeOf(operator)] = operator;
+		}
+	}
+
+	/**
+	 * 変換した命令列. 末尾の次の番地には HALT を置く
+	 */
+	private int[] program;
+
+	/**
+	 * 命令の数
+	 */
+	private int length;
+
+	/**
+	 * 複合命令の二つ目のオペランド. 先頭の番地を添字として置く.
+	 * ARRAY_LOAD では PUSH するアドレス, PRE_STEP と STEP_VAR では増減する量 (1 か -1),
+	 * COMP_FLAG と COMP_BRANCH では分岐の条件 (BRANCH_MASKS の値)
+	 */
+	private int[] secondOperands;
+
+	/**
+	 * JIT を使うときの, 置き換える前の各番地の命令とオペランド (LoopCompiler に渡す)
+	 */
+	private Operator[] sourceOperators;
+	private int[] sourceOperands;
+
+	/**
+	 * 各番地をループの入口とする後退する分岐の残りの回数. 0 になったら翻訳する. 翻訳できなければ -1
+	 */
+	private int[] heat;
+
+	/**
+	 * 各番地を入口として翻訳したループと, 入口でのスタックの深さ
+	 */
+	private CompiledLoop[] loops;
+	private int[] loopDepths;
+
+	/**
+	 * 翻訳したループの数
+	 */
+	private int compiledLoopCount;
+
+	/**
+	 * 翻訳したループとの間で実行した命令の数を受け渡す
+	 */
+	private long[] stepsHolder = new long[1];
+
+	/**
+	 * Dseg
+	 */
+	private int[] data;
+
+	/**
+	 * オペランドスタック
+	 */
+	private int[] stack;
+
+	/**
+	 * 実行する命令の数の上限
+	 */
+	private long stepLimit = Long.MAX_VALUE;
+
+	/**
+	 * 最後の実行で実行した命令の数
+	 */
+	private long steps;
+
+	/**
+	 * 最後の実行が止まったときのスタックの要素数
+	 */
+	private int stackDepth;
+
+	/* 入力のバッファ */
+	private Reader input;
+	private char[] inputBuffer = new char[8192];
+	private int inputPosition, inputLimit;
+
+	/**
+	 * 変換した命令列を引数とするコンストラクタ
+	 * @param program 変換した命令列. 末尾の次の番地の分まで長さがあること
+	 * @param length 命令の数
+	 * @param dataSize Dseg の語数 (DEFAULT_DATA_SIZE より小さければ DEFAULT_DATA_SIZE)
+	 * @param stackSize オペランドスタックの語数. 負なら DEFAULT_STACK_SIZE
+	 */
+	Vsm(int[] program, int length, int dataSize, int stackSize) {
+		this.program = program;
+		this.length = length;
+		program[2 * length] = HALT;
+		this.data = new int[Math.max(dataSize, DEFAULT_DATA_SIZE)];
+		this.stack = new int[stackSize >= 0 ? stackSize : DEFAULT_STACK_SIZE];
+		fuse();
+	}
+
+	/**
+	 * 複合命令にできる並びの先頭の命令を複合命令に置き換える.
+	 * 命令の番号として正しくない値 (壊れたオブジェクトファイルなど) は ERR にする
+	 */
+	private void fuse() {
+		secondOperands = new int[length + 1];
+		for (int i = 0; i < length; i++) {
+			int op = program[2 * i];
+			int operand = program[2 * i + 1];
+			if (op < 0 || op > ERR) {
+				program[2 * i] = ERR;
+			} else if (op == PUSHI && codeAt(i + 1) == PUSH && codeAt(i + 2) == ADD && codeAt(i + 3) == LOAD) {
+				program[2 * i] = ARRAY_LOAD;
+				secondOperands[i] = operandAt(i + 1);
+			} else if (op == PUSH && (codeAt(i + 1) == INC || codeAt(i + 1) == DEC)) {
+				int step = codeAt(i + 1) == INC ? 1 : -1;
+				if (codeAt(i + 2) == COPY && codeAt(i + 3) == POP && operandAt(i + 3) == operand) {
+					program[2 * i] = PRE_STEP;
+					secondOperands[i] = step;
+				} else if (codeAt(i + 2) == POP && operandAt(i + 2) == operand) {
+					program[2 * i] = STEP_VAR;
+					secondOperands[i] = step;
+				}
+			} else if (op == COMP && codeAt(i + 1) >= BLT && codeAt(i + 1) <= BGT && operandAt(i + 1) == i + 4
+					&& codeAt(i + 2) == PUSHI && operandAt(i + 2) == 0
+					&& codeAt(i + 3) == JUMP && operandAt(i + 3) == i + 5
+					&& codeAt(i + 4) == PUSHI && operandAt(i + 4) == 1) {
+				program[2 * i] = COMP_FLAG;
+				secondOperands[i] = BRANCH_MASKS[codeAt(i + 1) - BLT];
+			} else if (op == COMP && codeAt(i + 1) >= BLT && codeAt(i + 1) <= BGT) {
+				program[2 * i] = COMP_BRANCH;
+				program[2 * i + 1] = operandAt(i + 1);	//COMP はオペランドを使わない
+				secondOperands[i] = BRANCH_MASKS[codeAt(i + 1) - BLT];
+			}
+		}
+	}
+
+	/**
+	 * @return i 番地の命令の番号. 命令列の範囲外なら -1
+	 */
+	private int codeAt(int i) {
+		return i < length ? program[2 * i] : -1;
+	}
+
+	/**
+	 * @return i 番地のオペランド
+	 */
+	private int operandAt(int i) {
+		return program[2 * i + 1];
+	}
+
+	/**
+	 * 実行の回数が多いループをバイトコードに翻訳して実行するようにする.
+	 * 複合命令を元の命令に戻して翻訳に渡す命令列を作り, 後退する分岐を回数を数える命令に置き換える
+	 */
+	public void enableJit() {
+		if (heat != null)
+			return;
+		sourceOperators = new Operator[length];
+		sourceOperands = new int[length];
+		for (int i = 0; i < length; i++) {
+			int op = program[2 * i];
+			int operand = program[2 * i + 1];
+			switch (op) {
+				case ARRAY_LOAD:
+					op = PUSHI;
+					break;
+				case PRE_STEP:
+				case STEP_VAR:
+					op = PUSH;
+					break;
+				case COMP_FLAG:
+					op = COMP;
+					break;
+				case COMP_BRANCH:
+					op = COMP;
+					operand = 0;
+					if (program[2 * i + 1] <= i + 1)	//後退する分岐は次の番地の条件分岐命令で数える
+						program[2 * i] = COMP;
+					break;
+			}
+			sourceOperators[i] = OPERATORS[op];
+			sourceOperands[i] = operand;
+		}
+		for (int i = 0; i < length; i++) {
+			int op = program[2 * i];
+			if (op == JUMP && program[2 * i + 1] <= i) {
+				program[2 * i] = BACK_JUMP;
+			} else if (op >= BLT && op <= BGT && program[2 * i + 1] <= i) {
+				program[2 * i] = BACK_BRANCH;
+				secondOperands[i] = BRANCH_MASKS[op - BLT];
+			}
+		}
+		heat = new int[length + 1];
+		Arrays.fill(heat, HOT_LOOP_THRESHOLD);
+		loops = new CompiledLoop[length + 1];
+		loopDepths = new int[length + 1];
+	}
+
+	/**
+	 * @return 翻訳したループの数
+	 */
+	public int getCompiledLoopCount() {
+		return compiledLoopCount;
+	}
+
+	/**
+	 * PseudoIseg の命令列を実行するインタプリタを作る.
+	 * Dseg は PUSH, POP で使うアドレスが収まる大きさにする
+	 */
+	static Vsm fromIseg(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		int[] program = new int[2 * length + 2];
+		int maxAddress = -1;
+		for (int i = 0; i < length; i++) {
+			int code = CODES[iseg.getOperator(i).ordinal()];
+			program[2 * i] = code;
+			program[2 * i + 1] = iseg.getOperand(i);
+			if (code == PUSH || code == POP)
+				maxAddress = Math.max(maxAddress, program[2 * i + 1]);
+		}
+		return new Vsm(program, length, maxAddress + 1, -1);
+	}
+
+	/**
+	 * コンパイルに成功した結果の命令列を実行するインタプリタを作る
+	 * @throws IllegalArgumentException コンパイルに失敗した結果を渡したとき
+	 */
+	public static Vsm fromResult(CompileResult result) {
+		if (!result.isSuccess())
+			throw new IllegalArgumentException(result.getDiagnostic().toString());
+		return fromIseg(result.getCode());
+	}
+
+	/**
+	 * dump2file が出力した形式のアセンブラファイルを読み込む
+	 * @throws IOException 読み込めないとき, 形式が正しくないとき
+	 */
+	public static Vsm load(Path file) throws IOException {
+		return fromIseg(AsmLoader.load(file));
+	}
+
+	/**
+	 * VsmObject の形式のオブジェクトファイルをメモリに割り付けて読み込む.
+	 * 命令列は解析せずにそのまま写し, Dseg とスタックはヘッダに記録された大きさで作る
+	 * @throws IOException 読み込めないとき, オブジェクトファイルでないとき
+	 */
+	public static Vsm map(Path file) throws IOException {
+		return VsmObject.load(file);
+	}
+
+	/**
+	 * 実行する命令の数の上限を設定する. 超えたら VsmException を投げて止まる
+	 */
+	public void setStepLimit(long stepLimit) {
+		this.stepLimit = stepLimit;
+	}
+
+	/**
+	 * @return 最後の実行で実行した命令の数 (HALT を含む)
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return 最後の実行が止まったときのスタックの要素数
+	 */
+	public int getStackDepth() {
+		return stackDepth;
+	}
+
+	/**
+	 * 0 番地から HALT まで実行する. Dseg は実行の前に 0 で埋める
+	 * @param input INPUT, INPUTC で読む入力
+	 * @param output OUTPUT, OUTPUTC, OUTPUTLN の出力先. 止まったときに flush する
+	 * @throws VsmException 実行時エラーを検出したとき (それまでの出力は書き出す)
+	 */
+	@SuppressWarnings("fallthrough")	//分岐する BACK_BRANCH は BACK_JUMP の後退する分岐の処理を共有する
+	public void run(Reader input, Writer output) throws IOException {
+		this.input = input;
+		inputPosition = inputLimit = 0;
+		Arrays.fill(data, 0);
+		StringBuilder out = new StringBuilder(OUTPUT_CHUNK + 16);
+		final int[] code = program;
+		final int[] second = secondOperands;
+		final int[] data = this.data;
+		final int[] stack = this.stack;
+		final int[] heat = this.heat;
+		final long limit = stepLimit;
+		int pc = 0, sp = 0;
+		long count = 0;
+		try {
+			loop:
+			for (;;) {
+				int operand = code[2 * pc + 1];
+				int op = code[2 * pc];
+				pc++;
+				count++;
+				switch (op) {
+				case NOP:
+					break;
+				case ASSGN: {
+					int value = stack[--sp];
+					data[stack[sp - 1]] = value;
+					stack[sp - 1] = value;
+					break;
+				}
+				case ADD:
+					sp--;
+					stack[sp - 1] += stack[sp];
+					break;
+				case SUB:
+					sp--;
+					stack[sp - 1] -= stack[sp];
+					break;
+				case MUL:
+					sp--;
+					stack[sp - 1] *= stack[sp];
+					break;
+				case DIV: {
+					int divisor = stack[--sp];
+					if (divisor == 0)
+						throw new VsmException("0 で割った", pc - 1);
+					stack[sp - 1] /= divisor;
+					break;
+				}
+				case MOD: {
+					int divisor = stack[--sp];
+					if (divisor == 0)
+						throw new VsmException("0 で割った", pc - 1);
+					stack[sp - 1] %= divisor;
+					break;
+				}
+				case CSIGN:
+					stack[sp - 1] = -stack[sp - 1];
+					break;
+				case AND:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0;
+					break;
+				case OR:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0;
+					break;
+				case NOT:
+					stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+					break;
+				case COMP:
+					sp--;
+					stack[sp - 1] = Integer.compare(stack[sp - 1], stack[sp]);
+					break;
+				case COPY:
+					stack[sp] = stack[sp - 1];
+					sp++;
+					break;
+				case PUSH:
+					stack[sp++] = data[operand];
+					break;
+				case PUSHI:
+					stack[sp++] = operand;
+					break;
+				case REMOVE:
+					if (--sp < 0)
+						throw new VsmException("スタックが空", pc - 1);
+					break;
+				case POP:
+					data[operand] = stack[--sp];
+					break;
+				case INC:
+					stack[sp - 1]++;
+					break;
+				case DEC:
+					stack[sp - 1]--;
+					break;
+				case JUMP:
+					pc = operand;
+					if (count > limit)
+						break loop;
+					break;
+				case BLT:
+					if (stack[--sp] < 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case BLE:
+					if (stack[--sp] <= 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case BEQ:
+					if (stack[--sp] == 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case BNE:
+					if (stack[--sp] != 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case BGE:
+					if (stack[--sp] >= 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case BGT:
+					if (stack[--sp] > 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					}
+					break;
+				case HALT:
+					break loop;
+				case INPUT:
+					stack[sp++] = readInt();
+					break;
+				case INPUTC:
+					stack[sp++] = readChar();
+					break;
+				case OUTPUT:
+					out.append(stack[--sp]);
+					if (out.length() >= OUTPUT_CHUNK)
+						flush(out, output);
+					break;
+				case OUTPUTC:
+					appendChar(out, stack[--sp]);
+					if (out.length() >= OUTPUT_CHUNK)
+						flush(out, output);
+					break;
+				case OUTPUTLN:
+					out.append('\n');
+					if (out.length() >= OUTPUT_CHUNK)
+						flush(out, output);
+					break;
+				case LOAD:
+					stack[sp - 1] = data[stack[sp - 1]];
+					break;
+				case ARRAY_LOAD: {
+					int index = second[pc - 1];
+					if (index >= 0 && index < data.length && sp + 1 < stack.length) {
+						int address = operand + data[index];
+						if (address >= 0 && address < data.length) {
+							stack[sp++] = data[address];
+							pc += 3;
+							count += 3;
+							break;
+						}
+					}
+					stack[sp++] = operand;	//PUSHI だけ実行する
+					break;
+				}
+				case PRE_STEP:
+					if (operand >= 0 && operand < data.length && sp + 1 < stack.length) {
+						int value = data[operand] + second[pc - 1];
+						data[operand] = value;
+						stack[sp++] = value;
+						pc += 3;
+						count += 3;
+						break;
+					}
+					stack[sp++] = data[operand];	//PUSH だけ実行する
+					break;
+				case STEP_VAR:
+					if (operand >= 0 && operand < data.length && sp < stack.length) {
+						data[operand] += second[pc - 1];
+						pc += 2;
+						count += 2;
+						break;
+					}
+					stack[sp++] = data[operand];	//PUSH だけ実行する
+					break;
+				case COMP_FLAG: {
+					sp--;
+					int comparison = Integer.compare(stack[sp - 1], stack[sp]);
+					if (count + 3 > limit) {	//途中の分岐で上限を超えるので COMP だけ実行する
+						stack[sp - 1] = comparison;
+						break;
+					}
+					// 分岐すれば PUSHI 1 まで3命令, しなければ PUSHI 0; JUMP を通って4命令
+					int flag = second[pc - 1] >> (comparison + 1) & 1;
+					stack[sp - 1] = flag;
+					pc += 4;
+					count += 3 - flag;
+					break;
+				}
+				case COMP_BRANCH: {
+					sp--;
+					int comparison = Integer.compare(stack[sp - 1], stack[sp]);
+					sp--;
+					count++;
+					if ((second[pc - 1] >> (comparison + 1) & 1) != 0) {
+						pc = operand;
+						if (count > limit)
+							break loop;
+					} else {
+						pc++;
+					}
+					break;
+				}
+				case BACK_BRANCH:
+					if ((second[pc - 1] >> (Integer.signum(stack[--sp]) + 1) & 1) == 0)
+						break;
+					// 分岐するときは BACK_JUMP と同じ
+				case BACK_JUMP: {
+					int from = pc - 1;
+					pc = operand;
+					if (count > limit)
+						break loop;
+					int remaining = heat[pc];
+					if (remaining != 0) {
+						if (remaining > 0)
+							heat[pc] = remaining - 1;
+						break;
+					}
+					CompiledLoop compiled = compiledLoop(pc, from, sp);
+					if (compiled == null)
+						break;
+					long[] holder = stepsHolder;
+					holder[0] = count;
+					long exit = compiled.run(data, stack, holder, limit);
+					count = holder[0];
+					pc = (int) exit;
+					sp = (int) (exit >>> 32) & Integer.MAX_VALUE;
+					if (exit < 0)	//分岐で上限を超えた
+						break loop;
+					break;
+				}
+				default:
+					throw new VsmException("実行できない命令", pc - 1);
+				}
+			}
+			if (count > limit)
+				throw new VsmException("実行した命令の数が上限 " + limit + " を超えた", pc);
+		} catch (ArrayIndexOutOfBoundsException exception) {
+			if (pc < 0 || pc > length)	//分岐した後, 命令を読む前
+				throw new VsmException("命令列の範囲外の番地に分岐した", pc);
+			throw new VsmException(sp <= 0 ? "スタックが空" : sp >= stack.length ? "スタックがあふれた"
+					: "Dseg の範囲外のアドレス", pc - 1);
+		} finally {
+			steps = count;
+			stackDepth = sp;
+			flush(out, output);
+			output.flush();
+		}
+	}
+
+	/**
+	 * head を入口とするループの翻訳したコードを返す. まだ翻訳していなければ翻訳する
+	 * @param head ループの入口の番地
+	 * @param end 入口に戻る後退する分岐の番地
+	 * @param sp 入口でのスタックの深さ
+	 * @return 翻訳したコード. 翻訳できないとき, 翻訳したときと深さが違うときは null
+	 */
+	private CompiledLoop compiledLoop(int head, int end, int sp) {
+		if (loops[head] == null) {
+			loops[head] = LoopCompiler.compile(sourceOperators, sourceOperands, head, end, sp, data.length, stack.length);
+			if (loops[head] == null) {
+				heat[head] = -1;
+				return null;
+			}
+			loopDepths[head] = sp;
+			compiledLoopCount++;
+		}
+		return loopDepths[head] == sp ? loops[head] : null;
+	}
+
+	/**
+	 * 文字コードの文字を出力にためる
+	 */
+	private static void appendChar(StringBuilder out, int code) {
+		if (code >= 0 && code <= Character.MAX_VALUE)
+			out.append((char) code);
+		else
+			out.appendCodePoint(Math.floorMod(code, Character.MAX_CODE_POINT + 1));
+	}
+
+	/**
+	 * ためた出力を書き出す
+	 */
+	private static void flush(StringBuilder out, Writer output) throws IOException {
+		output.append(out);
+		out.setLength(0);
+	}
+
+	/**
+	 * 入力のバッファに文字が無ければ読み込む
+	 * @return 入力の終わりなら false
+	 */
+	private boolean fill() throws IOException {
+		if (inputPosition < inputLimit)
+			return true;
+		int count = input.read(inputBuffer, 0, inputBuffer.length);
+		if (count <= 0)
+			return false;
+		inputPosition = 0;
+		inputLimit = count;
+		return true;
+	}
+
+	/**
+	 * 一文字読む. 入力の終わりなら -1 を返す
+	 */
+	private int readChar() throws IOException {
+		return fill() ? inputBuffer[inputPosition++] : -1;
+	}
+
+	/**
+	 * 空白を読み飛ばして符号付きの十進数を読む. 数が無ければ 0 を返す
+	 */
+	private int readInt() throws IOException {
+		while (fill() && Character.isWhitespace(inputBuffer[inputPosition]))
+			inputPosition++;
+		boolean negative = false;
+		if (fill() && (inputBuffer[inputPosition] == '-' || inputBuffer[inputPosition] == '+'))
+			negative = inputBuffer[inputPosition++] == '-';
+		int value = 0;
+		while (fill() && inputBuffer[inputPosition] >= '0' && inputBuffer[inputPosition] <= '9')
+			value = value * 10 + (inputBuffer[inputPosition++] - '0');
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Operator に対応する命令の番号を返す. オブジェクトファイルにもこの番号を書く
+	 */
+	static int codeOf(Operator operator) {
+		switch (operator) {
+			case NOP: return NOP;
+			case ASSGN: return ASSGN;
+			case ADD: return ADD;
+			case SUB: return SUB;
+			case MUL: return MUL;
+			case DIV: return DIV;
+			case MOD: return MOD;
+			case CSIGN: return CSIGN;
+			case AND: return AND;
+			case OR: return OR;
+			case NOT: return NOT;
+			case COMP: return COMP;
+			case COPY: return COPY;
+			case PUSH: return PUSH;
+			case PUSHI: return PUSHI;
+			case REMOVE: return REMOVE;
+			case POP: return POP;
+			case INC: return INC;
+			case DEC: return DEC;
+			case JUMP: return JUMP;
+			case BLT: return BLT;
+			case BLE: return BLE;
+			case BEQ: return BEQ;
+			case BNE: return BNE;
+			case BGE: return BGE;
+			case BGT: return BGT;
+			case HALT: return HALT;
+			case INPUT: return INPUT;
+			case INPUTC: return INPUTC;
+			case OUTPUT: return OUTPUT;
+			case OUTPUTC: return OUTPUTC;
+			case OUTPUTLN: return OUTPUTLN;
+			case LOAD: return LOAD;
+			default: return ERR;
+		}
+	}
+
+	/**
+	 * アセンブラコードのファイル (拡張子が .vsmo ならオブジェクトファイル, .k ならコンパイルしたもの) を実行する.
+	 * 入力は入力ファイル (無ければ標準入力) から読み, 出力は標準出力に書く
+	 */
+	public static void main(String[] args) {
+		OptimizationLevel level = OptimizationLevel.O0;
+		boolean statistics = false;
+		boolean jit = false;
+		long limit = Long.MAX_VALUE;
+		int skip = 0;
+		for (; skip < args.length; skip++) {
+			OptimizationLevel option = OptimizationLevel.fromOption(args[skip]);
+			if (option != null)
+				level = option;
+			else if (args[skip].equals("-s"))
+				statistics = true;
+			else if (args[skip].equals("-jit"))
+				jit = true;
+			else if (args[skip].equals("-limit") && skip + 1 < args.length) {
+				try {
+					limit = Long.parseLong(args[++skip]);
+				} catch (NumberFormatException exception) {
+					System.err.println("-limit の値が整数ではない: " + args[skip]);
+					System.exit(1);
+				}
+			} else
+				break;
+		}
+		args = Arrays.copyOfRange(args, skip, args.length);
+		if (args.length == 0) {
+			System.out.println("Usage: java kc.Vsm [-O0|-O1|-O2] [-s] [-jit] [-limit steps] (file.asm|file.vsmo|file.k) [inputfile]");
+			System.exit(0);
+		}
+
+		Vsm vsm;
+		Reader input;
+		try {
+			if (args[0].endsWith(".k")) {
+				CompileResult result = Kc.compile(Paths.get(args[0]), level);
+				if (!result.isSuccess()) {
+					System.out.println(result.getDiagnostic());
+					System.exit(1);
+				}
+				vsm = fromResult(result);
+			} else if (args[0].endsWith(".vsmo")) {
+				vsm = map(Paths.get(args[0]));
+			} else {
+				vsm = load(Paths.get(args[0]));
+			}
+			input = args.length > 1 ? new FileReader(args[1], StandardCharsets.UTF_8)
+					: new InputStreamReader(System.in, StandardCharsets.UTF_8);
+		} catch (IOException | InvalidPathException exception) {
+			// AsmLoader, VsmObject の例外は "ファイル:行: 内容" の形のメッセージを持つ.
+			// ファイルシステムの例外はメッセージがパスだけなので, 例外の種類も表示する
+			System.err.println(exception instanceof FileSystemException ? exception.toString() : exception.getMessage());
+			System.exit(1);
+			return;
+		}
+		vsm.setStepLimit(limit);
+		if (jit)
+			vsm.enableJit();
+
+		Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		int status = 0;
+		long start = System.nanoTime();
+		try (Reader in = input) {
+			vsm.run(in, output);
+		} catch (VsmException exception) {
+			System.err.println(exception.getMessage());
+			status = 1;
+		} catch (IOException exception) {	//入出力の失敗
+			System.err.println(exception);
+			status = 1;
+		}
+		long elapsed = System.nanoTime() - start;
+		if (statistics) {
+			System.err.printf("#steps %d, stack %d, %.3f ms", vsm.getSteps(), vsm.getStackDepth(), elapsed / 1e6);
+			System.err.println(jit ? ", " + vsm.getCompiledLoopCount() + " loops compiled" : "");
+		}
+		System.exit(status);
+	}
+}
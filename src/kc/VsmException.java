@@ -0,0 +1,28 @@
+package kc;
+
+/**
+ * VSM の実行中にエラー (0 での割り算, 範囲外のアドレス, スタックのあふれなど) を検出したときに投げる例外
+ */
+public class VsmException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * エラーを検出した命令の番地
+	 */
+	private int address;
+
+	/**
+	 * エラーの内容と命令の番地を引数とするコンストラクタ
+	 */
+	VsmException(String message, int address) {
+		super(address + " 番地: " + message);
+		this.address = address;
+	}
+
+	/**
+	 * @return エラーを検出した命令の番地
+	 */
+	public int getAddress() {
+		return address;
+	}
+}
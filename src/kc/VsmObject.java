@@ -0,0 +1,134 @@
+package kc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * VSM のオブジェクトファイル (拡張子 .vsmo) の読み書きをするクラス
+ * アセンブラファイルと違って文字列を介さず, Vsm が実行する形の命令列をそのまま格納する.
+ * 読み込むときはファイルをメモリに割り付け, 命令列を int 配列に一括して写すだけで解析はしない.
+ *
+ * 形式 (int はすべて4バイトのリトルエンディアン)
+ * <pre>
+ *   ヘッダ   int magic ("VSMO" の4バイト), int 版数, int 命令の数, int スタックの最大の深さ, int Dseg の語数
+ *   命令列   命令ごとに int 命令の番号 (Vsm.codeOf), int オペランド
+ * </pre>
+ * スタックの最大の深さは命令列から静的に求めたもので, 求められなければ -1 とする.
+ * 命令の番号やヘッダの形を変えたときは版数を上げる.
+ */
+class VsmObject {
+	/** ファイルの先頭の4バイト "VSMO" をリトルエンディアンの int として読んだ値 */
+	static final int MAGIC = 'V' | 'S' << 8 | 'M' << 16 | 'O' << 24;
+	/** 形式の版数 */
+	static final int VERSION = 1;
+	/** ヘッダの int の数 */
+	private static final int HEADER_WORDS = 5;
+	/** 一命令の int の数 */
+	private static final int RECORD_WORDS = 2;
+
+	/**
+	 * 命令列をオブジェクトファイルに書き出す
+	 * @param iseg 命令列
+	 * @param dataSize 命令列が使う Dseg の語数
+	 * @param file 出力するファイル
+	 */
+	static void write(PseudoIseg iseg, int dataSize, Path file) throws IOException {
+		int length = iseg.getLastCodeAddress() + 1;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(4 * (HEADER_WORDS + RECORD_WORDS * length))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(length).putInt(maxStackDepth(iseg)).putInt(dataSize);
+		for (int i = 0; i < length; i++)
+			buffer.putInt(Vsm.codeOf(iseg.getOperator(i))).putInt(iseg.getOperand(i));
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	/**
+	 * オブジェクトファイルをメモリに割り付けて読み込む
+	 * @throws IOException 読み込めないとき, オブジェクトファイルでないとき, 版数が違うとき
+	 */
+	static Vsm load(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 4 * HEADER_WORDS)
+				throw new IOException(file + ": オブジェクトファイルではない");
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			IntBuffer words = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			if (words.get() != MAGIC)
+				throw new IOException(file + ": オブジェクトファイルではない");
+			int version = words.get();
+			if (version != VERSION)
+				throw new IOException(file + ": 版数 " + version + " のオブジェクトファイルは読めない");
+			int length = words.get();
+			int stackDepth = words.get();
+			int dataSize = words.get();
+			if (length < 0 || size != 4 * (HEADER_WORDS + (long) RECORD_WORDS * length) || dataSize < 0)
+				throw new IOException(file + ": ヘッダと大きさが合わない");
+			int[] program = new int[RECORD_WORDS * length + RECORD_WORDS];
+			words.get(program, 0, RECORD_WORDS * length);
+			return new Vsm(program, length, dataSize, stackDepth);
+		}
+	}
+
+	/**
+	 * 0 番地から実行したときのスタックの最大の深さを, 各番地での深さを分岐先に伝えて求める.
+	 * 合流する番地で深さが食い違うとき, 空のスタックから取り出すとき, 実行できない命令に着くときは求められない
+	 * @return スタックの最大の深さ. 求められなければ -1
+	 */
+	static int maxStackDepth(PseudoIseg iseg) {
+		int length = iseg.getLastCodeAddress() + 1;
+		int[] depth = new int[length + 1];
+		Arrays.fill(depth, -1);
+		int[] work = new int[length + 1];
+		int top = 0, max = 0;
+		depth[0] = 0;
+		work[top++] = 0;
+		while (top > 0) {
+			int address = work[--top];
+			if (address == length)	//末尾の次の番地は HALT
+				continue;
+			Operator operator = iseg.getOperator(address);
+			if (operator == Operator.ERR)
+				return -1;
+			int pops = operator.popCount();
+			if (depth[address] < pops)
+				return -1;
+			int after = depth[address] - pops + operator.pushCount();
+			max = Math.max(max, after);
+
+			if (operator.isJump())
+				top = propagate(depth, work, top, iseg.getOperand(address), after);
+			if (top >= 0 && operator != Operator.JUMP && operator != Operator.HALT)
+				top = propagate(depth, work, top, address + 1, after);
+			if (top < 0)
+				return -1;
+		}
+		return max;
+	}
+
+	/**
+	 * 番地 address に着いたときの深さを after とし, 初めて着いたのであれば work に積む
+	 * @return 積んだ後の work の要素数. 前に着いたときと深さが違えば -1
+	 */
+	private static int propagate(int[] depth, int[] work, int top, int address, int after) {
+		if (address < 0 || address >= depth.length)	//範囲外への分岐は実行時エラーになるので先へ伝えない
+			return top;
+		if (depth[address] < 0) {
+			depth[address] = after;
+			work[top++] = address;
+			return top;
+		}
+		return depth[address] == after ? top : -1;
+	}
+}